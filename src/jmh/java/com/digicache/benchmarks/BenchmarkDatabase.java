@@ -0,0 +1,130 @@
+package com.digicache.benchmarks;
+
+import com.digicache.services.DBInitializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Temp SQLite database + image store for benchmarks.
+ * Creating it also makes it the shared connection, so controllers built afterwards use it.
+ */
+final class BenchmarkDatabase implements AutoCloseable {
+
+    final Path directory;
+    final Connection connection;
+
+    private BenchmarkDatabase(Path directory, Connection connection) {
+        this.directory = directory;
+        this.connection = connection;
+    }
+
+    static BenchmarkDatabase create() throws IOException, SQLException {
+        Path directory = Files.createTempDirectory("digicache-bench-");
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("bench.db"));
+        new DBInitializer(connection).initializeDB();
+        return new BenchmarkDatabase(directory, connection);
+    }
+
+    Path imageStore() {
+        return directory.resolve("images");
+    }
+
+    static String boxId(int i) {
+        return String.format("%06d", i);
+    }
+
+    // boxes with imagesPerBox image rows each (no files, listings only read the rows)
+    void seedBoxes(int boxes, int imagesPerBox) throws SQLException {
+        DBInitializer.inTransaction(connection, "bench.seed_boxes", () -> {
+            try (PreparedStatement box = connection.prepareStatement("INSERT INTO box_ids (id) VALUES (?)");
+                 PreparedStatement content = connection.prepareStatement("INSERT INTO box_contents (box_id, item_id) VALUES (?, ?)");
+                 PreparedStatement image = connection.prepareStatement("INSERT INTO images (id, box_id, image_path, content_type) VALUES (?, ?, ?, 'image/jpeg')")) {
+                for (int i = 0; i < boxes; i++) {
+                    String boxId = boxId(i);
+                    box.setString(1, boxId);
+                    box.addBatch();
+                    for (int j = 0; j < imagesPerBox; j++) {
+                        String imageId = UUID.randomUUID().toString();
+                        content.setString(1, boxId);
+                        content.setString(2, imageId);
+                        content.addBatch();
+                        image.setString(1, imageId);
+                        image.setString(2, boxId);
+                        image.setString(3, "data/images/" + imageId + ".jpg");
+                        image.addBatch();
+                    }
+                }
+                box.executeBatch();
+                content.executeBatch();
+                image.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    void seedTexts(int boxes, int textsPerBox) throws SQLException {
+        DBInitializer.inTransaction(connection, "bench.seed_texts", () -> {
+            try (PreparedStatement text = connection.prepareStatement("INSERT INTO texts (box_id, content) VALUES (?, ?)")) {
+                for (int i = 0; i < boxes; i++) {
+                    for (int j = 0; j < textsPerBox; j++) {
+                        text.setString(1, boxId(i));
+                        text.setString(2, "benchmark text " + j + " for box " + i);
+                        text.addBatch();
+                    }
+                }
+                text.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    void seedSongs(int boxes, int songsPerBox) throws SQLException {
+        DBInitializer.inTransaction(connection, "bench.seed_songs", () -> {
+            String sql = "INSERT INTO spotify_songs (box_id, spotify_id, name, artist, album, album_cover_url, spotify_url) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement song = connection.prepareStatement(sql)) {
+                for (int i = 0; i < boxes; i++) {
+                    for (int j = 0; j < songsPerBox; j++) {
+                        String spotifyId = UUID.randomUUID().toString().replace("-", "").substring(0, 22);
+                        song.setString(1, boxId(i));
+                        song.setString(2, spotifyId);
+                        song.setString(3, "Song " + j);
+                        song.setString(4, "Artist " + (j % 7));
+                        song.setString(5, "Album " + (j % 3));
+                        song.setString(6, "https://i.scdn.co/image/" + spotifyId);
+                        song.setString(7, "https://open.spotify.com/track/" + spotifyId);
+                        song.addBatch();
+                    }
+                }
+                song.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    void execute(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    @Override
+    public void close() throws IOException, SQLException {
+        connection.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.digicache.benchmarks;
+
+import com.digicache.controllers.ImageController;
+import com.digicache.services.BoxListingCache;
+import com.digicache.services.ImageService;
+import com.digicache.services.ViewCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET /api/images/boxes (query + JSON build) at different campus sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BoxListingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int boxes;
+
+    @Param({"3"})
+    public int imagesPerBox;
+
+    private BenchmarkDatabase db;
+    private ImageController controller;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        db = BenchmarkDatabase.create();
+        db.seedBoxes(boxes, imagesPerBox);
+        controller = new ImageController(new ImageService(db.connection, db.imageStore().toString()), new BoxListingCache(0),
+                new ViewCounters(db.connection, 100_000, 30));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        db.close();
+    }
+
+    @Benchmark
+    public ResponseEntity<String> getAllBoxes() {
+        return controller.getAllBoxes();
+    }
+}
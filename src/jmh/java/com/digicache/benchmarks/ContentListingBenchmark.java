@@ -0,0 +1,90 @@
+package com.digicache.benchmarks;
+
+import com.digicache.controllers.SpotifyController;
+import com.digicache.controllers.TextController;
+import com.digicache.services.BoxEventBroker;
+import com.digicache.services.BoxListingCache;
+import com.digicache.services.SpotifyService;
+import com.digicache.services.ViewCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET /api/text/box/{boxId} and GET /api/spotify/box/{boxId} for a random box,
+ * with the (box_id, created_at) indexes and with them dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ContentListingBenchmark {
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    @Param({"5000"})
+    public int boxes;
+
+    @Param({"20"})
+    public int itemsPerBox;
+
+    private BenchmarkDatabase db;
+    private TextController textController;
+    private SpotifyController spotifyController;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        db = BenchmarkDatabase.create();
+        // no listing cache: measure the queries
+        BoxEventBroker events = new BoxEventBroker(1, 1);
+        textController = new TextController(events, new BoxListingCache(0), new ViewCounters(db.connection, 100_000, 30));
+        // Spotify is only set up on first use, listing songs doesn't need credentials
+        spotifyController = new SpotifyController(events, new BoxListingCache(0), null, null, null, null,
+                SpotifyService.ACCOUNTS_BASE_URL, SpotifyService.API_BASE_URL);
+        db.seedTexts(boxes, itemsPerBox);
+        db.seedSongs(boxes, itemsPerBox);
+        if (!indexed) {
+            db.execute("DROP INDEX IF EXISTS idx_texts_box_created");
+            db.execute("DROP INDEX IF EXISTS idx_spotify_songs_box_created");
+        }
+        db.execute("ANALYZE");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        db.close();
+    }
+
+    private String randomBox() {
+        return BenchmarkDatabase.boxId(ThreadLocalRandom.current().nextInt(boxes));
+    }
+
+    @Benchmark
+    public ResponseEntity<byte[]> textsByBox() {
+        return textController.getTextsByBox(randomBox());
+    }
+
+    @Benchmark
+    public ResponseEntity<byte[]> songsByBox() {
+        return spotifyController.getSongsByBox(randomBox());
+    }
+}
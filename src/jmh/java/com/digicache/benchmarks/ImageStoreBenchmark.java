@@ -0,0 +1,83 @@
+package com.digicache.benchmarks;
+
+import com.digicache.services.ImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload write path: file into the image store + rows into SQLite.
+ * The store is emptied after every iteration so disk usage stays bounded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ImageStoreBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int payloadBytes;
+
+    private BenchmarkDatabase db;
+    private ImageService imageService;
+    private Path sourceFile;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        db = BenchmarkDatabase.create();
+        db.seedBoxes(1, 0);
+        imageService = new ImageService(db.connection, db.imageStore().toString());
+
+        payload = new byte[payloadBytes];
+        ThreadLocalRandom.current().nextBytes(payload);
+        sourceFile = db.directory.resolve("source.jpg");
+        Files.write(sourceFile, payload);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearStore() throws IOException, SQLException {
+        db.execute("DELETE FROM images");
+        db.execute("DELETE FROM box_contents");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(db.imageStore())) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        db.close();
+    }
+
+    @Benchmark
+    public String storeImage() throws IOException, SQLException {
+        return imageService.storeImage(sourceFile.toString(), BenchmarkDatabase.boxId(0));
+    }
+
+    @Benchmark
+    public String saveImage() throws IOException, SQLException {
+        return imageService.saveImage(payload, BenchmarkDatabase.boxId(0), "image/jpeg");
+    }
+}
@@ -0,0 +1,103 @@
+package com.digicache.benchmarks;
+
+import com.digicache.services.MimeTypes;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU-only pieces of the request paths: box listing JSON and upload MIME detection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1000", "10000"})
+    public int boxes;
+
+    private String[][] imageIds;
+    private JsonArray listing;
+    private Path pngFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        imageIds = new String[boxes][3];
+        for (String[] ids : imageIds) {
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = UUID.randomUUID().toString();
+            }
+        }
+        listing = buildListing();
+
+        pngFile = Files.createTempFile("digicache-bench-", ".png");
+        Files.write(pngFile, new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(pngFile);
+    }
+
+    // Same shape as ImageController.getAllBoxes
+    private JsonArray buildListing() {
+        JsonArray boxesArray = new JsonArray();
+        for (int i = 0; i < imageIds.length; i++) {
+            JsonObject boxObj = new JsonObject();
+            boxObj.addProperty("boxId", BenchmarkDatabase.boxId(i));
+            JsonArray imagesArray = new JsonArray();
+            for (String id : imageIds[i]) {
+                imagesArray.add(id);
+            }
+            boxObj.add("images", imagesArray);
+            boxesArray.add(boxObj);
+        }
+        return boxesArray;
+    }
+
+    @Benchmark
+    public String serializeBoxListing() {
+        return listing.toString();
+    }
+
+    @Benchmark
+    public String buildAndSerializeBoxListing() {
+        return buildListing().toString();
+    }
+
+    @Benchmark
+    public String mimeFromDeclaredType() {
+        return MimeTypes.detect("image/jpeg", pngFile, "photo.png");
+    }
+
+    @Benchmark
+    public String mimeFromFileProbe() {
+        return MimeTypes.detect(null, pngFile, "photo.png");
+    }
+
+    @Benchmark
+    public String mimeFromFileName() {
+        return MimeTypes.detect(null, null, "photo.jpeg");
+    }
+}
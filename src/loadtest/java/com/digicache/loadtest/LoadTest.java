@@ -0,0 +1,334 @@
+package com.digicache.loadtest;
+
+import com.digicache.DigiCacheApplication;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * In-process load generator.
+ * Starts the app on a random port with a temp SQLite DB, temp image store and a local
+ * Spotify stub, then drives a weighted mix of QR scans, image uploads, text posts and
+ * song saves from --concurrency workers and reports throughput, latency percentiles
+ * and SQLITE_BUSY rates per operation.
+ *
+ * mvn -P loadtest verify -Dloadtest.args="--concurrency 32 --duration 60"
+ *
+ * Options (defaults in brackets):
+ *   --concurrency [16]   worker threads, each runs one request at a time
+ *   --duration [30]      measured seconds
+ *   --warmup [5]         seconds run before measuring
+ *   --boxes [200]        boxes created before the run
+ *   --mix [scan=70,upload=5,text=15,song=10]   operation weights; "cover" (a song card's
+ *                        album cover, GET /api/spotify/cover/{id}?size=300) can be added
+ *   --image-size [1024]  width of the generated JPEG uploads (height is 3/4)
+ *   --spotify-latency [80]  ms the Spotify stub waits per call
+ *   --rate-limits [off]  "on" keeps admission control enabled (all workers share one client IP)
+ *   --report [target/loadtest-report.json]
+ */
+public final class LoadTest {
+
+    private static final MediaType JSON = MediaType.get("application/json");
+    private static final MediaType JPEG = MediaType.get("image/jpeg");
+
+    private final Map<String, String> options;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+    private final List<String> imageIds = new CopyOnWriteArrayList<>();
+    private OkHttpClient http;
+    private String baseUrl;
+    private int boxes;
+    private byte[] imagePayload;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        for (String entry : option("mix", "scan=70,upload=5,text=15,song=10").split(",")) {
+            String[] parts = entry.split("=");
+            mix.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            stats.put(parts[0].trim(), new OperationStats(parts[0].trim()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        new LoadTest(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        int concurrency = intOption("concurrency", 16);
+        int duration = intOption("duration", 30);
+        int warmup = intOption("warmup", 5);
+        boxes = intOption("boxes", 200);
+        imagePayload = generateJpeg(intOption("image-size", 1024));
+
+        Path workDir = Files.createTempDirectory("digicache-loadtest-");
+        try (SpotifyStub spotify = new SpotifyStub(intOption("spotify-latency", 80))) {
+            // These have to be set before the context starts, controllers read them in their constructors
+            System.setProperty("digicache.db.url", "jdbc:sqlite:" + workDir.resolve("loadtest.db"));
+            System.setProperty("digicache.image.dir", workDir.resolve("images").toString());
+            System.setProperty("spotify.accounts-url", spotify.baseUrl());
+            System.setProperty("spotify.api-url", spotify.baseUrl());
+            System.setProperty("SPOTIFY_CLIENT_ID", "loadtest");
+            System.setProperty("SPOTIFY_CLIENT_SECRET", "loadtest");
+
+            ConfigurableApplicationContext context = SpringApplication.run(DigiCacheApplication.class,
+                "--server.port=0", "--logging.level.com.digicache=WARN",
+                "--digicache.limits.enabled=" + "on".equals(options.getOrDefault("rate-limits", "off")));
+            try {
+                baseUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+                http = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(concurrency, 1, TimeUnit.MINUTES))
+                    .readTimeout(60, TimeUnit.SECONDS)
+                    .build();
+
+                seed();
+                System.out.printf("Running %d workers: %ds warmup, %ds measured, mix %s%n", concurrency, warmup, duration, mix);
+                drive(concurrency, warmup);
+                stats.values().forEach(OperationStats::reset);
+                drive(concurrency, duration);
+                report(duration, concurrency);
+            } finally {
+                context.close();
+            }
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    // Boxes plus one image per box so scans have something to read
+    private void seed() throws IOException {
+        JsonObject range = new JsonObject();
+        range.addProperty("prefix", "lt");
+        range.addProperty("from", 0);
+        range.addProperty("to", boxes - 1);
+        range.addProperty("width", 5);
+        JsonObject body = new JsonObject();
+        body.add("range", range);
+        try (Response response = post("/api/boxes/batch", RequestBody.create(body.toString(), JSON))) {
+            if (!response.isSuccessful()) {
+                throw new IOException("seeding boxes failed: " + response.code() + " " + response.body().string());
+            }
+        }
+        for (int i = 0; i < boxes; i++) {
+            uploadImage(boxId(i));
+        }
+        System.out.printf("Seeded %d boxes%n", boxes);
+    }
+
+    private void drive(int concurrency, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    runOne(pick(totalWeight));
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(seconds + 120L, TimeUnit.SECONDS);
+    }
+
+    private String pick(int totalWeight) {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void runOne(String operation) {
+        String boxId = boxId(ThreadLocalRandom.current().nextInt(boxes));
+        long start = System.nanoTime();
+        Outcome outcome;
+        try {
+            outcome = switch (operation) {
+                case "scan" -> scan(boxId);
+                case "upload" -> uploadImage(boxId);
+                case "text" -> postText(boxId);
+                case "song" -> saveSong(boxId);
+                case "cover" -> cover();
+                default -> throw new IllegalArgumentException("unknown operation in --mix: " + operation);
+            };
+        } catch (IOException e) {
+            outcome = new Outcome(false, false);
+        }
+        stats.get(operation).record(System.nanoTime() - start, outcome.ok(), outcome.busy());
+    }
+
+    // What a phone does after scanning a box's QR code
+    private Outcome scan(String boxId) throws IOException {
+        Outcome texts = call(get("/api/text/box/" + boxId));
+        Outcome songs = call(get("/api/spotify/box/" + boxId));
+        Outcome image = new Outcome(true, false);
+        if (!imageIds.isEmpty()) {
+            image = call(get("/api/images/" + imageIds.get(ThreadLocalRandom.current().nextInt(imageIds.size()))));
+        }
+        return new Outcome(texts.ok() && songs.ok() && image.ok(), texts.busy() || songs.busy() || image.busy());
+    }
+
+    private Outcome uploadImage(String boxId) throws IOException {
+        RequestBody body = new MultipartBody.Builder()
+            .setType(MultipartBody.FORM)
+            .addFormDataPart("boxId", boxId)
+            .addFormDataPart("file", "loadtest.jpg", RequestBody.create(imagePayload, JPEG))
+            .build();
+        try (Response response = post("/api/images/upload", body)) {
+            String responseBody = response.body().string();
+            if (response.isSuccessful()) {
+                imageIds.add(JsonParser.parseString(responseBody).getAsJsonObject().get("imageId").getAsString());
+            }
+            return new Outcome(response.isSuccessful(), isBusy(responseBody));
+        }
+    }
+
+    private Outcome postText(String boxId) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("boxId", boxId);
+        body.addProperty("content", "load test note " + ThreadLocalRandom.current().nextInt());
+        return call(post("/api/text/save", RequestBody.create(body.toString(), JSON)));
+    }
+
+    private Outcome saveSong(String boxId) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("boxId", boxId);
+        body.addProperty("spotifyId", "stubtrack" + ThreadLocalRandom.current().nextInt(1000));
+        return call(post("/api/spotify/save", RequestBody.create(body.toString(), JSON)));
+    }
+
+    // Same 1000 track ids as saveSong, so after a while most covers are cached
+    private Outcome cover() throws IOException {
+        return call(get("/api/spotify/cover/stubtrack" + ThreadLocalRandom.current().nextInt(1000) + "?size=300"));
+    }
+
+    private Response get(String path) throws IOException {
+        return http.newCall(new Request.Builder().url(baseUrl + path).get().build()).execute();
+    }
+
+    private Response post(String path, RequestBody body) throws IOException {
+        return http.newCall(new Request.Builder().url(baseUrl + path).post(body).build()).execute();
+    }
+
+    private Outcome call(Response response) throws IOException {
+        try (response) {
+            if (response.isSuccessful()) {
+                response.body().bytes();
+                return new Outcome(true, false);
+            }
+            return new Outcome(false, isBusy(response.body().string()));
+        }
+    }
+
+    // Controllers put the SQLException message in the error body
+    private static boolean isBusy(String body) {
+        return body.contains("SQLITE_BUSY") || body.contains("database is locked");
+    }
+
+    private void report(int duration, int concurrency) throws IOException {
+        JsonArray operations = new JsonArray();
+        System.out.printf("%n%-8s %9s %10s %8s %8s %9s %9s %9s %9s%n",
+            "op", "count", "ops/s", "errors", "busy", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (OperationStats operation : stats.values()) {
+            JsonObject summary = operation.summarize(duration);
+            operations.add(summary);
+            System.out.printf("%-8s %9d %10.1f %8d %8d %9.2f %9.2f %9.2f %9.2f%n",
+                summary.get("operation").getAsString(),
+                summary.get("count").getAsLong(),
+                summary.get("throughputPerSec").getAsDouble(),
+                summary.get("errors").getAsLong(),
+                summary.get("sqliteBusy").getAsLong(),
+                summary.get("p50Ms").getAsDouble(),
+                summary.get("p95Ms").getAsDouble(),
+                summary.get("p99Ms").getAsDouble(),
+                summary.get("maxMs").getAsDouble());
+        }
+
+        JsonObject report = new JsonObject();
+        report.addProperty("concurrency", concurrency);
+        report.addProperty("durationSeconds", duration);
+        report.addProperty("boxes", boxes);
+        report.add("operations", operations);
+        Path reportFile = Paths.get(option("report", "target/loadtest-report.json"));
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        Files.writeString(reportFile, new GsonBuilder().setPrettyPrinting().create().toJson(report));
+        System.out.println("\nReport written to " + reportFile);
+    }
+
+    private static String boxId(int i) {
+        return String.format("lt%05d", i);
+    }
+
+    // Noisy gradient so the JPEG is a realistic size rather than a few KB of flat color
+    private static byte[] generateJpeg(int width) throws IOException {
+        int height = width * 3 / 4;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(40)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(40)) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | random.nextInt(256));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = new ArrayList<>(walk.sorted(Comparator.reverseOrder()).toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private record Outcome(boolean ok, boolean busy) {
+    }
+}
@@ -0,0 +1,72 @@
+package com.digicache.loadtest;
+
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * Latencies and outcomes for one operation type. Latencies are kept raw and
+ * sorted once at the end, a run produces at most a few million samples.
+ */
+final class OperationStats {
+
+    private final String name;
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+    private long busy;
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    synchronized void record(long nanos, boolean ok, boolean sqliteBusy) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+        if (!ok) {
+            errors++;
+        }
+        if (sqliteBusy) {
+            busy++;
+        }
+    }
+
+    synchronized void reset() {
+        count = 0;
+        errors = 0;
+        busy = 0;
+    }
+
+    synchronized JsonObject summarize(double seconds) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("operation", name);
+        json.addProperty("count", count);
+        json.addProperty("throughputPerSec", round(count / seconds));
+        json.addProperty("errors", errors);
+        json.addProperty("errorRate", count == 0 ? 0 : round((double) errors / count));
+        json.addProperty("sqliteBusy", busy);
+        json.addProperty("sqliteBusyRate", count == 0 ? 0 : round((double) busy / count));
+        json.addProperty("p50Ms", percentileMillis(sorted, 0.50));
+        json.addProperty("p95Ms", percentileMillis(sorted, 0.95));
+        json.addProperty("p99Ms", percentileMillis(sorted, 0.99));
+        json.addProperty("maxMs", sorted.length == 0 ? 0 : round(sorted[sorted.length - 1] / 1e6));
+        return json;
+    }
+
+    private static double percentileMillis(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return round(sorted[Math.max(0, index)] / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
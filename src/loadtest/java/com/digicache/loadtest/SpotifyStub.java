@@ -0,0 +1,133 @@
+package com.digicache.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal local stand-in for the Spotify token + Web API endpoints SpotifyService calls,
+ * and for the CDN serving album covers (a generated 640 px JPEG per track).
+ * Adds a fixed delay per call so song saves cost roughly what a real lookup does.
+ */
+final class SpotifyStub implements AutoCloseable {
+
+    private final HttpServer server;
+    private final long latencyMillis;
+
+    SpotifyStub(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/token", this::token);
+        server.createContext("/v1/tracks/", this::track);
+        server.createContext("/v1/search", this::search);
+        server.createContext("/covers/", this::cover);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("access_token", "stub-token");
+        json.addProperty("token_type", "Bearer");
+        json.addProperty("expires_in", 3600);
+        respond(exchange, json.toString());
+    }
+
+    private void track(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        respond(exchange, track(path.substring(path.lastIndexOf('/') + 1)).toString());
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        JsonArray items = new JsonArray();
+        for (int i = 0; i < 5; i++) {
+            items.add(track("stubtrack" + i));
+        }
+        JsonObject tracks = new JsonObject();
+        tracks.add("items", items);
+        JsonObject json = new JsonObject();
+        json.add("tracks", tracks);
+        respond(exchange, json.toString());
+    }
+
+    // A square in a colour derived from the id, so every track's cover is different
+    private void cover(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String spotifyId = path.substring(path.lastIndexOf('/') + 1).replace(".jpg", "");
+        BufferedImage image = new BufferedImage(640, 640, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(spotifyId.hashCode() & 0xffffff));
+        g.fillRect(0, 0, 640, 640);
+        g.setColor(Color.WHITE);
+        g.drawString(spotifyId, 40, 320);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        respond(exchange, "image/jpeg", out.toByteArray());
+    }
+
+    private JsonObject track(String spotifyId) {
+        JsonObject artist = new JsonObject();
+        artist.addProperty("name", "Stub Artist");
+        JsonArray artists = new JsonArray();
+        artists.add(artist);
+
+        JsonObject cover = new JsonObject();
+        cover.addProperty("url", baseUrl() + "/covers/" + spotifyId + ".jpg");
+        JsonArray images = new JsonArray();
+        images.add(cover);
+        JsonObject album = new JsonObject();
+        album.addProperty("name", "Stub Album");
+        album.add("images", images);
+
+        JsonObject urls = new JsonObject();
+        urls.addProperty("spotify", "https://open.spotify.com/track/" + spotifyId);
+
+        JsonObject track = new JsonObject();
+        track.addProperty("id", spotifyId);
+        track.addProperty("name", "Stub Song " + spotifyId);
+        track.add("artists", artists);
+        track.add("album", album);
+        track.add("preview_url", null);
+        track.add("external_urls", urls);
+        return track;
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        respond(exchange, "application/json", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, String contentType, byte[] bytes) throws IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
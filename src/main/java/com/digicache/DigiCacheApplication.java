@@ -2,8 +2,11 @@ package com.digicache;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class DigiCacheApplication {
     public static void main(String[] args) {
         // Railway provides PORT environment variable
@@ -11,6 +14,12 @@ public class DigiCacheApplication {
         if (port != null) {
             System.setProperty("server.port", port);
         }
-        SpringApplication.run(DigiCacheApplication.class, args);
+        ConfigurableApplicationContext context = SpringApplication.run(DigiCacheApplication.class, args);
+
+        // Training run for the class data sharing archive (see Dockerfile): start fully, then exit
+        // so the JVM can write out every class that startup loaded
+        if (context.getEnvironment().getProperty("digicache.exit-after-startup", Boolean.class, false)) {
+            System.exit(SpringApplication.exit(context));
+        }
     }
 }
@@ -0,0 +1,69 @@
+package com.digicache.configuration;
+
+import com.digicache.controllers.AdminController;
+import com.google.gson.JsonObject;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Keeps the actuator to operators: /actuator/health is public, everything else there (metrics,
+ * prometheus, info) is off (404) unless digicache.admin.token is set, and then needs that token
+ * in X-Admin-Token or as "Authorization: Bearer", which is what a Prometheus scrape sends.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ActuatorAccessFilter extends OncePerRequestFilter {
+
+    private static final String PREFIX = "/actuator";
+    private static final String BEARER = "Bearer ";
+
+    private final byte[] adminToken;
+
+    public ActuatorAccessFilter(@Value("${digicache.admin.token:}") String adminToken) {
+        this.adminToken = adminToken.trim().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !(path.equals(PREFIX) || path.startsWith(PREFIX + "/"))
+                || path.equals(PREFIX + "/health") || path.startsWith(PREFIX + "/health/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (adminToken.length == 0) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        String token = request.getHeader(AdminController.TOKEN_HEADER);
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (token == null && authorization != null && authorization.startsWith(BEARER)) {
+            token = authorization.substring(BEARER.length()).trim();
+        }
+        if (token == null || !MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(HttpStatus.UNAUTHORIZED.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Missing or wrong " + AdminController.TOKEN_HEADER);
+            response.getWriter().write(error.toString());
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+}
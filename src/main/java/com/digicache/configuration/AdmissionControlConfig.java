@@ -0,0 +1,83 @@
+package com.digicache.configuration;
+
+import com.digicache.services.AdmissionControl;
+import com.digicache.services.AdmissionControl.Budget;
+import com.digicache.services.AdmissionControl.Limit;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Request budgets, configured as digicache.limits.{ip|box}.{read|write|upload|spotify}.{rate|burst}
+ * (rate in requests per second). A missing rate means no limit for that budget.
+ */
+@Configuration
+public class AdmissionControlConfig implements WebMvcConfigurer {
+
+    private final Environment environment;
+    private final boolean enabled;
+    private final int maxConcurrentUploads;
+
+    public AdmissionControlConfig(Environment environment,
+            @Value("${digicache.limits.enabled:true}") boolean enabled,
+            @Value("${digicache.limits.max-concurrent-uploads:16}") int maxConcurrentUploads) {
+        this.environment = environment;
+        this.enabled = enabled;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    // Also used outside the filter (cover lookups), so with limits off it admits everything
+    @Bean
+    public AdmissionControl admissionControl() {
+        if (!enabled) {
+            return new AdmissionControl(Map.of(), Map.of(), maxConcurrentUploads);
+        }
+        return new AdmissionControl(limits("ip"), limits("box"), maxConcurrentUploads);
+    }
+
+    private Map<Budget, Limit> limits(String scope) {
+        Map<Budget, Limit> limits = new EnumMap<>(Budget.class);
+        for (Budget budget : Budget.values()) {
+            String prefix = "digicache.limits." + scope + "." + budget.name().toLowerCase();
+            Double rate = environment.getProperty(prefix + ".rate", Double.class);
+            if (rate != null && rate > 0) {
+                int burst = environment.getProperty(prefix + ".burst", Integer.class, (int) Math.ceil(rate));
+                limits.put(budget, new Limit(rate, burst));
+            }
+        }
+        return limits;
+    }
+
+    // Multipart uploads carry boxId as a form field, only readable once Spring has parsed the form.
+    // A boxId in the query string was already charged by the filter.
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (!enabled) {
+            return;
+        }
+        AdmissionControl admissionControl = admissionControl();
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+                if (request.getAttribute(AdmissionControlFilter.BOX_ADMITTED) != null) {
+                    return true;
+                }
+                long retryAfter = admissionControl.admitBox(Budget.UPLOAD, request.getParameter("boxId"));
+                if (retryAfter > 0) {
+                    AdmissionControlFilter.reject(response, retryAfter, "Too many uploads for this box");
+                    return false;
+                }
+                return true;
+            }
+        }).addPathPatterns("/api/images/upload", "/api/images/upload/batch", "/api/images/background/upload");
+    }
+}
@@ -0,0 +1,237 @@
+package com.digicache.configuration;
+
+import com.digicache.services.AdmissionControl;
+import com.digicache.services.AdmissionControl.Budget;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Admission control in front of every API call, before any request body is read:
+ * a token bucket per client IP (and per box when the box id is cheap to find) for each
+ * kind of request, and a cap on uploads in flight. Over-budget requests get an immediate
+ * 429 with Retry-After instead of queueing up behind the single SQLite writer.
+ *
+ * The box id of multipart uploads is inside the body, those are checked per box by the
+ * interceptor in AdmissionControlConfig once Spring has parsed the form.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+    // boxId in the path: /api/text/box/{boxId}, /api/spotify/box/{boxId}, /api/images/background/{boxId}, /api/boxes/{boxId}/...
+    private static final Pattern BOX_IN_PATH = Pattern.compile(
+            "^/api/(?:text/box|spotify/box|images/background)/([^/]+)$|^/api/boxes/([^/]+)/.+$");
+    // Set once this filter has charged the request's box, so the upload interceptor doesn't again
+    static final String BOX_ADMITTED = AdmissionControlFilter.class.getName() + ".boxAdmitted";
+    // JSON bodies bigger than this aren't buffered just to find the box id
+    private static final int MAX_SNIFFED_BODY = 64 * 1024;
+
+    private final AdmissionControl admissionControl;
+    private final boolean enabled;
+
+    public AdmissionControlFilter(AdmissionControl admissionControl,
+            @Value("${digicache.limits.enabled:true}") boolean enabled) {
+        this.admissionControl = admissionControl;
+        this.enabled = enabled;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || !request.getRequestURI().startsWith("/api/") || "OPTIONS".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Budget budget = classify(request);
+
+        long retryAfter = admissionControl.admitClient(budget, request.getRemoteAddr());
+        if (retryAfter > 0) {
+            reject(response, retryAfter, "Too many requests from this client");
+            return;
+        }
+
+        HttpServletRequest forwarded = request;
+        String boxId = boxIdFromPath(request);
+        if (boxId == null && isSmallJsonWrite(request)) {
+            CachedBodyRequest cached = new CachedBodyRequest(request);
+            boxId = boxIdFromJson(cached.body);
+            forwarded = cached;
+        }
+        if (boxId != null) {
+            retryAfter = admissionControl.admitBox(budget, boxId);
+            if (retryAfter > 0) {
+                reject(response, retryAfter, "Too many requests for this box");
+                return;
+            }
+            request.setAttribute(BOX_ADMITTED, Boolean.TRUE);
+        }
+
+        boolean receivesUpload = budget == Budget.UPLOAD && !"GET".equals(request.getMethod()) && !"DELETE".equals(request.getMethod());
+        if (receivesUpload && !admissionControl.tryStartUpload()) {
+            reject(response, 1000, "Too many uploads in progress, try again shortly");
+            return;
+        }
+        try {
+            chain.doFilter(forwarded, response);
+        } finally {
+            if (receivesUpload) {
+                admissionControl.endUpload();
+            }
+        }
+    }
+
+    static Budget classify(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        String method = request.getMethod();
+        if (path.startsWith("/api/images/upload") || path.equals("/api/images/background/upload")
+                || (path.startsWith("/api/uploads") && !"GET".equals(method))) {
+            return Budget.UPLOAD;
+        }
+        // these go out to the Spotify API (listing a box's songs doesn't). Covers are READ: most
+        // are served from CoverCache, SpotifyController charges SPOTIFY for those needing a track lookup
+        if (path.startsWith("/api/spotify/search") || (path.startsWith("/api/spotify/song/") && "GET".equals(method))
+                || path.equals("/api/spotify/save")) {
+            return Budget.SPOTIFY;
+        }
+        return "GET".equals(method) ? Budget.READ : Budget.WRITE;
+    }
+
+    private static String boxIdFromPath(HttpServletRequest request) {
+        Matcher matcher = BOX_IN_PATH.matcher(request.getRequestURI());
+        if (matcher.matches()) {
+            String boxId = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            if (!boxId.equals("batch") && !boxId.equals("upload")) {
+                return URLDecoder.decode(boxId, StandardCharsets.UTF_8);
+            }
+        }
+        return boxIdFromQuery(request);
+    }
+
+    // query string parsed by hand: getParameter() would make Tomcat read (and spool) a multipart body
+    static String boxIdFromQuery(HttpServletRequest request) {
+        String query = request.getQueryString();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("boxId=")) {
+                    return URLDecoder.decode(pair.substring("boxId=".length()), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean isSmallJsonWrite(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        long length = request.getContentLengthLong();
+        return !"GET".equals(request.getMethod())
+                && contentType != null && contentType.startsWith(MediaType.APPLICATION_JSON_VALUE)
+                && length > 0 && length <= MAX_SNIFFED_BODY;
+    }
+
+    private static String boxIdFromJson(byte[] body) {
+        try {
+            JsonElement json = JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+            if (json.isJsonObject()) {
+                JsonObject object = json.getAsJsonObject();
+                if (object.has("boxId") && object.get("boxId").isJsonPrimitive()) {
+                    return object.get("boxId").getAsString();
+                }
+            }
+        } catch (RuntimeException ignored) {
+            // malformed JSON is the controller's problem
+        }
+        return null;
+    }
+
+    static void reject(HttpServletResponse response, long retryAfterMillis, String message) throws IOException {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString((retryAfterMillis + 999) / 1000));
+        // @CrossOrigin never runs for a rejected request, without this browsers only see a CORS error
+        response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        error.addProperty("retryAfterMs", retryAfterMillis);
+        response.getWriter().write(error.toString());
+    }
+
+    // A request whose (small) body has been read up front and can be read again by the controller
+    static class CachedBodyRequest extends HttpServletRequestWrapper {
+        final byte[] body;
+
+        CachedBodyRequest(HttpServletRequest request) throws IOException {
+            super(request);
+            this.body = request.getInputStream().readNBytes(MAX_SNIFFED_BODY);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                // The body is already in memory, so it is all available at once
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    try {
+                        if (!isFinished()) {
+                            listener.onDataAvailable();
+                        }
+                        listener.onAllDataRead();
+                    } catch (IOException e) {
+                        listener.onError(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+        }
+    }
+}
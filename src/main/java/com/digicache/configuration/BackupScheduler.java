@@ -0,0 +1,36 @@
+package com.digicache.configuration;
+
+import com.digicache.services.BackupService;
+import com.digicache.services.ImageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Periodic online backups, off unless digicache.backup.enabled=true
+@Component
+@ConditionalOnProperty(name = "digicache.backup.enabled", havingValue = "true")
+public class BackupScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(BackupScheduler.class);
+
+    private final BackupService backupService;
+
+    public BackupScheduler(
+            ImageService imageService,
+            @Value("${digicache.backup.dir:backups}") String backupDir,
+            @Value("${digicache.backup.keep:7}") int keep) {
+        this.backupService = new BackupService(imageService.getStoragePath(), backupDir, keep);
+    }
+
+    @Scheduled(cron = "${digicache.backup.cron:0 30 3 * * *}")
+    public void backup() {
+        try {
+            backupService.run();
+        } catch (Exception e) {
+            log.error("Backup failed", e);
+        }
+    }
+}
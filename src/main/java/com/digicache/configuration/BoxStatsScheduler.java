@@ -0,0 +1,35 @@
+package com.digicache.configuration;
+
+import com.digicache.services.BoxStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Nightly recount of box_stats, repairs counts that drifted from the content tables
+@Component
+@ConditionalOnProperty(name = "digicache.stats.rebuild.enabled", havingValue = "true", matchIfMissing = true)
+public class BoxStatsScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(BoxStatsScheduler.class);
+
+    private final BoxStats boxStats;
+
+    public BoxStatsScheduler(BoxStats boxStats) {
+        this.boxStats = boxStats;
+    }
+
+    @Scheduled(cron = "${digicache.stats.rebuild.cron:0 0 4 * * *}")
+    public void rebuild() {
+        try {
+            BoxStats.RebuildResult result = boxStats.rebuild();
+            if (result.repaired() > 0 || result.removed() > 0) {
+                log.atInfo().addKeyValue("boxes", result.boxes()).addKeyValue("repaired", result.repaired())
+                        .addKeyValue("removed", result.removed()).log("Box stats rebuilt");
+            }
+        } catch (Exception e) {
+            log.error("Box stats rebuild failed", e);
+        }
+    }
+}
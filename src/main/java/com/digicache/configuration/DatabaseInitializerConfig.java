@@ -1,27 +1,36 @@
 package com.digicache.configuration;
 
-import org.springframework.boot.CommandLineRunner;
-import org.springframework.stereotype.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import com.digicache.services.DBInitializer;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 
-@Component
-public class DatabaseInitializerConfig implements CommandLineRunner {
+/**
+ * The one place the schema is set up: every table and index, before anything else uses the
+ * database. Beans that touch the database take the DBInitializer bean as a parameter so they
+ * are created after it, and the web server only starts taking requests once all of this is done.
+ */
+@Configuration
+public class DatabaseInitializerConfig {
 
-    @Override
-    public void run(String... args) {
-        try {
-            System.out.println("Creating database connection and initializing tables...");
-            Connection connection = DBInitializer.getConnection();
-            DBInitializer dbInitializer = new DBInitializer(connection);
-            dbInitializer.initializeDB();
-            System.out.println("Database tables initialized successfully - including background_images table");
-        } catch (SQLException e) {
-            System.err.println("Failed to initialize database: " + e.getMessage());
-            e.printStackTrace();
-        }
+    private static final Logger log = LoggerFactory.getLogger(DatabaseInitializerConfig.class);
+
+    @Bean
+    public DBInitializer dbInitializer(
+            @Value("${spring.datasource.url:jdbc:sqlite:digicache.db}") String url,
+            @Value("${spring.datasource.username:#{null}}") String username,
+            @Value("${spring.datasource.password:#{null}}") String password) throws SQLException {
+        DBInitializer.configure(url, username, password);
+        log.atInfo().addKeyValue("dialect", DBInitializer.dialect()).log("Creating database connection and initializing tables");
+        Connection connection = DBInitializer.getConnection();
+        DBInitializer dbInitializer = new DBInitializer(connection);
+        dbInitializer.initializeDB();
+        log.info("Database tables initialized");
+        return dbInitializer;
     }
 }
-
@@ -0,0 +1,180 @@
+package com.digicache.configuration;
+
+import com.digicache.services.IdempotencyStore;
+import com.digicache.services.RequestTrace;
+import com.google.gson.JsonObject;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Set;
+
+/**
+ * Idempotency-Key support for the writes mobile clients retry on timeouts. The first request
+ * with a key runs and its response is kept (IdempotencyStore); a retry with the same key gets
+ * that response back (marked Idempotent-Replayed: true) without uploading, looking up or
+ * inserting anything again, and a retry arriving while the first is still running waits for it.
+ *
+ * A key reused for a different request (other endpoint, another ?boxId= for uploads, another
+ * body for JSON saves) is a 422. Server errors aren't kept, retrying those runs the request
+ * again. Runs after admission control, so a rejected request doesn't use up its key.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 20)
+public class IdempotencyFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyFilter.class);
+
+    public static final String HEADER = "Idempotency-Key";
+    private static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final Set<String> PATHS = Set.of(
+            "/api/images/upload", "/api/images/upload/batch", "/api/text/save", "/api/spotify/save");
+    private static final int MAX_KEY_LENGTH = 255;
+    // Bigger responses aren't kept (none of these endpoints sends one)
+    private static final int MAX_STORED_BODY = 64 * 1024;
+
+    private final IdempotencyStore store;
+    private final boolean enabled;
+    private final long waitMillis;
+
+    public IdempotencyFilter(IdempotencyStore store,
+            @Value("${digicache.idempotency.enabled:true}") boolean enabled,
+            @Value("${digicache.idempotency.wait:PT30S}") Duration wait) {
+        this.store = store;
+        this.enabled = enabled;
+        this.waitMillis = wait.toMillis();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || !"POST".equals(request.getMethod()) || request.getHeader(HEADER) == null
+                || !PATHS.contains(request.getRequestURI());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String idempotencyKey = request.getHeader(HEADER).trim();
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            error(response, HttpStatus.BAD_REQUEST, HEADER + " must be 1 to " + MAX_KEY_LENGTH + " characters");
+            return;
+        }
+        // JSON saves are matched on their body too. Multipart bodies aren't hashed (a retry may
+        // use another boundary); uploads are matched on the box in their query string. The form
+        // isn't read here, that would parse and spool the whole upload before the key is checked
+        HttpServletRequest forwarded = request;
+        String bodyHash = "";
+        if (AdmissionControlFilter.isSmallJsonWrite(request)) {
+            AdmissionControlFilter.CachedBodyRequest cached = request instanceof AdmissionControlFilter.CachedBodyRequest already
+                    ? already : new AdmissionControlFilter.CachedBodyRequest(request);
+            bodyHash = sha256(cached.body);
+            forwarded = cached;
+        } else if (request.getRequestURI().startsWith("/api/images/upload")) {
+            String boxId = AdmissionControlFilter.boxIdFromQuery(request);
+            bodyHash = "boxId=" + (boxId != null ? boxId : "");
+        }
+        String fingerprint = request.getMethod() + " " + request.getRequestURI() + " " + bodyHash;
+        String key = request.getRequestURI() + " " + idempotencyKey;
+
+        IdempotencyStore.Claim claim;
+        long claimStart = System.nanoTime();
+        try {
+            claim = store.claim(key, waitMillis);
+        } catch (SQLException e) {
+            error(response, HttpStatus.INTERNAL_SERVER_ERROR, "Failed to look up " + HEADER + ": " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error(response, HttpStatus.SERVICE_UNAVAILABLE, "Interrupted");
+            return;
+        } finally {
+            // mostly the wait for a request with the same key that is still running
+            RequestTrace.record("idempotency", "claim", claimStart);
+        }
+
+        if (claim.replay() != null) {
+            replay(response, claim.replay(), fingerprint);
+            return;
+        }
+        if (!claim.owner()) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            error(response, HttpStatus.CONFLICT, "A request with this " + HEADER + " is still in progress");
+            return;
+        }
+
+        ContentCachingResponseWrapper captured = new ContentCachingResponseWrapper(response);
+        boolean kept = false;
+        try {
+            chain.doFilter(forwarded, captured);
+            int status = captured.getStatus();
+            byte[] body = captured.getContentAsByteArray();
+            if (status < 500 && status != HttpStatus.TOO_MANY_REQUESTS.value() && body.length <= MAX_STORED_BODY) {
+                store.complete(key, new IdempotencyStore.Response(fingerprint, status, captured.getContentType(),
+                        new String(body, StandardCharsets.UTF_8)));
+                kept = true;
+            }
+        } catch (SQLException e) {
+            // the request itself went through, only its replay is lost
+            log.atWarn().addKeyValue("key", key).log("Failed to store response for " + HEADER + ": {}", e.getMessage());
+            kept = true;
+        } finally {
+            if (!kept) {
+                store.abandon(key);
+            }
+            captured.copyBodyToResponse();
+        }
+    }
+
+    private static void replay(HttpServletResponse response, IdempotencyStore.Response stored, String fingerprint) throws IOException {
+        if (!stored.fingerprint().equals(fingerprint)) {
+            error(response, HttpStatus.UNPROCESSABLE_ENTITY, HEADER + " was already used for a different request");
+            return;
+        }
+        response.setStatus(stored.status());
+        response.setHeader(REPLAYED_HEADER, "true");
+        // the controller (and its @CrossOrigin) doesn't run for a replay
+        response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        if (stored.contentType() != null) {
+            response.setContentType(stored.contentType());
+        }
+        byte[] body = stored.body() != null ? stored.body().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static void error(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        response.getWriter().write(error.toString());
+    }
+
+    private static String sha256(byte[] body) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
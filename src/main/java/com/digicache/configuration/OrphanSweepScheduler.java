@@ -0,0 +1,33 @@
+package com.digicache.configuration;
+
+import com.digicache.services.OrphanSweeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Sweeps the next slice of the image store for orphaned files every few minutes
+@Component
+@ConditionalOnProperty(name = "digicache.gc.enabled", havingValue = "true", matchIfMissing = true)
+public class OrphanSweepScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(OrphanSweepScheduler.class);
+
+    private final OrphanSweeper sweeper;
+
+    public OrphanSweepScheduler(OrphanSweeper sweeper) {
+        this.sweeper = sweeper;
+    }
+
+    @Scheduled(fixedDelayString = "${digicache.gc.interval:PT5M}", initialDelayString = "${digicache.gc.initial-delay:PT1M}")
+    public void sweep() {
+        try {
+            sweeper.step();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Orphan sweep failed", e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.digicache.configuration;
+
+import com.digicache.services.ImageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Computes placeholders for images stored before they existed, or skipped because the pool was full
+@Component
+@ConditionalOnProperty(name = "digicache.images.placeholders.backfill.enabled", havingValue = "true", matchIfMissing = true)
+public class PlaceholderBackfillScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(PlaceholderBackfillScheduler.class);
+
+    private final ImageService imageService;
+    private final int batchSize;
+
+    public PlaceholderBackfillScheduler(ImageService imageService,
+            @Value("${digicache.images.placeholders.backfill.batch-size:50}") int batchSize) {
+        this.imageService = imageService;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${digicache.images.placeholders.backfill.interval:PT1M}", initialDelayString = "${digicache.images.placeholders.backfill.interval:PT1M}")
+    public void backfill() {
+        try {
+            int described = imageService.describeMissing(batchSize);
+            if (described > 0) {
+                log.atInfo().addKeyValue("images", described).log("Placeholder backfill");
+            }
+        } catch (Exception e) {
+            log.error("Placeholder backfill failed", e);
+        }
+    }
+}
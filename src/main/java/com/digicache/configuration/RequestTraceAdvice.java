@@ -0,0 +1,32 @@
+package com.digicache.configuration;
+
+import com.digicache.services.RequestTrace;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+// Sets Server-Timing on controller responses, the last moment before their headers go out
+@ControllerAdvice
+@ConditionalOnProperty(name = "digicache.trace.enabled", havingValue = "true", matchIfMissing = true)
+public class RequestTraceAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType contentType,
+            Class<? extends HttpMessageConverter<?>> converterType, ServerHttpRequest request, ServerHttpResponse response) {
+        RequestTrace trace = RequestTrace.current();
+        if (trace != null) {
+            response.getHeaders().set(RequestTraceFilter.HEADER, trace.serverTiming());
+        }
+        return body;
+    }
+}
@@ -0,0 +1,37 @@
+package com.digicache.configuration;
+
+import com.digicache.services.RequestTrace;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Boot's multipart resolver, timed: parsing an upload (reading the whole body and spooling
+ * its parts to disk) happens before the controller runs, so it's its own phase in RequestTrace.
+ */
+@Configuration
+@ConditionalOnProperty(name = "digicache.trace.enabled", havingValue = "true", matchIfMissing = true)
+public class RequestTraceConfig {
+
+    @Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+    public StandardServletMultipartResolver multipartResolver(MultipartProperties multipartProperties) {
+        StandardServletMultipartResolver resolver = new StandardServletMultipartResolver() {
+            @Override
+            public MultipartHttpServletRequest resolveMultipart(HttpServletRequest request) {
+                long start = System.nanoTime();
+                try {
+                    return super.resolveMultipart(request);
+                } finally {
+                    RequestTrace.record("multipart", "parse", start);
+                }
+            }
+        };
+        resolver.setResolveLazily(multipartProperties.isResolveLazily());
+        return resolver;
+    }
+}
@@ -0,0 +1,67 @@
+package com.digicache.configuration;
+
+import com.digicache.services.RequestTrace;
+import com.digicache.services.SlowRequestLog;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Traces every API call (RequestTrace) from before admission control to the end of the
+ * handler. The phase totals go out as a Server-Timing header (set by RequestTraceAdvice just
+ * before the body is written, or here if nothing was written), and requests slower than
+ * digicache.trace.slow-threshold are kept with their full breakdown in the SlowRequestLog.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 5)
+@ConditionalOnProperty(name = "digicache.trace.enabled", havingValue = "true", matchIfMissing = true)
+public class RequestTraceFilter extends OncePerRequestFilter {
+
+    static final String HEADER = "Server-Timing";
+
+    private static final Logger log = LoggerFactory.getLogger(RequestTraceFilter.class);
+
+    private final SlowRequestLog slowRequests;
+
+    public RequestTraceFilter(SlowRequestLog slowRequests) {
+        this.slowRequests = slowRequests;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith("/api/") || "OPTIONS".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        RequestTrace trace = RequestTrace.begin();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            RequestTrace.end();
+            if (!response.isCommitted() && !response.containsHeader(HEADER)) {
+                response.setHeader(HEADER, trace.serverTiming());
+            }
+            long nanos = trace.elapsedNanos();
+            if (slowRequests.isSlow(nanos)) {
+                double millis = nanos / 1e6;
+                slowRequests.add(new SlowRequestLog.Entry(System.currentTimeMillis(), request.getMethod(),
+                        request.getRequestURI(), response.getStatus(), millis, trace.phases()));
+                log.atWarn().addKeyValue("method", request.getMethod()).addKeyValue("path", request.getRequestURI())
+                        .addKeyValue("status", response.getStatus()).addKeyValue("ms", Math.round(millis))
+                        .addKeyValue("timing", trace.serverTiming()).log("Slow request");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.digicache.configuration;
+
+import com.digicache.services.BoxEventBroker;
+import com.digicache.services.BoxExportService;
+import com.digicache.services.BoxListingCache;
+import com.digicache.services.BoxStats;
+import com.digicache.services.ChunkedUploadService;
+import com.digicache.services.CoverCache;
+import com.digicache.services.DBInitializer;
+import com.digicache.services.IdempotencyStore;
+import com.digicache.services.ImageOptimizer;
+import com.digicache.services.ImagePlaceholders;
+import com.digicache.services.ImageService;
+import com.digicache.services.MosaicService;
+import com.digicache.services.OrphanSweeper;
+import com.digicache.services.SearchService;
+import com.digicache.services.SlowRequestLog;
+import com.digicache.services.ViewCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+// Services shared by several controllers (one instance each, so their pools are shared too)
+@Configuration
+public class ServiceConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceConfig.class);
+
+    @Bean
+    public ImageOptimizer imageOptimizer(
+            @Value("${digicache.images.optimize.enabled:false}") boolean enabled,
+            @Value("${digicache.images.optimize.max-dimension:2048}") int maxDimension,
+            @Value("${digicache.images.optimize.quality:0.85}") float quality,
+            @Value("${digicache.images.optimize.threads:2}") int threads) {
+        return new ImageOptimizer(enabled, maxDimension, quality, threads);
+    }
+
+    @Bean
+    public ImagePlaceholders imagePlaceholders(@Value("${digicache.images.placeholders.threads:1}") int threads) {
+        return new ImagePlaceholders(threads);
+    }
+
+    @Bean
+    public BoxEventBroker boxEventBroker(
+            @Value("${digicache.events.max-subscribers:10000}") int maxSubscribers,
+            @Value("${digicache.events.sender-threads:4}") int senderThreads) {
+        return new BoxEventBroker(maxSubscribers, senderThreads);
+    }
+
+    @Bean
+    public BoxListingCache boxListingCache(DBInitializer schema, BoxEventBroker boxEventBroker,
+            @Value("${digicache.cache.listings.max-bytes:33554432}") long maxBytes) {
+        // Invalidation only sees this instance's writes; with a database shared by several
+        // instances a cached listing could miss another instance's write, so don't cache
+        if (DBInitializer.isShared() && maxBytes > 0) {
+            log.info("Shared database: box listing cache disabled");
+            maxBytes = 0;
+        }
+        BoxListingCache cache = new BoxListingCache(maxBytes);
+        cache.attachTo(boxEventBroker);
+        return cache;
+    }
+
+    @Bean
+    public MosaicService mosaicService(DBInitializer schema, BoxEventBroker boxEventBroker,
+            @Value("${digicache.mosaic.tile-size:128}") int tileSize,
+            @Value("${digicache.mosaic.max-tiles:100}") int maxTiles,
+            @Value("${digicache.mosaic.quality:0.8}") float quality,
+            @Value("${digicache.mosaic.debounce:PT2S}") Duration debounce,
+            @Value("${digicache.mosaic.max-bytes:16777216}") long maxBytes) throws SQLException {
+        // same as the listing cache: another instance's uploads wouldn't mark a kept mosaic stale
+        if (DBInitializer.isShared() && maxBytes > 0) {
+            log.info("Shared database: mosaic cache disabled");
+            maxBytes = 0;
+        }
+        MosaicService mosaics = new MosaicService(DBInitializer.getConnection(), tileSize, maxTiles, quality,
+                debounce.toMillis(), maxBytes);
+        mosaics.attachTo(boxEventBroker);
+        return mosaics;
+    }
+
+    @Bean
+    public ImageService imageService(DBInitializer schema, ImageOptimizer imageOptimizer, BoxEventBroker boxEventBroker,
+            ImagePlaceholders imagePlaceholders) throws SQLException {
+        Connection connection = DBInitializer.getConnection();
+        if (connection == null) {
+            throw new SQLException("Database connection is null");
+        }
+        return new ImageService(connection, imageOptimizer, boxEventBroker, imagePlaceholders);
+    }
+
+    @Bean
+    public CoverCache coverCache(ImageService imageService,
+            @Value("${digicache.covers.max-bytes:268435456}") long maxBytes,
+            @Value("${digicache.covers.sizes:64,160,300,640}") int[] sizes,
+            @Value("${digicache.covers.quality:0.85}") float quality) throws IOException {
+        return new CoverCache(Paths.get(imageService.getStoragePath(), "covers"), maxBytes, sizes, quality);
+    }
+
+    @Bean
+    public ChunkedUploadService chunkedUploadService(ImageService imageService,
+            @Value("${digicache.uploads.max-sessions:64}") int maxSessions,
+            @Value("${digicache.uploads.max-sessions-per-ip:8}") int maxSessionsPerIp,
+            @Value("${digicache.uploads.max-reserved-bytes:1073741824}") long maxBytes,
+            @Value("${digicache.uploads.max-reserved-bytes-per-ip:209715200}") long maxBytesPerIp,
+            @Value("${digicache.uploads.session-ttl:PT24H}") Duration sessionTtl) {
+        return new ChunkedUploadService(imageService,
+                new ChunkedUploadService.Limits(maxSessions, maxSessionsPerIp, maxBytes, maxBytesPerIp), sessionTtl.toMillis());
+    }
+
+    @Bean
+    public BoxExportService boxExportService(DBInitializer schema) throws SQLException {
+        return new BoxExportService(DBInitializer.getConnection());
+    }
+
+    @Bean
+    public BoxStats boxStats(DBInitializer schema) throws SQLException {
+        return new BoxStats(DBInitializer.getConnection());
+    }
+
+    @Bean
+    public SearchService searchService(DBInitializer schema) throws SQLException {
+        return new SearchService(DBInitializer.getConnection(), DBInitializer.dialect());
+    }
+
+    @Bean
+    public ViewCounters viewCounters(DBInitializer schema,
+            @Value("${digicache.views.max-keys:100000}") int maxKeys,
+            @Value("${digicache.views.retention-days:30}") int retentionDays) throws SQLException {
+        return new ViewCounters(DBInitializer.getConnection(), maxKeys, retentionDays);
+    }
+
+    @Bean
+    public IdempotencyStore idempotencyStore(DBInitializer schema,
+            @Value("${digicache.idempotency.max-entries:10000}") int maxEntries,
+            @Value("${digicache.idempotency.ttl:PT24H}") Duration ttl) throws SQLException {
+        return new IdempotencyStore(DBInitializer.getConnection(), maxEntries, ttl.toMillis());
+    }
+
+    @Bean
+    public SlowRequestLog slowRequestLog(
+            @Value("${digicache.trace.slow-threshold:PT0.5S}") Duration threshold,
+            @Value("${digicache.trace.slow-capacity:200}") int capacity) {
+        return new SlowRequestLog(threshold.toMillis(), capacity);
+    }
+
+    @Bean
+    public OrphanSweeper orphanSweeper(
+            ImageService imageService,
+            @Value("${digicache.gc.batch-size:200}") int batchSize,
+            @Value("${digicache.gc.files-per-step:2000}") int filesPerStep,
+            @Value("${digicache.gc.pause-ms:50}") long pauseMillis,
+            @Value("${digicache.gc.min-age-minutes:60}") long minAgeMinutes) throws SQLException {
+        return new OrphanSweeper(DBInitializer.getConnection(), imageService.getStoragePath(),
+                batchSize, filesPerStep, pauseMillis, minAgeMinutes * 60_000);
+    }
+}
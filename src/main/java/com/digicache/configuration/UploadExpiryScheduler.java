@@ -0,0 +1,32 @@
+package com.digicache.configuration;
+
+import com.digicache.services.ChunkedUploadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Aborts resumable uploads nobody has touched for digicache.uploads.session-ttl, freeing their disk space
+@Component
+public class UploadExpiryScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadExpiryScheduler.class);
+
+    private final ChunkedUploadService uploads;
+
+    public UploadExpiryScheduler(ChunkedUploadService uploads) {
+        this.uploads = uploads;
+    }
+
+    @Scheduled(fixedDelayString = "${digicache.uploads.expiry-interval:PT10M}", initialDelayString = "${digicache.uploads.expiry-interval:PT10M}")
+    public void expire() {
+        try {
+            int expired = uploads.expireStaleSessions();
+            if (expired > 0) {
+                log.atInfo().addKeyValue("expired", expired).log("Expired stale uploads");
+            }
+        } catch (Exception e) {
+            log.error("Expiring stale uploads failed", e);
+        }
+    }
+}
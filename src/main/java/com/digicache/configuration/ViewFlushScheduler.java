@@ -0,0 +1,29 @@
+package com.digicache.configuration;
+
+import com.digicache.services.ViewCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Writes the views counted in memory to the database (ViewCounters.close() writes the rest at shutdown)
+@Component
+public class ViewFlushScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(ViewFlushScheduler.class);
+
+    private final ViewCounters viewCounters;
+
+    public ViewFlushScheduler(ViewCounters viewCounters) {
+        this.viewCounters = viewCounters;
+    }
+
+    @Scheduled(fixedDelayString = "${digicache.views.flush-interval:PT30S}", initialDelayString = "${digicache.views.flush-interval:PT30S}")
+    public void flush() {
+        try {
+            viewCounters.flush();
+        } catch (Exception e) {
+            log.error("View count flush failed", e);
+        }
+    }
+}
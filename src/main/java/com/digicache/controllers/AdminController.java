@@ -0,0 +1,173 @@
+package com.digicache.controllers;
+
+import com.digicache.services.BoxStats;
+import com.digicache.services.OrphanSweeper;
+import com.digicache.services.RequestTrace;
+import com.digicache.services.SlowRequestLog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+
+/**
+ * Operator endpoints. They are off (404) unless digicache.admin.token is set, and then need
+ * that token in the X-Admin-Token header.
+ */
+@RestController
+@RequestMapping("/api/admin")
+public class AdminController {
+
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+    // a dry run walks the directory once per files-per-step names, on the request thread
+    private static final int MAX_GC_FILES = 10000;
+
+    private OrphanSweeper orphanSweeper;
+    private BoxStats boxStats;
+    private SlowRequestLog slowRequests;
+    private final byte[] adminToken;
+
+    public AdminController(OrphanSweeper orphanSweeper, BoxStats boxStats, SlowRequestLog slowRequests,
+            @Value("${digicache.admin.token:}") String adminToken) {
+        this.orphanSweeper = orphanSweeper;
+        this.boxStats = boxStats;
+        this.slowRequests = slowRequests;
+        this.adminToken = adminToken.trim().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Recount box_stats from the content tables now instead of waiting for the nightly job
+     * POST /api/admin/box-stats/rebuild
+     */
+    @PostMapping("/box-stats/rebuild")
+    public ResponseEntity<String> rebuildBoxStats(@RequestHeader(value = TOKEN_HEADER, required = false) String token) {
+        ResponseEntity<String> denied = checkToken(token);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            BoxStats.RebuildResult result = boxStats.rebuild();
+            JsonObject response = new JsonObject();
+            response.addProperty("boxes", result.boxes());
+            response.addProperty("repaired", result.repaired());
+            response.addProperty("removed", result.removed());
+            return ResponseEntity.ok(response.toString());
+        } catch (Exception e) {
+            return error("Failed to rebuild box stats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dry run of the orphan sweeper over one page of the image store: what would be deleted
+     * there. Deletes nothing. Pass the response's next as after to continue.
+     * GET /api/admin/gc?files=2000&sample=100&after=
+     */
+    @GetMapping("/gc")
+    public ResponseEntity<String> orphanReport(
+            @RequestHeader(value = TOKEN_HEADER, required = false) String token,
+            @RequestParam(value = "files", defaultValue = "2000") int files,
+            @RequestParam(value = "sample", defaultValue = "100") int sample,
+            @RequestParam(value = "after", required = false) String after) {
+        ResponseEntity<String> denied = checkToken(token);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            OrphanSweeper.DryRun page = orphanSweeper.dryRun(after,
+                    Math.max(1, Math.min(files, MAX_GC_FILES)), Math.max(0, Math.min(sample, 1000)));
+            if (page == null) {
+                JsonObject error = new JsonObject();
+                error.addProperty("error", "Another dry run is in progress");
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(error.toString());
+            }
+            OrphanSweeper.Report report = page.report();
+
+            JsonArray orphans = new JsonArray();
+            for (OrphanSweeper.Orphan orphan : report.sample()) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("file", orphan.file());
+                entry.addProperty("bytes", orphan.bytes());
+                orphans.add(entry);
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("dryRun", true);
+            response.addProperty("scanned", report.scanned());
+            response.addProperty("orphans", report.orphans());
+            response.addProperty("orphanBytes", report.orphanBytes());
+            response.add("sample", orphans);
+            response.addProperty("next", page.next());
+            return ResponseEntity.ok(response.toString());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error("Interrupted");
+        } catch (Exception e) {
+            return error("Failed to scan image store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The most recent requests slower than digicache.trace.slow-threshold, newest first, with
+     * the time spent per phase (SQL statement, transaction, file operation, Spotify call...).
+     * GET /api/admin/slow-requests?limit=50
+     */
+    @GetMapping("/slow-requests")
+    public ResponseEntity<String> slowRequests(
+            @RequestHeader(value = TOKEN_HEADER, required = false) String token,
+            @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        ResponseEntity<String> denied = checkToken(token);
+        if (denied != null) {
+            return denied;
+        }
+        JsonArray requests = new JsonArray();
+        for (SlowRequestLog.Entry entry : slowRequests.recent(Math.max(0, Math.min(limit, 1000)))) {
+            JsonArray phases = new JsonArray();
+            for (RequestTrace.Phase phase : entry.phases()) {
+                JsonObject item = new JsonObject();
+                item.addProperty("category", phase.category());
+                item.addProperty("name", phase.name());
+                item.addProperty("count", phase.count());
+                item.addProperty("ms", Math.round(phase.millis() * 100) / 100.0);
+                phases.add(item);
+            }
+            JsonObject request = new JsonObject();
+            request.addProperty("at", Instant.ofEpochMilli(entry.timestamp()).toString());
+            request.addProperty("method", entry.method());
+            request.addProperty("path", entry.path());
+            request.addProperty("status", entry.status());
+            request.addProperty("ms", Math.round(entry.millis() * 100) / 100.0);
+            request.add("phases", phases);
+            requests.add(request);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("thresholdMs", slowRequests.thresholdMillis());
+        response.addProperty("recorded", slowRequests.recorded());
+        response.add("requests", requests);
+        return ResponseEntity.ok(response.toString());
+    }
+
+    // Null if the request may go ahead, otherwise the response to send instead
+    private ResponseEntity<String> checkToken(String token) {
+        if (adminToken.length == 0) {
+            return ResponseEntity.notFound().build();
+        }
+        if (token == null || !MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Missing or wrong " + TOKEN_HEADER);
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(error.toString());
+        }
+        return null;
+    }
+
+    private ResponseEntity<String> error(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
+    }
+}
@@ -0,0 +1,310 @@
+package com.digicache.controllers;
+
+import com.digicache.services.BoxEventBroker;
+import com.digicache.services.BoxExportService;
+import com.digicache.services.BoxStats;
+import com.digicache.services.ImageService;
+import com.digicache.services.MosaicService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RestController
+@RequestMapping("/api/boxes")
+@CrossOrigin(origins = "*")
+public class BoxController {
+
+    // keeps a single request (and its transaction) to a sane size
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    private static final int MAX_STATS_PAGE = 500;
+
+    private ImageService imageService;
+    private BoxExportService exportService;
+    private BoxEventBroker events;
+    private BoxStats stats;
+    private MosaicService mosaics;
+
+    public BoxController(ImageService imageService, BoxExportService exportService, BoxEventBroker events, BoxStats stats,
+            MosaicService mosaics) {
+        this.imageService = imageService;
+        this.exportService = exportService;
+        this.events = events;
+        this.stats = stats;
+        this.mosaics = mosaics;
+    }
+
+    /**
+     * Create many boxes in one request / one transaction. Existing ids are skipped.
+     * POST /api/boxes/batch
+     * Body: { "boxIds": ["001", "002"] }
+     *   or: { "range": { "from": 1, "to": 500, "prefix": "", "width": 3 } }  -> "001".."500"
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<String> createBoxes(@RequestBody String requestBody) {
+        try {
+            JsonObject request = JsonParser.parseString(requestBody).getAsJsonObject();
+
+            List<String> boxIds = new ArrayList<>();
+            if (request.has("boxIds")) {
+                for (JsonElement id : request.getAsJsonArray("boxIds")) {
+                    boxIds.add(id.getAsString());
+                }
+            } else if (request.has("range")) {
+                JsonObject range = request.getAsJsonObject("range");
+                int from = range.get("from").getAsInt();
+                int to = range.get("to").getAsInt();
+                String prefix = range.has("prefix") ? range.get("prefix").getAsString() : "";
+                int width = range.has("width") ? range.get("width").getAsInt() : 0;
+                if (to < from || (long) to - from + 1 > MAX_BATCH_SIZE) {
+                    return badRequest("Range must satisfy from <= to and cover at most " + MAX_BATCH_SIZE + " boxes");
+                }
+                for (long i = from; i <= to; i++) {
+                    String number = width > 0 ? String.format("%0" + width + "d", i) : String.valueOf(i);
+                    boxIds.add(prefix + number);
+                }
+            } else {
+                return badRequest("Provide either 'boxIds' or 'range' in the request body");
+            }
+
+            if (boxIds.isEmpty() || boxIds.size() > MAX_BATCH_SIZE) {
+                return badRequest("Batch must contain between 1 and " + MAX_BATCH_SIZE + " box ids");
+            }
+            for (String boxId : boxIds) {
+                if (boxId == null || boxId.isBlank()) {
+                    return badRequest("Box ids cannot be empty");
+                }
+            }
+
+            Map<String, Boolean> results = imageService.createBoxes(boxIds);
+
+            JsonArray resultsArray = new JsonArray();
+            int created = 0;
+            for (Map.Entry<String, Boolean> entry : results.entrySet()) {
+                JsonObject result = new JsonObject();
+                result.addProperty("boxId", entry.getKey());
+                result.addProperty("status", entry.getValue() ? "created" : "exists");
+                resultsArray.add(result);
+                if (entry.getValue()) {
+                    created++;
+                }
+            }
+
+            JsonObject response = new JsonObject();
+            response.addProperty("created", created);
+            response.addProperty("skipped", results.size() - created);
+            response.add("results", resultsArray);
+            return ResponseEntity.ok(response.toString());
+
+        } catch (SQLException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to create boxes: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
+        } catch (Exception e) {
+            return badRequest("Invalid request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Per-box counts and last activity, one page of boxes.
+     * GET /api/boxes/stats?sort=active&limit=50&offset=0
+     * sort: active (most items first, default) or recent (most recently added to first)
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<String> boxStats(
+            @RequestParam(value = "sort", defaultValue = "active") String sort,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "offset", defaultValue = "0") int offset) {
+        BoxStats.Sort order;
+        try {
+            order = BoxStats.Sort.valueOf(sort.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return badRequest("sort must be 'active' or 'recent'");
+        }
+        if (limit < 1 || limit > MAX_STATS_PAGE || offset < 0) {
+            return badRequest("limit must be between 1 and " + MAX_STATS_PAGE + ", offset at least 0");
+        }
+        try {
+            JsonArray boxes = new JsonArray();
+            for (BoxStats.Stats box : stats.list(order, limit, offset)) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("boxId", box.boxId());
+                entry.addProperty("images", box.images());
+                entry.addProperty("texts", box.texts());
+                entry.addProperty("songs", box.songs());
+                entry.addProperty("items", box.items());
+                entry.addProperty("lastActivity", box.lastActivity() != null ? box.lastActivity().toLocalDateTime().toString() : null);
+                boxes.add(entry);
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("sort", sort.toLowerCase(Locale.ROOT));
+            response.addProperty("total", stats.boxCount());
+            response.addProperty("limit", limit);
+            response.addProperty("offset", offset);
+            response.add("boxes", boxes);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        } catch (SQLException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to get box stats: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
+        }
+    }
+
+    /**
+     * Layout of the box's mosaic: one sprite with a square tile per image (newest first, like
+     * the image listing) and each tile's position in it. Images ImageIO can't decode (WebP) are
+     * listed in skipped, truncated means there were more images than tiles; fetch those one by one.
+     * stale means images changed and the sprite is being rebuilt (live events say when).
+     * GET /api/boxes/{boxId}/mosaic
+     */
+    @GetMapping("/{boxId}/mosaic")
+    public ResponseEntity<String> mosaicLayout(@PathVariable String boxId) {
+        try {
+            MosaicService.Result result = mosaics.get(boxId);
+            MosaicService.Mosaic mosaic = result.mosaic();
+
+            JsonArray tiles = new JsonArray();
+            for (MosaicService.Tile tile : mosaic.tiles()) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("imageId", tile.imageId());
+                entry.addProperty("x", tile.x());
+                entry.addProperty("y", tile.y());
+                tiles.add(entry);
+            }
+            JsonArray skipped = new JsonArray();
+            mosaic.skipped().forEach(skipped::add);
+
+            JsonObject response = new JsonObject();
+            response.addProperty("boxId", boxId);
+            response.addProperty("tileSize", mosaic.tileSize());
+            response.addProperty("width", mosaic.width());
+            response.addProperty("height", mosaic.height());
+            // versioned URL, so the sprite itself can be cached for good
+            response.addProperty("sprite", mosaic.sprite() != null
+                    ? "/api/boxes/" + UriUtils.encodePathSegment(boxId, StandardCharsets.UTF_8) + "/mosaic/sprite?v=" + mosaic.etag()
+                    : null);
+            response.add("tiles", tiles);
+            response.add("skipped", skipped);
+            response.addProperty("truncated", mosaic.truncated());
+            response.addProperty("stale", result.stale());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(response.toString());
+        } catch (SQLException | IOException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to build mosaic: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(error.toString());
+        }
+    }
+
+    /**
+     * The mosaic sprite (JPEG). With the v from the layout it never changes and is cached as
+     * immutable; a newer sprite gets a new v.
+     * GET /api/boxes/{boxId}/mosaic/sprite?v=...
+     */
+    @GetMapping("/{boxId}/mosaic/sprite")
+    public ResponseEntity<byte[]> mosaicSprite(@PathVariable String boxId,
+            @RequestParam(value = "v", required = false) String version,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        try {
+            MosaicService.Mosaic mosaic = mosaics.get(boxId).mosaic();
+            if (mosaic.sprite() == null) {
+                return ResponseEntity.notFound().build();
+            }
+            String etag = "\"" + mosaic.etag() + "\"";
+            CacheControl cacheControl = mosaic.etag().equals(version)
+                    ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable()
+                    : CacheControl.noCache();
+            if (etag.equals(ifNoneMatch)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.IMAGE_JPEG)
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .body(mosaic.sprite());
+        } catch (SQLException | IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Download a whole box as a ZIP (images, background, manifest.json with texts and songs).
+     * The archive is streamed as it's built, nothing is buffered or written to disk.
+     * GET /api/boxes/{boxId}/export
+     */
+    @GetMapping("/{boxId}/export")
+    public ResponseEntity<StreamingResponseBody> exportBox(@PathVariable String boxId) {
+        try {
+            if (!exportService.boxExists(boxId)) {
+                return jsonError(HttpStatus.NOT_FOUND, "Box not found: " + boxId);
+            }
+        } catch (SQLException e) {
+            return jsonError(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to export box: " + e.getMessage());
+        }
+
+        String fileName = "box-" + boxId.replaceAll("[^A-Za-z0-9._-]", "_") + ".zip";
+        StreamingResponseBody body = out -> {
+            try {
+                exportService.export(boxId, out);
+            } catch (SQLException e) {
+                // headers are long gone, all we can do is cut the archive short
+                throw new IOException("Export of box " + boxId + " failed: " + e.getMessage(), e);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .body(body);
+    }
+
+    /**
+     * Live updates for a box as Server-Sent Events (use an EventSource).
+     * Events are named image / text / song / background, their data is JSON with
+     * boxId, type, action (created | updated | deleted) and the item's fields.
+     * "resync" means events were missed: refetch the box's listings.
+     * GET /api/boxes/{boxId}/events
+     */
+    @GetMapping(value = "/{boxId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> boxEvents(@PathVariable String boxId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        SseEmitter emitter = events.subscribe(boxId, lastEventId);
+        if (emitter == null) {
+            // at the subscriber limit; EventSource gives up on a 503, clients fall back to polling
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30").build();
+        }
+        // no proxy buffering (nginx), events have to go out as they happen
+        return ResponseEntity.ok().header("X-Accel-Buffering", "no").body(emitter);
+    }
+
+    private ResponseEntity<StreamingResponseBody> jsonError(HttpStatus status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        byte[] bytes = error.toString().getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(out -> out.write(bytes));
+    }
+
+    private ResponseEntity<String> badRequest(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error.toString());
+    }
+}
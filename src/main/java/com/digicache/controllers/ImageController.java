@@ -1,8 +1,17 @@
 package com.digicache.controllers;
 
 import com.digicache.models.Image;
+import com.digicache.services.AppMetrics;
+import com.digicache.services.BoxListingCache;
 import com.digicache.services.DBInitializer;
 import com.digicache.services.ImageService;
+import com.digicache.services.LogSampler;
+import com.digicache.services.MimeTypes;
+import com.digicache.services.RequestTrace;
+import com.digicache.services.ViewCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -10,36 +19,53 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Locale;
+import java.util.Set;
 
+// DBInitializer.getConnection() points at the configured database only once dbInitializer has run
+@DependsOn("dbInitializer")
 @RestController
 @RequestMapping("/api/images")
 @CrossOrigin(origins = "*")
 public class ImageController {
     
+    private static final Logger log = LoggerFactory.getLogger(ImageController.class);
+    private static final int MAX_FILES_PER_BATCH = 20;
+    // one bound parameter per id; SQLite allows 999 per statement
+    private static final int MAX_METADATA_IDS = 500;
+    // one upload in this many logs what type it was detected as
+    private static final LogSampler MIME_LOG = new LogSampler(100);
+    
     private Connection connection;
     private ImageService imageService;
+    private BoxListingCache listings;
+    private ViewCounters views;
     
-    public ImageController() {
+    public ImageController(ImageService imageService, BoxListingCache listings, ViewCounters views) {
+        this.listings = listings;
+        this.views = views;
         try {
             this.connection = DBInitializer.getConnection();
             if (this.connection == null) {
                 throw new SQLException("Database connection is null");
             }
-            this.imageService = new ImageService(connection);
+            this.imageService = imageService;
         } catch (SQLException e) {
             throw new RuntimeException("Failed to initialize ImageController: " + e.getMessage(), e);
         }
@@ -94,7 +120,7 @@ public class ImageController {
             // Get all box IDs
             String boxQuery = "SELECT id FROM box_ids";
             try (PreparedStatement boxStmt = connection.prepareStatement(boxQuery);
-                 ResultSet boxRs = boxStmt.executeQuery()) {
+                 ResultSet boxRs = AppMetrics.query("box_ids.select_all", boxStmt::executeQuery)) {
                 
                 while (boxRs.next()) {
                     String boxId = boxRs.getString("id");
@@ -106,7 +132,7 @@ public class ImageController {
                     String contentQuery = "SELECT item_id FROM box_contents WHERE box_id = ? AND item_id IN (SELECT id FROM images)";
                     try (PreparedStatement contentStmt = connection.prepareStatement(contentQuery)) {
                         contentStmt.setString(1, boxId);
-                        try (ResultSet contentRs = contentStmt.executeQuery()) {
+                        try (ResultSet contentRs = AppMetrics.query("box_contents.select_images", contentStmt::executeQuery)) {
                             while (contentRs.next()) {
                                 imagesArray.add(contentRs.getString("item_id"));
                             }
@@ -126,6 +152,63 @@ public class ImageController {
         }
     }
     
+    /**
+     * List the images in one box (newest first) and whether it has a background
+     * GET /api/images/box/{boxId}
+     */
+    @GetMapping("/box/{boxId}")
+    public ResponseEntity<byte[]> getImagesByBox(@PathVariable String boxId) {
+        try {
+            byte[] body = listings.get(boxId, BoxListingCache.Listing.IMAGES, () -> loadImageListing(boxId));
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        } catch (SQLException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to get images: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON)
+                .body(error.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private byte[] loadImageListing(String boxId) throws SQLException {
+        JsonArray imagesArray = new JsonArray();
+        String imageQuery = "SELECT i.id, i.content_type, i.created_at, i.width, i.height, i.blurhash FROM box_contents c "
+                + "JOIN images i ON i.id = c.item_id WHERE c.box_id = ? ORDER BY i.created_at DESC";
+        try (PreparedStatement stmt = connection.prepareStatement(imageQuery)) {
+            stmt.setString(1, boxId);
+            try (ResultSet rs = AppMetrics.query("images.select_by_box", stmt::executeQuery)) {
+                while (rs.next()) {
+                    JsonObject image = new JsonObject();
+                    image.addProperty("id", rs.getString("id"));
+                    image.addProperty("contentType", rs.getString("content_type"));
+                    Timestamp createdAt = rs.getTimestamp("created_at"); // same format as /metadata
+                    image.addProperty("createdAt", createdAt != null ? createdAt.toLocalDateTime().toString() : null);
+                    // placeholder until the image loads; missing while it's still being computed
+                    int width = rs.getInt("width");
+                    if (width > 0) {
+                        image.addProperty("width", width);
+                        image.addProperty("height", rs.getInt("height"));
+                        image.addProperty("blurHash", rs.getString("blurhash"));
+                    }
+                    imagesArray.add(image);
+                }
+            }
+        }
+        
+        boolean hasBackground;
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM background_images WHERE box_id = ?")) {
+            stmt.setString(1, boxId);
+            try (ResultSet rs = AppMetrics.query("background_images.exists", stmt::executeQuery)) {
+                hasBackground = rs.next();
+            }
+        }
+        
+        JsonObject listing = new JsonObject();
+        listing.addProperty("boxId", boxId);
+        listing.add("images", imagesArray);
+        listing.addProperty("hasBackground", hasBackground);
+        return listing.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
     /**
      * Upload an image to a box
      * POST /api/images/upload
@@ -138,39 +221,34 @@ public class ImageController {
             @RequestParam(value = "type", required = false) String type) {
 
         try {
+            AppMetrics.uploadBytes("image", file.getSize());
+
             // Save the uploaded file temporarily
             File tempFile = File.createTempFile("upload-", file.getOriginalFilename());
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(file.getBytes());
-            }
+            AppMetrics.fileIo("upload.temp_write", () -> {
+                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                    fos.write(file.getBytes());
+                }
+                return null;
+            });
 
-            // Try to detect MIME type from the multipart content-type first
-            String detectedMime = file.getContentType();
-            if (detectedMime == null || detectedMime.isBlank()) {
-                // fallback to probing the temp file
-                try {
-                    detectedMime = Files.probeContentType(tempFile.toPath());
-                } catch (IOException ignored) { }
-            }
+            // Detect MIME type: multipart content-type, then file probe, then extension
+            long detectStart = System.nanoTime();
+            String detectedMime = MimeTypes.detect(file.getContentType(), tempFile.toPath(), file.getOriginalFilename());
+            RequestTrace.record("app", "mime.detect", detectStart);
 
-            // final fallback: infer from filename extension
-            if ((detectedMime == null || detectedMime.isBlank()) && file.getOriginalFilename() != null) {
-                String lower = file.getOriginalFilename().toLowerCase(Locale.ROOT);
-                if (lower.endsWith(".png")) detectedMime = "image/png";
-                else if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) detectedMime = "image/jpeg";
-                else if (lower.endsWith(".gif")) detectedMime = "image/gif";
-                else if (lower.endsWith(".txt")) detectedMime = "text/plain";
+            if (log.isDebugEnabled() && MIME_LOG.sample()) {
+                log.atDebug().addKeyValue("boxId", boxId).addKeyValue("mime", detectedMime).addKeyValue("clientType", type)
+                    .addKeyValue("sampled", MIME_LOG.every()).log("Detected upload type");
             }
 
-            System.out.println("Detected MIME type: " + detectedMime + " (client type param: " + type + ")");
-
             // If detected as image, treat it as image regardless of the provided 'type' param
             if (detectedMime != null && detectedMime.startsWith("image/")) {
                 String imageId = imageService.storeImage(tempFile.getAbsolutePath(), boxId);
 
                 // attempt to delete temp file
                 if (!tempFile.delete()) {
-                    System.out.println("Warning: Could not delete temporary file: " + tempFile.getAbsolutePath());
+                    log.atWarn().addKeyValue("file", tempFile.getAbsolutePath()).log("Could not delete temporary file");
                 }
 
                 JsonObject response = new JsonObject();
@@ -197,13 +275,75 @@ public class ImageController {
             return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).body(error.toString());
 
         } catch (Exception e) {
-            System.err.println("Error during image upload: " + e.getMessage());
+            log.atError().addKeyValue("boxId", boxId).setCause(e).log("Image upload failed");
             JsonObject error = new JsonObject();
             error.addProperty("error", "Failed to upload file: " + e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
         }
     }
     
+    /**
+     * Upload several images to a box in one request
+     * POST /api/images/upload/batch
+     * Form data: files (multipart, repeated), boxId (string)
+     * Files are stored in parallel and committed together; each file gets its own status.
+     */
+    @PostMapping("/upload/batch")
+    public ResponseEntity<String> uploadImages(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam("boxId") String boxId) {
+        
+        if (files.isEmpty() || files.size() > MAX_FILES_PER_BATCH) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Send between 1 and " + MAX_FILES_PER_BATCH + " files");
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error.toString());
+        }
+        
+        try {
+            List<ImageService.UploadSource> sources = new ArrayList<>();
+            for (MultipartFile file : files) {
+                sources.add(new ImageService.UploadSource(file.getOriginalFilename(), file::getInputStream));
+            }
+            List<ImageService.UploadResult> results = imageService.storeImages(boxId, sources);
+            
+            JsonArray resultsArray = new JsonArray();
+            int uploaded = 0;
+            for (ImageService.UploadResult result : results) {
+                JsonObject item = new JsonObject();
+                item.addProperty("fileName", result.fileName());
+                if (result.imageId() != null) {
+                    uploaded++;
+                    item.addProperty("status", "uploaded");
+                    item.addProperty("imageId", result.imageId());
+                    item.addProperty("contentType", result.contentType());
+                    item.addProperty("size", result.size());
+                    item.addProperty("sha256", result.sha256());
+                } else {
+                    item.addProperty("status", "rejected");
+                    item.addProperty("error", result.error());
+                }
+                resultsArray.add(item);
+            }
+            
+            JsonObject response = new JsonObject();
+            response.addProperty("boxId", boxId);
+            response.addProperty("uploaded", uploaded);
+            response.addProperty("rejected", results.size() - uploaded);
+            response.add("results", resultsArray);
+            
+            HttpStatus status = uploaded == results.size() ? HttpStatus.OK
+                    : uploaded > 0 ? HttpStatus.MULTI_STATUS
+                    : HttpStatus.BAD_REQUEST;
+            return ResponseEntity.status(status).body(response.toString());
+            
+        } catch (SQLException e) {
+            log.atError().addKeyValue("boxId", boxId).setCause(e).log("Batch image upload failed");
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to upload files: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
+        }
+    }
+    
     /**
      * Get an image by ID
      * GET /api/images/{imageId}
@@ -211,24 +351,17 @@ public class ImageController {
     @GetMapping("/{imageId}")
     public ResponseEntity<byte[]> getImage(@PathVariable String imageId) {
         try {
-            String query = "SELECT image_data FROM images WHERE id = ?";
-            
-            try (PreparedStatement stmt = connection.prepareStatement(query)) {
-                stmt.setString(1, imageId);
-                
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        byte[] imageData = rs.getBytes("image_data");
-                        return ResponseEntity.ok()
-                            .contentType(MediaType.IMAGE_JPEG)
-                            .body(imageData);
-                    } else {
-                        return ResponseEntity.notFound().build();
-                    }
-                }
+            // image bytes live in the image store (image_path), not in the row
+            Image image = imageService.getImageById(imageId);
+            if (image == null || image.getData() == null) {
+                return ResponseEntity.notFound().build();
             }
+            views.record(ViewCounters.Kind.IMAGE, imageId);
+            return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(image.getContentType()))
+                .body(image.getData());
             
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
@@ -244,22 +377,23 @@ public class ImageController {
             @RequestParam("boxId") String boxId) {
         
         try {
-            System.out.println("Processing background image upload for box: " + boxId);
+            AppMetrics.uploadBytes("background", file.getSize());
             
             // Save the uploaded file temporarily
             File tempFile = File.createTempFile("background-", file.getOriginalFilename());
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(file.getBytes());
-                System.out.println("Temporary file created: " + tempFile.getAbsolutePath());
-            }
+            AppMetrics.fileIo("upload.temp_write", () -> {
+                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                    fos.write(file.getBytes());
+                }
+                return null;
+            });
             
             // Store as background image (not a tile)
             imageService.storeBackgroundImage(tempFile.getAbsolutePath(), boxId);
-            System.out.println("Background image stored successfully for box: " + boxId);
             
             // Delete temp file
             if (!tempFile.delete()) {
-                System.out.println("Warning: Could not delete temporary file: " + tempFile.getAbsolutePath());
+                log.atWarn().addKeyValue("file", tempFile.getAbsolutePath()).log("Could not delete temporary file");
             }
             
             JsonObject response = new JsonObject();
@@ -269,8 +403,7 @@ public class ImageController {
             return ResponseEntity.ok(response.toString());
             
         } catch (Exception e) {
-            System.err.println("Error during background image upload: " + e.getMessage());
-            e.printStackTrace();
+            log.atError().addKeyValue("boxId", boxId).setCause(e).log("Background image upload failed");
             JsonObject error = new JsonObject();
             error.addProperty("error", "Failed to upload background image: " + e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error.toString());
@@ -293,13 +426,13 @@ public class ImageController {
             } else {
                 return ResponseEntity.notFound().build();
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
     /**
-     * Get metadata for an image by ID
+     * Get metadata for an image by ID (the image file itself is not read)
      * GET /api/images/{id}/metadata
      */
     @GetMapping("/{id}/metadata")
@@ -309,17 +442,62 @@ public class ImageController {
             if (image == null) {
                 return ResponseEntity.notFound().build();
             }
-            
-            Map<String, Object> metadata = new HashMap<>();
-            metadata.put("id", image.getId());
-            metadata.put("boxId", image.getBoxId());
-            metadata.put("contentType", image.getContentType());
-            metadata.put("createdAt", image.getCreatedAt().toString());
-            
-            return ResponseEntity.ok(metadata);
+            return ResponseEntity.ok(metadata(image));
         } catch (Exception e) {
-            e.printStackTrace();
+            log.atError().addKeyValue("imageId", id).setCause(e).log("Reading image metadata failed");
             return ResponseEntity.status(500).build();
         }
     }
+
+    /**
+     * Get metadata for many images in one query
+     * POST /api/images/metadata
+     * Body: { "ids": ["id1", "id2"] }  ->  { "images": [...], "missing": ["id2"] }
+     */
+    @PostMapping("/metadata")
+    public ResponseEntity<Map<String, Object>> getImagesMetadata(@RequestBody String requestBody) {
+        List<String> ids = new ArrayList<>();
+        try {
+            JsonArray requested = JsonParser.parseString(requestBody).getAsJsonObject().getAsJsonArray("ids");
+            for (JsonElement id : requested) {
+                ids.add(id.getAsString());
+            }
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Body must be { \"ids\": [...] }"));
+        }
+        if (ids.isEmpty() || ids.size() > MAX_METADATA_IDS) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Send between 1 and " + MAX_METADATA_IDS + " ids"));
+        }
+
+        try {
+            List<Map<String, Object>> images = new ArrayList<>();
+            Set<String> missing = new LinkedHashSet<>(ids);
+            for (Image image : imageService.getImagesByIds(ids)) {
+                images.add(metadata(image));
+                missing.remove(image.getId());
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("images", images);
+            response.put("missing", missing);
+            return ResponseEntity.ok(response);
+        } catch (SQLException e) {
+            log.atError().addKeyValue("count", ids.size()).setCause(e).log("Reading image metadata failed");
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    private static Map<String, Object> metadata(Image image) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("id", image.getId());
+        metadata.put("boxId", image.getBoxId());
+        metadata.put("contentType", image.getContentType());
+        metadata.put("createdAt", image.getCreatedAt().toString());
+        if (image.getWidth() != null) {
+            metadata.put("width", image.getWidth());
+            metadata.put("height", image.getHeight());
+            metadata.put("blurHash", image.getBlurHash());
+        }
+        return metadata;
+    }
 }
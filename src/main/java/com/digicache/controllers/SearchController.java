@@ -0,0 +1,102 @@
+package com.digicache.controllers;
+
+import com.digicache.services.SearchService;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.sql.SQLException;
+
+@RestController
+@RequestMapping("/api/search")
+@CrossOrigin(origins = "*")
+public class SearchController {
+
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 100;
+    // deep offsets still rank every match, past this a more specific query is the answer
+    private static final int MAX_OFFSET = 1000;
+
+    private final SearchService searchService;
+
+    public SearchController(SearchService searchService) {
+        this.searchService = searchService;
+    }
+
+    /**
+     * Search texts and saved songs, best matches first. All words have to match, the last
+     * one as a prefix ("beach sun" finds "sunset at the beach"), so it works as you type.
+     * Very broad queries (a common word, one or two letters) come back newest first instead,
+     * "order" in the response says which it is.
+     * GET /api/search?q=sun+beach&boxId=box1&limit=20&offset=0
+     * boxId is optional (all boxes), limit is at most 100.
+     */
+    @GetMapping
+    public ResponseEntity<String> search(
+            @RequestParam("q") String query,
+            @RequestParam(value = "boxId", required = false) String boxId,
+            @RequestParam(value = "limit", defaultValue = "" + DEFAULT_LIMIT) int limit,
+            @RequestParam(value = "offset", defaultValue = "0") int offset) {
+        if (SearchService.terms(query).isEmpty()) {
+            return error(400, "Search query must contain at least one word");
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            return error(400, "limit must be between 1 and " + MAX_LIMIT);
+        }
+        if (offset < 0 || offset > MAX_OFFSET) {
+            return error(400, "offset must be between 0 and " + MAX_OFFSET);
+        }
+        if (boxId != null && boxId.isBlank()) {
+            boxId = null;
+        }
+
+        try {
+            SearchService.Page page = searchService.search(query, boxId, limit, offset);
+
+            JsonArray results = new JsonArray();
+            for (SearchService.Hit hit : page.hits()) {
+                JsonObject result = new JsonObject();
+                result.addProperty("type", hit.type());
+                result.addProperty("id", hit.id());
+                result.addProperty("boxId", hit.boxId());
+                if ("song".equals(hit.type())) {
+                    result.addProperty("name", hit.text());
+                    result.addProperty("artist", hit.artist());
+                    result.addProperty("album", hit.album());
+                    result.addProperty("spotifyId", hit.spotifyId());
+                    result.addProperty("albumCoverUrl", hit.albumCoverUrl());
+                } else {
+                    result.addProperty("content", hit.text());
+                }
+                result.addProperty("createdAt", hit.createdAt());
+                if (hit.score() != null) {
+                    result.addProperty("score", hit.score());
+                }
+                results.add(result);
+            }
+
+            JsonObject response = new JsonObject();
+            response.addProperty("query", query);
+            if (boxId != null) {
+                response.addProperty("boxId", boxId);
+            }
+            response.add("results", results);
+            response.addProperty("limit", limit);
+            response.addProperty("offset", offset);
+            response.addProperty("hasMore", page.hasMore());
+            response.addProperty("order", page.ranked() ? "relevance" : "newest");
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(response.toString());
+
+        } catch (SQLException e) {
+            return error(500, "Search failed: " + e.getMessage());
+        }
+    }
+
+    private static ResponseEntity<String> error(int status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(error.toString());
+    }
+}
@@ -1,82 +1,121 @@
 package com.digicache.controllers;
 
+import com.digicache.services.AdmissionControl;
+import com.digicache.services.AppMetrics;
+import com.digicache.services.BoxEventBroker;
+import com.digicache.services.BoxListingCache;
+import com.digicache.services.BoxStats;
+import com.digicache.services.CoverCache;
 import com.digicache.services.DBInitializer;
 import com.digicache.services.SpotifyService;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import io.github.cdimascio.dotenv.Dotenv;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+// DBInitializer.getConnection() points at the configured database only once dbInitializer has run
+@DependsOn("dbInitializer")
 @RestController
 @RequestMapping("/api/spotify")
 @CrossOrigin(origins = "*")
 public class SpotifyController {
     
+    private static final Logger log = LoggerFactory.getLogger(SpotifyController.class);
+    
     private Connection connection;
     private String clientId;
     private String clientSecret;
-    private SpotifyService spotifyService;
+    private final String accountsUrl;
+    private final String apiUrl;
+    private volatile SpotifyService spotifyService;
+    private volatile boolean credentialsLookedUp;
+    private final BoxEventBroker events;
+    private final BoxListingCache listings;
+    private final CoverCache covers;
+    private final AdmissionControl admissionControl;
+    
+    // Spotify's covers are a few hundred KB at most; anything much bigger isn't a cover
+    private static final int MAX_COVER_BYTES = 5 * 1024 * 1024;
     
-    public SpotifyController() {
+    // Nothing Spotify-related happens here: credentials are looked up (and the HTTP client
+    // built) on the first Spotify request, so startup doesn't wait on it or fail without them
+    public SpotifyController(
+            BoxEventBroker events,
+            BoxListingCache listings,
+            CoverCache covers,
+            AdmissionControl admissionControl,
+            @Value("${SPOTIFY_CLIENT_ID:#{null}}") String clientId,
+            @Value("${SPOTIFY_CLIENT_SECRET:#{null}}") String clientSecret,
+            @Value("${spotify.accounts-url:" + SpotifyService.ACCOUNTS_BASE_URL + "}") String accountsUrl,
+            @Value("${spotify.api-url:" + SpotifyService.API_BASE_URL + "}") String apiUrl) {
+        this.events = events;
+        this.listings = listings;
+        this.covers = covers;
+        this.admissionControl = admissionControl;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.accountsUrl = accountsUrl;
+        this.apiUrl = apiUrl;
         try {
             this.connection = DBInitializer.getConnection();
-
-            // Priority 1: Railway environment variables
-            this.clientId = System.getenv("SPOTIFY_CLIENT_ID");
-            this.clientSecret = System.getenv("SPOTIFY_CLIENT_SECRET");
-
-            // Priority 2: .env file fallback (local dev only)
-            if (this.clientId == null || this.clientSecret == null) {
-                System.out.println("Trying .env file...");
-                try {
-                    Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
-                    this.clientId = dotenv.get("SPOTIFY_CLIENT_ID");
-                    this.clientSecret = dotenv.get("SPOTIFY_CLIENT_SECRET");
-                } catch (Throwable e) {
-                    // It's better to log this, but for now we'll leave it
-                    //this should cause it to change
-                }
-            }
-
-            if (this.clientId == null || this.clientSecret == null) {
-                throw new RuntimeException("Spotify credentials not found! Set SPOTIFY_CLIENT_ID and SPOTIFY_CLIENT_SECRET as Railway environment variables.");
-            }
-
-            System.out.println("Spotify credentials loaded");
-            this.spotifyService = new SpotifyService(this.clientId, this.clientSecret);
-            createSongsTableIfNotExists();
-            
-
         } catch (SQLException e) {
             throw new RuntimeException("Failed to initialize: " + e.getMessage(), e);
         }
     }
     
-    // Create songs table if it doesn't exist
-    private void createSongsTableIfNotExists() throws SQLException {
-        String createTableSQL = "CREATE TABLE IF NOT EXISTS spotify_songs ("
-                + "id TEXT PRIMARY KEY, "
-                + "box_id TEXT, "
-                + "spotify_id TEXT, "
-                + "name TEXT, "
-                + "artist TEXT, "
-                + "album TEXT, "
-                + "album_cover_url TEXT, "
-                + "preview_url TEXT, "
-                + "spotify_url TEXT, "
-                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
-                + ")";
-        
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createTableSQL);
-            System.out.println("Spotify songs table created or already exists");
+    // The Spotify client, or null if no credentials are configured
+    private SpotifyService spotify() {
+        SpotifyService service = spotifyService;
+        if (service != null || credentialsLookedUp) {
+            return service;
+        }
+        synchronized (this) {
+            if (!credentialsLookedUp) {
+                // Priority 1: Railway environment variables (or any other Spring property source)
+                // Priority 2: .env file fallback (local dev only)
+                if (clientId == null || clientSecret == null) {
+                    log.info("Spotify credentials not in the environment, trying .env file");
+                    try {
+                        Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+                        clientId = dotenv.get("SPOTIFY_CLIENT_ID");
+                        clientSecret = dotenv.get("SPOTIFY_CLIENT_SECRET");
+                    } catch (Throwable e) {
+                        // no usable .env, same as no credentials
+                    }
+                }
+                if (clientId == null || clientSecret == null) {
+                    log.error("Spotify credentials not found! Set SPOTIFY_CLIENT_ID and SPOTIFY_CLIENT_SECRET as Railway environment variables.");
+                } else {
+                    log.info("Spotify credentials loaded");
+                    spotifyService = new SpotifyService(clientId, clientSecret, accountsUrl, apiUrl);
+                }
+                credentialsLookedUp = true;
+            }
+            return spotifyService;
         }
     }
     
+    private ResponseEntity<String> notConfigured() {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", "Spotify is not configured on this server");
+        return ResponseEntity.status(503).body(error.toString());
+    }
+    
     /**
      * Search for songs on Spotify
      * GET /api/spotify/search?query=songname&limit=10
@@ -86,6 +125,10 @@ public class SpotifyController {
             @RequestParam String query,
             @RequestParam(defaultValue = "10") int limit) {
         
+        SpotifyService spotifyService = spotify();
+        if (spotifyService == null) {
+            return notConfigured();
+        }
         try {
             JsonArray results = spotifyService.searchSongs(query, limit);
             return ResponseEntity.ok(results.toString());
@@ -101,6 +144,10 @@ public class SpotifyController {
      */
     @GetMapping("/song/{spotifyId}")
     public ResponseEntity<String> getSongById(@PathVariable String spotifyId) {
+        SpotifyService spotifyService = spotify();
+        if (spotifyService == null) {
+            return notConfigured();
+        }
         try {
             JsonObject song = spotifyService.getSongById(spotifyId);
             return ResponseEntity.ok(song.toString());
@@ -117,6 +164,10 @@ public class SpotifyController {
      */
     @PostMapping("/save")
     public ResponseEntity<String> saveSongToBox(@RequestBody String requestBodyJson) {
+        SpotifyService spotifyService = spotify();
+        if (spotifyService == null) {
+            return notConfigured();
+        }
         try {
             // Parse the JSON request body
             com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
@@ -151,17 +202,29 @@ public class SpotifyController {
                 VALUES (?, ?, ?, ?, ?, ?, ?, ?)
             """;
             
-            try (PreparedStatement pstmt = connection.prepareStatement(insertSQL)) {
-                pstmt.setString(1, boxId);
-                pstmt.setString(2, spotifyId);
-                pstmt.setString(3, name);
-                pstmt.setString(4, artist);
-                pstmt.setString(5, album);
-                pstmt.setString(6, albumCoverUrl);
-                pstmt.setString(7, previewUrl);
-                pstmt.setString(8, spotifyUrl);
-                pstmt.executeUpdate();
-            }
+            DBInitializer.inTransaction(connection, "spotify_songs.insert", () -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(insertSQL)) {
+                    pstmt.setString(1, boxId);
+                    pstmt.setString(2, spotifyId);
+                    pstmt.setString(3, name);
+                    pstmt.setString(4, artist);
+                    pstmt.setString(5, album);
+                    pstmt.setString(6, albumCoverUrl);
+                    pstmt.setString(7, previewUrl);
+                    pstmt.setString(8, spotifyUrl);
+                    AppMetrics.query("spotify_songs.insert", pstmt::executeUpdate);
+                }
+                BoxStats.record(connection, boxId, BoxStats.Item.SONG, 1);
+                return null;
+            });
+            
+            JsonObject event = new JsonObject();
+            event.addProperty("spotifyId", spotifyId);
+            event.addProperty("name", name);
+            event.addProperty("artist", artist);
+            event.addProperty("album", album);
+            event.addProperty("albumCoverUrl", albumCoverUrl);
+            events.publish(boxId, "song", "created", event);
             
             JsonObject response = new JsonObject();
             response.addProperty("message", "Song saved successfully");
@@ -183,38 +246,153 @@ public class SpotifyController {
      * GET /api/spotify/box/{boxId}
      */
     @GetMapping("/box/{boxId}")
-    public ResponseEntity<String> getSongsByBox(@PathVariable String boxId) {
+    public ResponseEntity<byte[]> getSongsByBox(@PathVariable String boxId) {
         try {
-            String selectSQL = "SELECT * FROM spotify_songs WHERE box_id = ? ORDER BY created_at DESC";
-            JsonArray songsArray = new JsonArray();
+            byte[] body = listings.get(boxId, BoxListingCache.Listing.SONGS, () -> loadSongs(boxId));
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
             
-            try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
-                pstmt.setString(1, boxId);
-                ResultSet rs = pstmt.executeQuery();
+        } catch (SQLException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to get songs: " + e.getMessage());
+            return ResponseEntity.status(500).contentType(MediaType.APPLICATION_JSON)
+                .body(error.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private byte[] loadSongs(String boxId) throws SQLException {
+        String selectSQL = "SELECT * FROM spotify_songs WHERE box_id = ? ORDER BY created_at DESC";
+        JsonArray songsArray = new JsonArray();
+        
+        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+            pstmt.setString(1, boxId);
+            ResultSet rs = AppMetrics.query("spotify_songs.select_by_box", pstmt::executeQuery);
+            
+            while (rs.next()) {
+                JsonObject song = new JsonObject();
+                song.addProperty("id", rs.getInt("id"));
+                song.addProperty("boxId", rs.getString("box_id"));
+                song.addProperty("spotifyId", rs.getString("spotify_id"));
+                song.addProperty("name", rs.getString("name"));
+                song.addProperty("artist", rs.getString("artist"));
+                song.addProperty("album", rs.getString("album"));
+                song.addProperty("albumCoverUrl", rs.getString("album_cover_url"));
+                // same cover, served by us (see getCover)
+                song.addProperty("coverUrl", "/api/spotify/cover/" + rs.getString("spotify_id"));
+                song.addProperty("previewUrl", rs.getString("preview_url"));
+                song.addProperty("spotifyUrl", rs.getString("spotify_url"));
+                song.addProperty("createdAt", rs.getString("created_at"));
                 
-                while (rs.next()) {
-                    JsonObject song = new JsonObject();
-                    song.addProperty("id", rs.getInt("id"));
-                    song.addProperty("boxId", rs.getString("box_id"));
-                    song.addProperty("spotifyId", rs.getString("spotify_id"));
-                    song.addProperty("name", rs.getString("name"));
-                    song.addProperty("artist", rs.getString("artist"));
-                    song.addProperty("album", rs.getString("album"));
-                    song.addProperty("albumCoverUrl", rs.getString("album_cover_url"));
-                    song.addProperty("previewUrl", rs.getString("preview_url"));
-                    song.addProperty("spotifyUrl", rs.getString("spotify_url"));
-                    song.addProperty("createdAt", rs.getString("created_at"));
-                    
-                    songsArray.add(song);
-                }
+                songsArray.add(song);
+            }
+        }
+        
+        return songsArray.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Album cover of a song, downloaded from Spotify once and then served from our own store.
+     * size picks the smallest kept size (digicache.covers.sizes) at least that big; without it,
+     * or if it's bigger than all of them, the cover comes as Spotify serves it.
+     * Covers of songs nobody saved need a track lookup, which counts against the Spotify budget.
+     * GET /api/spotify/cover/{spotifyId}?size=300
+     */
+    @GetMapping("/cover/{spotifyId}")
+    public ResponseEntity<byte[]> getCover(@PathVariable String spotifyId,
+            @RequestParam(defaultValue = "0") int size,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            HttpServletRequest request) {
+        if (!CoverCache.isValidId(spotifyId)) {
+            return coverError(HttpStatus.BAD_REQUEST, "Invalid Spotify id");
+        }
+        try {
+            CoverCache.Cover cover = covers.get(spotifyId, covers.sizeFor(size), id -> fetchCover(id, request.getRemoteAddr()));
+            if (cover == null) {
+                return coverError(HttpStatus.BAD_GATEWAY, "Spotify's cover for " + spotifyId + " is not an image");
+            }
+            // a track's cover doesn't change, and if Spotify ever swapped it the etag would change too
+            String etag = "\"" + cover.etag() + "\"";
+            CacheControl cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable();
+            if (etag.equals(ifNoneMatch)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+            }
+            return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(cover.contentType()))
+                .eTag(etag)
+                .cacheControl(cacheControl)
+                .body(cover.bytes());
+        } catch (SpotifyNotConfiguredException e) {
+            return coverError(HttpStatus.SERVICE_UNAVAILABLE, "Spotify is not configured on this server");
+        } catch (SpotifyBudgetException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString((e.retryAfterMillis + 999) / 1000))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(("{\"error\": \"Too many Spotify lookups from this client\", \"retryAfterMs\": " + e.retryAfterMillis + "}")
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (CoverCache.NoCoverException e) {
+            return coverError(HttpStatus.NOT_FOUND, "No cover for " + spotifyId);
+        } catch (IOException e) {
+            return coverError(HttpStatus.BAD_GATEWAY, "Failed to get cover: " + e.getMessage());
+        }
+    }
+    
+    // Only for covers not cached yet. A saved song already has the URL, otherwise ask Spotify.
+    // Null if there's no such track or it has no cover
+    private byte[] fetchCover(String spotifyId, String clientIp) throws IOException {
+        SpotifyService spotifyService = spotify();
+        if (spotifyService == null) {
+            throw new SpotifyNotConfiguredException();
+        }
+        String url;
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT album_cover_url FROM spotify_songs WHERE spotify_id = ? AND album_cover_url IS NOT NULL LIMIT 1")) {
+            pstmt.setString(1, spotifyId);
+            try (ResultSet rs = AppMetrics.query("spotify_songs.select_cover_url", pstmt::executeQuery)) {
+                url = rs.next() ? rs.getString(1) : null;
             }
-            
-            return ResponseEntity.ok(songsArray.toString());
-            
         } catch (SQLException e) {
-            return ResponseEntity.status(500)
-                .body("{\"error\": \"Failed to get songs: " + e.getMessage() + "\"}");
+            throw new IOException("looking up the cover URL failed: " + e.getMessage(), e);
         }
+        if (url == null) {
+            // any base62 id gets this far: same budget as the other calls to the Spotify API
+            long retryAfter = admissionControl != null ? admissionControl.admitClient(AdmissionControl.Budget.SPOTIFY, clientIp) : 0;
+            if (retryAfter > 0) {
+                throw new SpotifyBudgetException(retryAfter);
+            }
+            JsonObject song;
+            try {
+                song = spotifyService.getSongById(spotifyId);
+            } catch (SpotifyService.TrackNotFoundException e) {
+                return null;
+            }
+            JsonObject album = song.has("album") && song.get("album").isJsonObject() ? song.getAsJsonObject("album") : null;
+            JsonArray images = album != null && album.has("images") && album.get("images").isJsonArray()
+                ? album.getAsJsonArray("images") : null;
+            if (images == null || images.isEmpty() || !images.get(0).isJsonObject() || !images.get(0).getAsJsonObject().has("url")) {
+                return null;
+            }
+            url = images.get(0).getAsJsonObject().get("url").getAsString();
+        }
+        return spotifyService.fetchImage(url, MAX_COVER_BYTES);
+    }
+    
+    private static class SpotifyNotConfiguredException extends IOException {
+    }
+    
+    // Not a failure of the cover itself, so CoverCache doesn't remember it
+    private static class SpotifyBudgetException extends IOException {
+        final long retryAfterMillis;
+        
+        SpotifyBudgetException(long retryAfterMillis) {
+            super("Spotify budget exceeded");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+    
+    private static ResponseEntity<byte[]> coverError(HttpStatus status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON)
+            .body(error.toString().getBytes(StandardCharsets.UTF_8));
     }
     
     /**
@@ -224,21 +402,40 @@ public class SpotifyController {
     @DeleteMapping("/song/{songId}")
     public ResponseEntity<String> deleteSong(@PathVariable int songId) {
         try {
-            String deleteSQL = "DELETE FROM spotify_songs WHERE id = ?";
+            // the box id is only needed to tell the box's subscribers
+            String boxId = DBInitializer.inTransaction(connection, "spotify_songs.delete", () -> {
+                String owner = null;
+                try (PreparedStatement pstmt = connection.prepareStatement("SELECT box_id FROM spotify_songs WHERE id = ?")) {
+                    pstmt.setInt(1, songId);
+                    try (ResultSet rs = AppMetrics.query("spotify_songs.select_box", pstmt::executeQuery)) {
+                        if (rs.next()) {
+                            owner = rs.getString("box_id");
+                        }
+                    }
+                }
+                if (owner == null) {
+                    return null;
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement("DELETE FROM spotify_songs WHERE id = ?")) {
+                    pstmt.setInt(1, songId);
+                    AppMetrics.query("spotify_songs.delete", pstmt::executeUpdate);
+                }
+                BoxStats.record(connection, owner, BoxStats.Item.SONG, -1);
+                return owner;
+            });
             
-            try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
-                pstmt.setInt(1, songId);
-                int rowsAffected = pstmt.executeUpdate();
+            if (boxId != null) {
+                JsonObject event = new JsonObject();
+                event.addProperty("id", songId);
+                events.publish(boxId, "song", "deleted", event);
                 
-                if (rowsAffected > 0) {
-                    JsonObject response = new JsonObject();
-                    response.addProperty("message", "Song deleted successfully");
-                    response.addProperty("songId", songId);
-                    return ResponseEntity.ok(response.toString());
-                } else {
-                    return ResponseEntity.status(404)
-                        .body("{\"error\": \"Song not found\"}");
-                }
+                JsonObject response = new JsonObject();
+                response.addProperty("message", "Song deleted successfully");
+                response.addProperty("songId", songId);
+                return ResponseEntity.ok(response.toString());
+            } else {
+                return ResponseEntity.status(404)
+                    .body("{\"error\": \"Song not found\"}");
             }
             
         } catch (SQLException e) {
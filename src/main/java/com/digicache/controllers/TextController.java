@@ -1,6 +1,13 @@
 package com.digicache.controllers;
 
+import com.digicache.services.AppMetrics;
+import com.digicache.services.BoxEventBroker;
+import com.digicache.services.BoxListingCache;
+import com.digicache.services.BoxStats;
 import com.digicache.services.DBInitializer;
+import com.digicache.services.ViewCounters;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -8,45 +15,36 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 
+// DBInitializer.getConnection() points at the configured database only once dbInitializer has run
+@DependsOn("dbInitializer")
 @RestController
 @RequestMapping("/api/text")
 @CrossOrigin(origins = "*")
 public class TextController {
     
     private Connection connection;
+    private final BoxEventBroker events;
+    private final BoxListingCache listings;
+    private final ViewCounters views;
     
-    public TextController() {
+    public TextController(BoxEventBroker events, BoxListingCache listings, ViewCounters views) {
+        this.events = events;
+        this.listings = listings;
+        this.views = views;
         // Initialize database connection
         try {
             connection = DBInitializer.getConnection();
             if (connection == null) {
                 throw new SQLException("Database connection is null");
             }
-            createTextsTableIfNotExists();
         } catch (SQLException e) {
             throw new RuntimeException("Failed to initialize TextController: " + e.getMessage(), e);
         }
     }
     
-    // Create texts table if it doesn't exist
-    private void createTextsTableIfNotExists() throws SQLException {
-        String createTableSQL = """
-            CREATE TABLE IF NOT EXISTS texts (
-                id INTEGER PRIMARY KEY AUTOINCREMENT,
-                box_id TEXT NOT NULL,
-                content TEXT NOT NULL,
-                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-            )
-        """;
-        
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createTableSQL);
-            System.out.println("Texts table created or already exists");
-        }
-    }
-    
     /**
      * Save text to a box
      * POST /api/text/save
@@ -79,20 +77,29 @@ public class TextController {
                 VALUES (?, ?)
             """;
             
-            int generatedId;
-            try (PreparedStatement pstmt = connection.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS)) {
-                pstmt.setString(1, boxId);
-                pstmt.setString(2, content);
-                pstmt.executeUpdate();
-                
-                // Get the generated ID
-                ResultSet rs = pstmt.getGeneratedKeys();
-                if (rs.next()) {
-                    generatedId = rs.getInt(1);
-                } else {
-                    throw new SQLException("Failed to get generated ID");
+            int generatedId = DBInitializer.inTransaction(connection, "texts.insert", () -> {
+                int id;
+                try (PreparedStatement pstmt = connection.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS)) {
+                    pstmt.setString(1, boxId);
+                    pstmt.setString(2, content);
+                    AppMetrics.query("texts.insert", pstmt::executeUpdate);
+                    
+                    // Get the generated ID
+                    ResultSet rs = pstmt.getGeneratedKeys();
+                    if (rs.next()) {
+                        id = rs.getInt(1);
+                    } else {
+                        throw new SQLException("Failed to get generated ID");
+                    }
                 }
-            }
+                BoxStats.record(connection, boxId, BoxStats.Item.TEXT, 1);
+                return id;
+            });
+            
+            JsonObject event = new JsonObject();
+            event.addProperty("id", generatedId);
+            event.addProperty("content", content);
+            events.publish(boxId, "text", "created", event);
             
             JsonObject response = new JsonObject();
             response.addProperty("message", "Text saved successfully");
@@ -113,32 +120,39 @@ public class TextController {
      * GET /api/text/box/{boxId}
      */
     @GetMapping("/box/{boxId}")
-    public ResponseEntity<String> getTextsByBox(@PathVariable String boxId) {
+    public ResponseEntity<byte[]> getTextsByBox(@PathVariable String boxId) {
         try {
-            String selectSQL = "SELECT * FROM texts WHERE box_id = ? ORDER BY created_at DESC";
-            JsonArray textsArray = new JsonArray();
+            byte[] body = listings.get(boxId, BoxListingCache.Listing.TEXTS, () -> loadTexts(boxId));
+            views.record(ViewCounters.Kind.BOX, boxId);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+            
+        } catch (SQLException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Failed to get texts: " + e.getMessage());
+            return ResponseEntity.status(500).contentType(MediaType.APPLICATION_JSON)
+                .body(error.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private byte[] loadTexts(String boxId) throws SQLException {
+        String selectSQL = "SELECT * FROM texts WHERE box_id = ? ORDER BY created_at DESC";
+        JsonArray textsArray = new JsonArray();
+        
+        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+            pstmt.setString(1, boxId);
+            ResultSet rs = AppMetrics.query("texts.select_by_box", pstmt::executeQuery);
             
-            try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
-                pstmt.setString(1, boxId);
-                ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                JsonObject text = new JsonObject();
+                text.addProperty("id", rs.getInt("id"));
+                text.addProperty("boxId", rs.getString("box_id"));
+                text.addProperty("content", rs.getString("content"));
+                text.addProperty("createdAt", rs.getString("created_at"));
                 
-                while (rs.next()) {
-                    JsonObject text = new JsonObject();
-                    text.addProperty("id", rs.getInt("id"));
-                    text.addProperty("boxId", rs.getString("box_id"));
-                    text.addProperty("content", rs.getString("content"));
-                    text.addProperty("createdAt", rs.getString("created_at"));
-                    
-                    textsArray.add(text);
-                }
+                textsArray.add(text);
             }
-            
-            return ResponseEntity.ok(textsArray.toString());
-            
-        } catch (SQLException e) {
-            return ResponseEntity.status(500)
-                .body("{\"error\": \"Failed to get texts: " + e.getMessage() + "\"}");
         }
+        return textsArray.toString().getBytes(StandardCharsets.UTF_8);
     }
     
     /**
@@ -148,21 +162,40 @@ public class TextController {
     @DeleteMapping("/{textId}")
     public ResponseEntity<String> deleteText(@PathVariable int textId) {
         try {
-            String deleteSQL = "DELETE FROM texts WHERE id = ?";
+            // the box id is only needed to tell the box's subscribers
+            String boxId = DBInitializer.inTransaction(connection, "texts.delete", () -> {
+                String owner = null;
+                try (PreparedStatement pstmt = connection.prepareStatement("SELECT box_id FROM texts WHERE id = ?")) {
+                    pstmt.setInt(1, textId);
+                    try (ResultSet rs = AppMetrics.query("texts.select_box", pstmt::executeQuery)) {
+                        if (rs.next()) {
+                            owner = rs.getString("box_id");
+                        }
+                    }
+                }
+                if (owner == null) {
+                    return null;
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement("DELETE FROM texts WHERE id = ?")) {
+                    pstmt.setInt(1, textId);
+                    AppMetrics.query("texts.delete", pstmt::executeUpdate);
+                }
+                BoxStats.record(connection, owner, BoxStats.Item.TEXT, -1);
+                return owner;
+            });
             
-            try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
-                pstmt.setInt(1, textId);
-                int rowsAffected = pstmt.executeUpdate();
+            if (boxId != null) {
+                JsonObject event = new JsonObject();
+                event.addProperty("id", textId);
+                events.publish(boxId, "text", "deleted", event);
                 
-                if (rowsAffected > 0) {
-                    JsonObject response = new JsonObject();
-                    response.addProperty("message", "Text deleted successfully");
-                    response.addProperty("textId", textId);
-                    return ResponseEntity.ok(response.toString());
-                } else {
-                    return ResponseEntity.status(404)
-                        .body("{\"error\": \"Text not found\"}");
-                }
+                JsonObject response = new JsonObject();
+                response.addProperty("message", "Text deleted successfully");
+                response.addProperty("textId", textId);
+                return ResponseEntity.ok(response.toString());
+            } else {
+                return ResponseEntity.status(404)
+                    .body("{\"error\": \"Text not found\"}");
             }
             
         } catch (SQLException e) {
@@ -0,0 +1,87 @@
+package com.digicache.controllers;
+
+import com.digicache.services.ViewCounters;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.sql.SQLException;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/trending")
+@CrossOrigin(origins = "*")
+public class TrendingController {
+
+    private static final int MAX_LIMIT = 100;
+
+    private final ViewCounters viewCounters;
+
+    public TrendingController(ViewCounters viewCounters) {
+        this.viewCounters = viewCounters;
+    }
+
+    /**
+     * Most viewed boxes (text listings opened) in the last hours, most views first.
+     * Views are written every half minute, the newest ones show up after that.
+     * GET /api/trending/boxes?hours=24&limit=20
+     */
+    @GetMapping("/boxes")
+    public ResponseEntity<String> trendingBoxes(
+            @RequestParam(value = "hours", defaultValue = "24") int hours,
+            @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        return trending("boxes", hours, limit);
+    }
+
+    /**
+     * Most viewed images in the last hours, most views first
+     * GET /api/trending/images?hours=24&limit=20
+     */
+    @GetMapping("/images")
+    public ResponseEntity<String> trendingImages(
+            @RequestParam(value = "hours", defaultValue = "24") int hours,
+            @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        return trending("images", hours, limit);
+    }
+
+    private ResponseEntity<String> trending(String what, int hours, int limit) {
+        if (hours < 1 || hours > viewCounters.retentionHours()) {
+            return error(400, "hours must be between 1 and " + viewCounters.retentionHours());
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            return error(400, "limit must be between 1 and " + MAX_LIMIT);
+        }
+        try {
+            boolean boxes = what.equals("boxes");
+            List<ViewCounters.Trending> trending = boxes
+                    ? viewCounters.trendingBoxes(hours, limit)
+                    : viewCounters.trendingImages(hours, limit);
+
+            JsonArray items = new JsonArray();
+            for (ViewCounters.Trending item : trending) {
+                JsonObject entry = new JsonObject();
+                if (!boxes) {
+                    entry.addProperty("imageId", item.id());
+                }
+                entry.addProperty("boxId", item.boxId());
+                entry.addProperty("views", item.views());
+                items.add(entry);
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("hours", hours);
+            response.add(what, items);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(response.toString());
+
+        } catch (SQLException e) {
+            return error(500, "Failed to get trending " + what + ": " + e.getMessage());
+        }
+    }
+
+    private static ResponseEntity<String> error(int status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(error.toString());
+    }
+}
@@ -0,0 +1,192 @@
+package com.digicache.controllers;
+
+import com.digicache.services.ChunkedUploadService;
+import com.digicache.services.ChunkedUploadService.UploadSession;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Resumable (chunked) uploads for images and backgrounds.
+ * 1. POST   /api/uploads                    -> uploadId + chunkSize
+ * 2. PUT    /api/uploads/{id}?offset=N      raw chunk bytes, any order, can run in parallel
+ * 3. GET    /api/uploads/{id}               what's been received / what's missing (to resume)
+ * 4. POST   /api/uploads/{id}/complete      stores the image
+ *    DELETE /api/uploads/{id}               abort
+ */
+@RestController
+@RequestMapping("/api/uploads")
+@CrossOrigin(origins = "*")
+public class UploadController {
+
+    private ChunkedUploadService uploadService;
+
+    public UploadController(ChunkedUploadService uploadService) {
+        this.uploadService = uploadService;
+    }
+
+    /**
+     * Start an upload
+     * POST /api/uploads
+     * Body: { "boxId": "box1", "size": 7340032, "kind": "image" | "background", "chunkSize": 1048576 }
+     */
+    @PostMapping
+    public ResponseEntity<String> initiate(@RequestBody String requestBody, HttpServletRequest httpRequest) {
+        try {
+            JsonObject request = JsonParser.parseString(requestBody).getAsJsonObject();
+            if (!request.has("boxId") || !request.has("size")) {
+                return error(HttpStatus.BAD_REQUEST, "Missing 'boxId' or 'size' field in request body");
+            }
+            String kind = request.has("kind") ? request.get("kind").getAsString() : "image";
+            if (!kind.equals("image") && !kind.equals("background")) {
+                return error(HttpStatus.BAD_REQUEST, "kind must be 'image' or 'background'");
+            }
+            Integer chunkSize = request.has("chunkSize") ? request.get("chunkSize").getAsInt() : null;
+
+            UploadSession session = uploadService.initiate(
+                request.get("boxId").getAsString(),
+                httpRequest.getRemoteAddr(),
+                kind.equals("background"),
+                request.get("size").getAsLong(),
+                chunkSize);
+
+            JsonObject response = new JsonObject();
+            response.addProperty("uploadId", session.uploadId);
+            response.addProperty("chunkSize", session.chunkSize);
+            response.addProperty("totalChunks", session.totalChunks());
+            return ResponseEntity.status(HttpStatus.CREATED).body(response.toString());
+
+        } catch (ChunkedUploadService.TooManyUploadsException e) {
+            return error(HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to start upload: " + e.getMessage());
+        } catch (Exception e) {
+            return error(HttpStatus.BAD_REQUEST, "Invalid request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Upload one chunk
+     * PUT /api/uploads/{uploadId}?offset=0
+     * Body: raw bytes (application/octet-stream)
+     */
+    @PutMapping("/{uploadId}")
+    public ResponseEntity<String> putChunk(
+            @PathVariable String uploadId,
+            @RequestParam("offset") long offset,
+            HttpServletRequest request) {
+        UploadSession session = uploadService.get(uploadId);
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "Upload not found (it may have expired, start a new one)");
+        }
+        try {
+            uploadService.writeChunk(session, offset, request.getInputStream());
+            return ResponseEntity.ok(status(session).toString());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            // completed or aborted while this chunk was being sent
+            return error(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to write chunk: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Upload progress, clients resume by sending the missing offsets
+     * GET /api/uploads/{uploadId}
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<String> getStatus(@PathVariable String uploadId) {
+        UploadSession session = uploadService.get(uploadId);
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "Upload not found (it may have expired, start a new one)");
+        }
+        return ResponseEntity.ok(status(session).toString());
+    }
+
+    /**
+     * Finish an upload once every chunk is in
+     * POST /api/uploads/{uploadId}/complete
+     */
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<String> complete(@PathVariable String uploadId) {
+        UploadSession session = uploadService.get(uploadId);
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "Upload not found (it may have expired, start a new one)");
+        }
+        try {
+            String storedId = uploadService.complete(session);
+
+            JsonObject response = new JsonObject();
+            response.addProperty("boxId", session.boxId);
+            if (session.background) {
+                response.addProperty("message", "Background image uploaded successfully");
+            } else {
+                response.addProperty("message", "Image uploaded successfully");
+                response.addProperty("imageId", storedId);
+            }
+            return ResponseEntity.ok(response.toString());
+
+        } catch (IllegalStateException e) {
+            return error(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.UNSUPPORTED_MEDIA_TYPE, e.getMessage());
+        } catch (IOException | SQLException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to complete upload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abort an upload and free its space
+     * DELETE /api/uploads/{uploadId}
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<String> abort(@PathVariable String uploadId) {
+        UploadSession session = uploadService.get(uploadId);
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "Upload not found");
+        }
+        try {
+            uploadService.abort(session);
+            JsonObject response = new JsonObject();
+            response.addProperty("message", "Upload aborted");
+            response.addProperty("uploadId", uploadId);
+            return ResponseEntity.ok(response.toString());
+        } catch (IllegalStateException e) {
+            return error(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to abort upload: " + e.getMessage());
+        }
+    }
+
+    private JsonObject status(UploadSession session) {
+        JsonArray missing = new JsonArray();
+        session.missingOffsets(100).forEach(missing::add);
+
+        JsonObject response = new JsonObject();
+        response.addProperty("uploadId", session.uploadId);
+        response.addProperty("size", session.size);
+        response.addProperty("chunkSize", session.chunkSize);
+        response.addProperty("receivedBytes", session.receivedBytes());
+        response.addProperty("complete", session.isComplete());
+        response.add("missingOffsets", missing);
+        return response;
+    }
+
+    private ResponseEntity<String> error(HttpStatus status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return ResponseEntity.status(status).body(error.toString());
+    }
+}
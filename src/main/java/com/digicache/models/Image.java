@@ -1,13 +1,26 @@
 package com.digicache.models;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 
 public class Image {
+
+    // Where the bytes come from when they are first asked for (the image store, for rows read by ImageService)
+    @FunctionalInterface
+    public interface DataLoader {
+        byte[] load() throws IOException;
+    }
+
     private String id;
     private String boxId;
     private byte[] data;
+    private DataLoader dataLoader;
     private String contentType;
     private LocalDateTime createdAt;
+    // pixel size and BlurHash, null until computed (and for images that can't be decoded)
+    private Integer width;
+    private Integer height;
+    private String blurHash;
 
     public Image() {
         this.createdAt = LocalDateTime.now();
@@ -45,12 +58,24 @@ public class Image {
         this.boxId = boxId;
     }
 
-    public byte[] getData() {
+    // Loads the bytes on first call if the image was read without them; null if there are none
+    public byte[] getData() throws IOException {
+        if (data == null && dataLoader != null) {
+            data = dataLoader.load();
+            dataLoader = null;
+        }
         return data;
     }
 
     public void setData(byte[] data) {
         this.data = data;
+        this.dataLoader = null;
+    }
+
+    // Metadata-only reads: nothing is loaded unless getData() is called
+    public void setDataLoader(DataLoader dataLoader) {
+        this.data = null;
+        this.dataLoader = dataLoader;
     }
 
     public String getContentType() {
@@ -68,4 +93,28 @@ public class Image {
     public void setCreatedAt(LocalDateTime createdAt) {
         this.createdAt = createdAt;
     }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public void setBlurHash(String blurHash) {
+        this.blurHash = blurHash;
+    }
 }
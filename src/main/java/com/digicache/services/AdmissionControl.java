@@ -0,0 +1,111 @@
+package com.digicache.services;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request budgets per client IP and per box, one set of token buckets per kind of request,
+ * plus a cap on uploads in flight. Checks never block: they either admit the request or say
+ * how long to wait.
+ */
+public class AdmissionControl {
+
+    public enum Budget {
+        READ, WRITE, UPLOAD, SPOTIFY
+    }
+
+    // rate = tokens per second, burst = how many can be spent at once
+    public record Limit(double rate, int burst) {
+    }
+
+    // Buckets of idle clients are dropped once the maps grow past this
+    private static final int MAX_KEYS = 100_000;
+    // A full map is swept at most this often; keys that don't fit meanwhile share one bucket
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Map<Budget, Limit> ipLimits;
+    private final Map<Budget, Limit> boxLimits;
+    private final Map<Budget, Buckets> ipBuckets = new EnumMap<>(Budget.class);
+    private final Map<Budget, Buckets> boxBuckets = new EnumMap<>(Budget.class);
+    private final Semaphore uploadSlots;
+
+    public AdmissionControl(Map<Budget, Limit> ipLimits, Map<Budget, Limit> boxLimits, int maxConcurrentUploads) {
+        this.ipLimits = ipLimits;
+        this.boxLimits = boxLimits;
+        for (Budget budget : Budget.values()) {
+            ipBuckets.put(budget, new Buckets(ipLimits.get(budget)));
+            boxBuckets.put(budget, new Buckets(boxLimits.get(budget)));
+        }
+        this.uploadSlots = new Semaphore(maxConcurrentUploads);
+    }
+
+    // 0 if admitted, otherwise milliseconds until the client may retry
+    public long admitClient(Budget budget, String ip) {
+        return admit(ipBuckets.get(budget), ipLimits.get(budget), ip, budget, "ip");
+    }
+
+    public long admitBox(Budget budget, String boxId) {
+        return admit(boxBuckets.get(budget), boxLimits.get(budget), boxId, budget, "box");
+    }
+
+    // Non-blocking; every true must be paired with endUpload()
+    public boolean tryStartUpload() {
+        if (uploadSlots.tryAcquire()) {
+            return true;
+        }
+        AppMetrics.admissionRejected(Budget.UPLOAD.name().toLowerCase(), "in_flight");
+        return false;
+    }
+
+    public void endUpload() {
+        uploadSlots.release();
+    }
+
+    private long admit(Buckets buckets, Limit limit, String key, Budget budget, String scope) {
+        if (limit == null || key == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long waitNanos = buckets.get(key, limit, now).tryAcquire(now);
+        if (waitNanos == 0) {
+            return 0;
+        }
+        AppMetrics.admissionRejected(budget.name().toLowerCase(), scope);
+        return Math.max(1, waitNanos / 1_000_000);
+    }
+
+    /**
+     * Buckets of one budget, keyed by IP or box id. The map never grows past MAX_KEYS: when it
+     * is full, idle buckets are swept out at most once per SWEEP_INTERVAL_NANOS, and new keys
+     * that still don't fit are charged to a single shared overflow bucket.
+     */
+    private static final class Buckets {
+        private final ConcurrentHashMap<String, TokenBucket> byKey = new ConcurrentHashMap<>();
+        private final TokenBucket overflow;
+        private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+        Buckets(Limit limit) {
+            this.overflow = limit != null ? new TokenBucket(limit.rate(), limit.burst()) : null;
+        }
+
+        TokenBucket get(String key, Limit limit, long now) {
+            TokenBucket bucket = byKey.get(key);
+            if (bucket != null) {
+                return bucket;
+            }
+            if (byKey.size() >= MAX_KEYS) {
+                long due = nextSweep.get();
+                if (now - due >= 0 && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+                    byKey.values().removeIf(b -> b.isFull(now));
+                }
+                if (byKey.size() >= MAX_KEYS) {
+                    return overflow;
+                }
+            }
+            return byKey.computeIfAbsent(key, k -> new TokenBucket(limit.rate(), limit.burst()));
+        }
+    }
+}
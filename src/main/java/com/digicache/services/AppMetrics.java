@@ -0,0 +1,155 @@
+package com.digicache.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Static helpers for recording application metrics.
+ * Services here are plain objects (not Spring beans) so they record straight into
+ * Micrometer's global registry, which Spring Boot binds to the Prometheus registry.
+ * Everything shows up at /actuator/prometheus under the "digicache_" prefix.
+ * Timings taken on a request thread also go into that request's RequestTrace.
+ */
+public final class AppMetrics {
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+
+    private AppMetrics() {
+    }
+
+    @FunctionalInterface
+    public interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface IoCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Time a single SQL statement. The statement name should be short and stable
+     * (e.g. "images.insert") since it becomes a tag value.
+     */
+    public static <T> T query(String statement, SqlCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            return call.call();
+        } catch (SQLException e) {
+            outcome = "error";
+            throw e;
+        } finally {
+            RequestTrace.record("db", statement, start);
+            record("digicache.db.query", start, "statement", statement, "outcome", outcome);
+        }
+    }
+
+    // Time a whole transaction (begin -> commit/rollback)
+    public static <T> T transaction(String name, SqlCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        String outcome = "commit";
+        try {
+            return call.call();
+        } catch (SQLException | RuntimeException e) {
+            outcome = "rollback";
+            throw e;
+        } finally {
+            RequestTrace.record("tx", name, start);
+            record("digicache.db.transaction", start, "name", name, "outcome", outcome);
+        }
+    }
+
+    // Time a file system operation on the image store or temp files
+    public static <T> T fileIo(String operation, IoCall<T> call) throws IOException {
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            return call.call();
+        } catch (IOException e) {
+            outcome = "error";
+            throw e;
+        } finally {
+            RequestTrace.record("file", operation, start);
+            record("digicache.file.io", start, "operation", operation, "outcome", outcome);
+        }
+    }
+
+    // Size of an uploaded file, kind is "image" or "background"
+    public static void uploadBytes(String kind, long bytes) {
+        DistributionSummary.builder("digicache.upload.size")
+            .baseUnit("bytes")
+            .tag("kind", kind)
+            .register(registry)
+            .record(bytes);
+    }
+
+    // Latency of an outbound Spotify call, status is the HTTP code or "io_error"
+    public static void spotifyCall(String operation, long startNanos, String status) {
+        RequestTrace.record("spotify", operation, startNanos);
+        record("digicache.spotify.requests", startNanos, "operation", operation, "status", status);
+    }
+
+    public static void spotifyError(String operation, String status) {
+        Counter.builder("digicache.spotify.errors")
+            .tag("operation", operation)
+            .tag("status", status)
+            .register(registry)
+            .increment();
+    }
+
+    // Hit/miss for any in-process cache; hit rate = hits / (hits + misses)
+    public static void cacheAccess(String cache, boolean hit) {
+        Counter.builder("digicache.cache.requests")
+            .tag("cache", cache)
+            .tag("result", hit ? "hit" : "miss")
+            .register(registry)
+            .increment();
+    }
+
+    // A request turned away by admission control; scope is "ip", "box" or "in_flight"
+    public static void admissionRejected(String budget, String scope) {
+        Counter.builder("digicache.admission.rejected")
+            .tag("budget", budget)
+            .tag("scope", scope)
+            .register(registry)
+            .increment();
+    }
+
+    // A file the orphan sweeper removed from the image store
+    public static void orphanDeleted(long bytes) {
+        DistributionSummary.builder("digicache.gc.deleted")
+            .baseUnit("bytes")
+            .register(registry)
+            .record(bytes);
+    }
+
+    // Views written by ViewCounters.flush()
+    public static void viewsFlushed(long views) {
+        Counter.builder("digicache.views.flushed")
+            .register(registry)
+            .increment(views);
+    }
+
+    // A view not counted because too many different ids were waiting for the next flush
+    public static void viewDropped(String kind) {
+        Counter.builder("digicache.views.dropped")
+            .tag("kind", kind)
+            .register(registry)
+            .increment();
+    }
+
+    private static void record(String name, long startNanos, String... tags) {
+        Timer.builder(name)
+            .tags(tags)
+            .register(registry)
+            .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,164 @@
+package com.digicache.services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Online backups of the database and the image store, taken while the app keeps serving.
+ *
+ * Layout under the backup directory:
+ *   db/digicache-<timestamp>.db   one consistent snapshot per run (the newest `keep` are kept)
+ *   images/                       append-only mirror of the image store
+ *
+ * The database snapshot is a VACUUM INTO on a connection of its own. With the database in
+ * WAL mode that's a single read transaction: it sees one consistent state and writers on
+ * the shared connection carry on while it runs.
+ *
+ * Images are copied incrementally: only files modified since the previous run started
+ * (the watermark in images/.watermark) are copied. Since the watermark is taken before the
+ * snapshot, every file the snapshot refers to is in the mirror once the run finishes.
+ * Files deleted from the store stay in the mirror, so older snapshots can still be restored.
+ *
+ * Snapshots are SQLite only: a database server (H2 server, PostgreSQL) is backed up with its
+ * own tools, and only the image mirror is kept here.
+ */
+public class BackupService {
+
+    private static final Logger log = LoggerFactory.getLogger(BackupService.class);
+
+    private static final DateTimeFormatter SNAPSHOT_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path imageStore;
+    private final Path backupDir;
+    private final int keep;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public record Report(Path snapshot, long snapshotBytes, int imagesCopied, long imageBytesCopied, long millis) {
+    }
+
+    public BackupService(String imageStore, String backupDir, int keep) {
+        this.imageStore = Paths.get(imageStore);
+        this.backupDir = Paths.get(backupDir);
+        this.keep = Math.max(1, keep);
+    }
+
+    /**
+     * Take a backup now. Returns null if one is already running.
+     */
+    public Report run() throws IOException, SQLException {
+        if (!running.compareAndSet(false, true)) {
+            return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            Path images = Files.createDirectories(backupDir.resolve("images"));
+            Path watermarkFile = images.resolve(".watermark");
+            long watermark = Files.exists(watermarkFile) ? Long.parseLong(Files.readString(watermarkFile).trim()) : 0;
+
+            boolean snapshots = DBInitializer.dialect() == SqlDialect.SQLITE;
+            Path snapshot = snapshots ? snapshotDatabase() : null;
+            long[] copied = copyImagesSince(watermark, images);
+
+            // only move the watermark once everything up to it is safely copied
+            Files.writeString(watermarkFile, Long.toString(start));
+            if (snapshots) {
+                pruneSnapshots();
+            }
+
+            Report report = new Report(snapshot, snapshot != null ? Files.size(snapshot) : 0, (int) copied[0], copied[1], System.currentTimeMillis() - start);
+            log.atInfo()
+                    .addKeyValue("snapshot", snapshot != null ? snapshot.getFileName() : null)
+                    .addKeyValue("snapshotBytes", report.snapshotBytes())
+                    .addKeyValue("imagesCopied", report.imagesCopied())
+                    .addKeyValue("imageBytesCopied", report.imageBytesCopied())
+                    .addKeyValue("ms", report.millis())
+                    .log("Backup finished");
+            return report;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Path snapshotDatabase() throws IOException, SQLException {
+        Path dbDir = Files.createDirectories(backupDir.resolve("db"));
+        String name = "digicache-" + LocalDateTime.now().format(SNAPSHOT_NAME);
+        Path partial = dbDir.resolve(name + ".db.tmp");
+        Path snapshot = dbDir.resolve(name + ".db");
+        Files.deleteIfExists(partial); // VACUUM INTO refuses to overwrite
+
+        try (Connection connection = DBInitializer.openConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = 10000");
+            AppMetrics.transaction("backup.snapshot", () -> statement.execute("VACUUM INTO '" + partial.toString().replace("'", "''") + "'"));
+        } catch (SQLException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        return snapshot;
+    }
+
+    // Returns {files copied, bytes copied}
+    private long[] copyImagesSince(long watermark, Path mirror) throws IOException {
+        long files = 0;
+        long bytes = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(imageStore)) {
+            for (Path file : entries) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".")) {
+                    continue; // in-flight temp files (e.g. the optimizer's)
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // deleted since the listing
+                }
+                // subdirectories hold in-progress uploads and caches, not stored data
+                if (!attributes.isRegularFile() || attributes.lastModifiedTime().toMillis() < watermark) {
+                    continue;
+                }
+                Path partial = mirror.resolve("." + name + ".tmp");
+                try {
+                    AppMetrics.fileIo("backup.copy", () -> Files.copy(file, partial, StandardCopyOption.REPLACE_EXISTING));
+                    long size = Files.size(partial);
+                    Files.setLastModifiedTime(partial, attributes.lastModifiedTime());
+                    Files.move(partial, mirror.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    files++;
+                    bytes += size;
+                } catch (NoSuchFileException e) {
+                    Files.deleteIfExists(partial); // replaced/removed while we were copying
+                }
+            }
+        }
+        return new long[] {files, bytes};
+    }
+
+    private void pruneSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(backupDir.resolve("db"), "digicache-*.db")) {
+            entries.forEach(snapshots::add);
+        }
+        snapshots.sort(null); // timestamped names sort oldest first
+        for (int i = 0; i < snapshots.size() - keep; i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.digicache.services;
+
+import com.google.gson.JsonObject;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes box changes (image/text/song/background) to Server-Sent Events subscribers.
+ *
+ * Writers call publish() after their transaction commits; it never blocks: the event is
+ * serialized once and offered to each subscriber's small queue, and a few sender threads
+ * drain the queues into the connections. A subscriber that falls more than QUEUE_CAPACITY
+ * events behind has its backlog replaced by a single "resync" event (refetch the listings).
+ * Idle connections cost no threads (async servlet), just a heartbeat comment now and then.
+ */
+public class BoxEventBroker {
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long HEARTBEAT_SECONDS = 20;
+    // Clients (EventSource) reconnect on their own after this, so it only bounds stale connections
+    private static final long CONNECTION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    // In-process code that needs to know about writes (e.g. to drop cached listings)
+    @FunctionalInterface
+    public interface Listener {
+        void onChange(String boxId, String type, String action);
+    }
+
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final int maxSubscribers;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService heartbeat;
+
+    public BoxEventBroker(int maxSubscribers, int senderThreads) {
+        this.maxSubscribers = maxSubscribers;
+        this.senders = Executors.newFixedThreadPool(senderThreads, daemon("sse-sender"));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(daemon("sse-heartbeat"));
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open an event stream for a box. Returns null when the subscriber limit is reached.
+     * We don't keep history, so a client reconnecting with Last-Event-ID is told to resync.
+     */
+    public SseEmitter subscribe(String boxId, String lastEventId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(CONNECTION_TIMEOUT_MILLIS);
+        Subscriber subscriber = new Subscriber(boxId, emitter);
+        // add inside compute() so it can't race with close() dropping an emptied set
+        subscribers.compute(boxId, (id, set) -> {
+            Set<Subscriber> result = set != null ? set : ConcurrentHashMap.newKeySet();
+            result.add(subscriber);
+            return result;
+        });
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(error -> subscriber.close());
+
+        JsonObject hello = new JsonObject();
+        hello.addProperty("boxId", boxId);
+        subscriber.offer(SseEmitter.event()
+                .name(lastEventId != null ? "resync" : "ready")
+                .id(Long.toString(sequence.get()))
+                .reconnectTime(3000)
+                .data(hello.toString()));
+        return emitter;
+    }
+
+    /**
+     * Tell a box's subscribers about a committed change.
+     * type: image | text | song | background, action: created | updated | deleted.
+     * data holds the item's fields (ids, content...), boxId/type/action are added here.
+     */
+    public void publish(String boxId, String type, String action, JsonObject data) {
+        for (Listener listener : listeners) {
+            listener.onChange(boxId, type, action);
+        }
+        Set<Subscriber> boxSubscribers = subscribers.get(boxId);
+        if (boxSubscribers == null || boxSubscribers.isEmpty()) {
+            return;
+        }
+        JsonObject payload = data != null ? data.deepCopy() : new JsonObject();
+        payload.addProperty("boxId", boxId);
+        payload.addProperty("type", type);
+        payload.addProperty("action", action);
+        String json = payload.toString();
+        String id = Long.toString(sequence.incrementAndGet());
+        for (Subscriber subscriber : boxSubscribers) {
+            subscriber.offer(SseEmitter.event().name(type).id(id).data(json));
+        }
+    }
+
+    // Listeners run synchronously on the publishing thread, so they must be quick
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public int subscriberCount() {
+        return subscriberCount.get();
+    }
+
+    private void sendHeartbeats() {
+        for (Set<Subscriber> boxSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : boxSubscribers) {
+                if (subscriber.queue.isEmpty()) {
+                    subscriber.offer(SseEmitter.event().comment("keepalive"));
+                }
+            }
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        final String boxId;
+        final SseEmitter emitter;
+        final ArrayBlockingQueue<SseEmitter.SseEventBuilder> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        Subscriber(String boxId, SseEmitter emitter) {
+            this.boxId = boxId;
+            this.emitter = emitter;
+        }
+
+        void offer(SseEmitter.SseEventBuilder event) {
+            if (closed.get()) {
+                return;
+            }
+            if (!queue.offer(event)) {
+                // too far behind: drop the backlog, the client refetches instead
+                queue.clear();
+                JsonObject resync = new JsonObject();
+                resync.addProperty("boxId", boxId);
+                queue.offer(SseEmitter.event().name("resync").id(Long.toString(sequence.get())).data(resync.toString()));
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                senders.execute(this);
+            }
+        }
+
+        // Drains the queue on a sender thread; at most one drain per subscriber at a time
+        @Override
+        public void run() {
+            try {
+                SseEmitter.SseEventBuilder event;
+                while (!closed.get() && (event = queue.poll()) != null) {
+                    emitter.send(event);
+                }
+            } catch (IOException | IllegalStateException e) {
+                close(); // client went away
+                emitter.completeWithError(e);
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty() && !closed.get() && scheduled.compareAndSet(false, true)) {
+                    senders.execute(this);
+                }
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                queue.clear();
+                subscriberCount.decrementAndGet();
+                subscribers.computeIfPresent(boxId, (id, set) -> {
+                    set.remove(this);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
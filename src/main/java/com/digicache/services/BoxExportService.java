@@ -0,0 +1,213 @@
+package com.digicache.services;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a whole box as a ZIP: images/<id>.<ext>, the background, and manifest.json
+ * (image list, texts, songs). Everything goes straight into the response stream, so
+ * memory stays flat no matter how big the box is.
+ *
+ * Images are already compressed, so their entries are written with NO_COMPRESSION
+ * (stored deflate blocks): one read pass and no CPU spent recompressing. Only the
+ * manifest is actually deflated.
+ */
+public class BoxExportService {
+
+    // Texts/songs are read in keyset pages so a slow client only ever holds a short-lived cursor
+    private static final int PAGE_SIZE = 500;
+
+    private final Connection connection;
+
+    private record ImageEntry(String id, Path path, String contentType, String createdAt) {
+    }
+
+    public BoxExportService(Connection connection) {
+        this.connection = connection;
+    }
+
+    public boolean boxExists(String boxId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM box_ids WHERE id = ?")) {
+            stmt.setString(1, boxId);
+            try (ResultSet rs = AppMetrics.query("box_ids.exists", stmt::executeQuery)) {
+                return rs.next();
+            }
+        }
+    }
+
+    public void export(String boxId, OutputStream out) throws IOException, SQLException {
+        List<ImageEntry> images = listImages(boxId);
+        Path background = backgroundPath(boxId);
+
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        zip.setLevel(Deflater.NO_COMPRESSION);
+
+        List<String> missing = new ArrayList<>();
+        for (ImageEntry image : images) {
+            if (!writeFile(zip, "images/" + image.id() + ImageService.getFileExtensionForContentType(image.contentType()), image.path())) {
+                missing.add(image.id());
+            }
+        }
+        String backgroundName = null;
+        if (background != null) {
+            String name = "background" + extensionOf(background);
+            if (writeFile(zip, name, background)) {
+                backgroundName = name;
+            }
+        }
+
+        zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+        zip.putNextEntry(new ZipEntry("manifest.json"));
+        // the writer must not close the zip stream, so it's flushed rather than closed
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+        json.setIndent("  ");
+        json.beginObject();
+        json.name("boxId").value(boxId);
+        json.name("exportedAt").value(Instant.now().toString());
+        json.name("background").value(backgroundName);
+        json.name("images").beginArray();
+        for (ImageEntry image : images) {
+            json.beginObject();
+            json.name("id").value(image.id());
+            json.name("file").value(missing.contains(image.id()) ? null
+                    : "images/" + image.id() + ImageService.getFileExtensionForContentType(image.contentType()));
+            json.name("contentType").value(image.contentType());
+            json.name("createdAt").value(image.createdAt());
+            json.endObject();
+        }
+        json.endArray();
+        json.name("texts").beginArray();
+        writeTexts(json, boxId);
+        json.endArray();
+        json.name("songs").beginArray();
+        writeSongs(json, boxId);
+        json.endArray();
+        json.endObject();
+        json.flush();
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+    }
+
+    // Only metadata is held in memory (about a hundred bytes per image), never file contents
+    private List<ImageEntry> listImages(String boxId) throws SQLException {
+        List<ImageEntry> images = new ArrayList<>();
+        String sql = "SELECT id, image_path, content_type, created_at FROM images WHERE box_id = ? ORDER BY created_at";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, boxId);
+            try (ResultSet rs = AppMetrics.query("images.select_by_box", stmt::executeQuery)) {
+                while (rs.next()) {
+                    String path = rs.getString("image_path");
+                    images.add(new ImageEntry(rs.getString("id"), path != null ? Paths.get(path) : null,
+                            rs.getString("content_type"), rs.getString("created_at")));
+                }
+            }
+        }
+        return images;
+    }
+
+    private Path backgroundPath(String boxId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT image_path FROM background_images WHERE box_id = ?")) {
+            stmt.setString(1, boxId);
+            try (ResultSet rs = AppMetrics.query("background_images.select", stmt::executeQuery)) {
+                if (rs.next() && rs.getString("image_path") != null) {
+                    return Paths.get(rs.getString("image_path"));
+                }
+            }
+        }
+        return null;
+    }
+
+    // Returns false (and writes nothing) if the file is gone
+    private boolean writeFile(ZipOutputStream zip, String name, Path file) throws IOException {
+        if (file == null || !Files.isRegularFile(file)) {
+            return false;
+        }
+        ZipEntry entry = new ZipEntry(name);
+        entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+        zip.putNextEntry(entry);
+        AppMetrics.fileIo("export.copy", () -> Files.copy(file, zip));
+        zip.closeEntry();
+        return true;
+    }
+
+    private void writeTexts(JsonWriter json, String boxId) throws SQLException, IOException {
+        String key = DBInitializer.dialect().insertionOrderKey("id");
+        String sql = "SELECT " + key + " AS row_key, id, content, created_at FROM texts WHERE box_id = ? AND " + key + " > ? ORDER BY " + key + " LIMIT " + PAGE_SIZE;
+        long after = 0;
+        int rows;
+        do {
+            rows = 0;
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, boxId);
+                stmt.setLong(2, after);
+                try (ResultSet rs = AppMetrics.query("texts.export_page", stmt::executeQuery)) {
+                    while (rs.next()) {
+                        json.beginObject();
+                        json.name("id").value(rs.getInt("id"));
+                        json.name("content").value(rs.getString("content"));
+                        json.name("createdAt").value(rs.getString("created_at"));
+                        json.endObject();
+                        after = rs.getLong("row_key");
+                        rows++;
+                    }
+                }
+            }
+        } while (rows == PAGE_SIZE);
+    }
+
+    private void writeSongs(JsonWriter json, String boxId) throws SQLException, IOException {
+        String key = DBInitializer.dialect().insertionOrderKey("id");
+        String sql = "SELECT " + key + " AS row_key, spotify_id, name, artist, album, album_cover_url, preview_url, spotify_url, created_at "
+                + "FROM spotify_songs WHERE box_id = ? AND " + key + " > ? ORDER BY " + key + " LIMIT " + PAGE_SIZE;
+        long after = 0;
+        int rows;
+        do {
+            rows = 0;
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, boxId);
+                stmt.setLong(2, after);
+                try (ResultSet rs = AppMetrics.query("spotify_songs.export_page", stmt::executeQuery)) {
+                    while (rs.next()) {
+                        json.beginObject();
+                        json.name("spotifyId").value(rs.getString("spotify_id"));
+                        json.name("name").value(rs.getString("name"));
+                        json.name("artist").value(rs.getString("artist"));
+                        json.name("album").value(rs.getString("album"));
+                        json.name("albumCoverUrl").value(rs.getString("album_cover_url"));
+                        json.name("previewUrl").value(rs.getString("preview_url"));
+                        json.name("spotifyUrl").value(rs.getString("spotify_url"));
+                        json.name("createdAt").value(rs.getString("created_at"));
+                        json.endObject();
+                        after = rs.getLong("row_key");
+                        rows++;
+                    }
+                }
+            }
+        } while (rows == PAGE_SIZE);
+    }
+
+    private static String extensionOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "" : name.substring(dot);
+    }
+}
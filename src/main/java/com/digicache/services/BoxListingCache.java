@@ -0,0 +1,147 @@
+package com.digicache.services;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Read-through cache of per-box listings (texts, songs, images), holding the serialized
+ * JSON bytes so a hit is one map lookup and the bytes go straight to the response.
+ *
+ * Entries are dropped on the BoxEventBroker events for their box, i.e. right after a write
+ * commits. A read that loaded from the database before that write but stores after it is
+ * caught by a version check: every invalidation bumps a counter (striped by key), and a
+ * loaded listing is only kept if its counter didn't move while it was being loaded.
+ *
+ * Bounded by the total size of the cached bytes; over the bound, entries not read since the
+ * last eviction pass go first (second-chance / CLOCK).
+ */
+public class BoxListingCache {
+
+    public enum Listing {
+        TEXTS, SONGS, IMAGES
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        byte[] load() throws SQLException;
+    }
+
+    private static final int VERSION_STRIPES = 4096;
+
+    private record Key(String boxId, Listing listing) {
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        volatile boolean referenced;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final long maxBytes;
+
+    // maxBytes <= 0 turns caching off (every get loads)
+    public BoxListingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Drop a box's cached listings whenever the broker reports a change to it
+    public void attachTo(BoxEventBroker events) {
+        events.addListener((boxId, type, action) -> {
+            switch (type) {
+                case "text" -> invalidate(boxId, Listing.TEXTS);
+                case "song" -> invalidate(boxId, Listing.SONGS);
+                // the image listing says whether the box has a background
+                case "image", "background" -> invalidate(boxId, Listing.IMAGES);
+                default -> {
+                    for (Listing listing : Listing.values()) {
+                        invalidate(boxId, listing);
+                    }
+                }
+            }
+        });
+    }
+
+    public byte[] get(String boxId, Listing listing, Loader loader) throws SQLException {
+        Key key = new Key(boxId, listing);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            AppMetrics.cacheAccess(cacheName(listing), true);
+            return entry.bytes;
+        }
+        AppMetrics.cacheAccess(cacheName(listing), false);
+
+        int stripe = stripe(key);
+        long version = versions.get(stripe);
+        byte[] bytes = loader.load();
+        if (maxBytes <= 0 || bytes.length > maxBytes / 8) {
+            return bytes; // not worth pushing out a lot of smaller listings
+        }
+        Entry loaded = new Entry(bytes);
+        Entry previous = entries.put(key, loaded);
+        totalBytes.addAndGet(bytes.length - (previous != null ? previous.bytes.length : 0));
+        // invalidated while we were loading: what we read may predate the write
+        if (versions.get(stripe) != version) {
+            remove(key, loaded);
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+        return bytes;
+    }
+
+    public void invalidate(String boxId, Listing listing) {
+        Key key = new Key(boxId, listing);
+        versions.incrementAndGet(stripe(key));
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    public long sizeInBytes() {
+        return totalBytes.get();
+    }
+
+    private void remove(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            totalBytes.addAndGet(-entry.bytes.length);
+        }
+    }
+
+    // Two passes at most: the first clears the referenced bits it passes over
+    private synchronized void evict() {
+        for (int pass = 0; pass < 2 && totalBytes.get() > maxBytes; pass++) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext() && totalBytes.get() > maxBytes) {
+                Map.Entry<Key, Entry> candidate = it.next();
+                Entry entry = candidate.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else {
+                    remove(candidate.getKey(), entry);
+                }
+            }
+        }
+    }
+
+    private static int stripe(Key key) {
+        return (key.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+    }
+
+    private static String cacheName(Listing listing) {
+        return "box_listing." + listing.name().toLowerCase();
+    }
+}
@@ -0,0 +1,238 @@
+package com.digicache.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-box counts of images, texts and songs plus the last time something was added (or the box
+ * was created), kept in box_stats so overview pages read one row per box instead of counting
+ * every listing.
+ *
+ * Writers call record() inside the transaction that inserts or deletes the content, so the
+ * counts move together with the rows. rebuild() recounts everything from the content tables
+ * and repairs rows that drifted (content written around the app, or by an older version).
+ */
+public class BoxStats {
+
+    public enum Item {
+        IMAGE("image_count"), TEXT("text_count"), SONG("song_count");
+
+        private final String column;
+
+        Item(String column) {
+            this.column = column;
+        }
+    }
+
+    public enum Sort {
+        // most items first
+        ACTIVE("item_count DESC, box_id"),
+        // most recently added to first
+        RECENT("last_activity DESC NULLS LAST, box_id");
+
+        private final String orderBy;
+
+        Sort(String orderBy) {
+            this.orderBy = orderBy;
+        }
+    }
+
+    public record Stats(String boxId, int images, int texts, int songs, Timestamp lastActivity) {
+        public int items() {
+            return images + texts + songs;
+        }
+    }
+
+    public record RebuildResult(int boxes, int repaired, int removed) {
+    }
+
+    private final Connection connection;
+
+    public BoxStats(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Count delta items of one kind in (positive) or out of (negative) a box. Must run inside
+     * the transaction that wrote the content. Adding also moves the box's last activity.
+     */
+    public static void record(Connection connection, String boxId, Item item, int delta) throws SQLException {
+        if (delta == 0) {
+            return;
+        }
+        String update = "UPDATE box_stats SET " + item.column + " = " + item.column + " + ?, item_count = item_count + ?"
+                + (delta > 0 ? ", last_activity = ?" : "") + " WHERE box_id = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(update)) {
+            stmt.setInt(1, delta);
+            stmt.setInt(2, delta);
+            int i = 3;
+            if (delta > 0) {
+                stmt.setTimestamp(i++, Timestamp.valueOf(LocalDateTime.now()));
+            }
+            stmt.setString(i, boxId);
+            if (AppMetrics.query("box_stats.update", stmt::executeUpdate) == 0) {
+                // first content in this box: add its row, then count again
+                ensure(connection, List.of(boxId));
+                AppMetrics.query("box_stats.update", stmt::executeUpdate);
+            }
+        }
+    }
+
+    // A zero row for each box that has none yet (new boxes show up in the stats too)
+    public static void ensure(Connection connection, Collection<String> boxIds) throws SQLException {
+        String insert = DBInitializer.dialect().insertIgnore("box_stats", "box_id", "box_id", "last_activity");
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        try (PreparedStatement stmt = connection.prepareStatement(insert)) {
+            for (String boxId : boxIds) {
+                stmt.setString(1, boxId);
+                stmt.setTimestamp(2, now);
+                stmt.addBatch();
+            }
+            AppMetrics.query("box_stats.insert", stmt::executeBatch);
+        }
+    }
+
+    public List<Stats> list(Sort sort, int limit, int offset) throws SQLException {
+        String sql = "SELECT box_id, image_count, text_count, song_count, last_activity FROM box_stats "
+                + "ORDER BY " + sort.orderBy + " LIMIT ? OFFSET ?";
+        List<Stats> stats = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, limit);
+            stmt.setInt(2, offset);
+            try (ResultSet rs = AppMetrics.query("box_stats.select_" + sort.name().toLowerCase(Locale.ROOT), stmt::executeQuery)) {
+                while (rs.next()) {
+                    stats.add(read(rs));
+                }
+            }
+        }
+        return stats;
+    }
+
+    public int boxCount() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM box_stats");
+             ResultSet rs = AppMetrics.query("box_stats.count", stmt::executeQuery)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Recount every box from the content tables and fix the rows that differ. Runs as one
+     * transaction, so writes from this instance wait for it (a few hundred ms on a large
+     * database); that's why it's a nightly job and not something requests trigger.
+     * Last activity only moves forward: it's when content was last added, and the newest
+     * content may since have been deleted.
+     */
+    public RebuildResult rebuild() throws SQLException {
+        return DBInitializer.inTransaction(connection, "box_stats.rebuild", () -> {
+            Map<String, Stats> actual = new HashMap<>();
+            try (Statement stmt = connection.createStatement()) {
+                try (ResultSet rs = AppMetrics.query("box_ids.select_all", () -> stmt.executeQuery("SELECT id FROM box_ids"))) {
+                    while (rs.next()) {
+                        actual.put(rs.getString(1), new Stats(rs.getString(1), 0, 0, 0, null));
+                    }
+                }
+                for (Item item : Item.values()) {
+                    String table = switch (item) {
+                        case IMAGE -> "images";
+                        case TEXT -> "texts";
+                        case SONG -> "spotify_songs";
+                    };
+                    String sql = "SELECT box_id, COUNT(*), MAX(created_at) FROM " + table + " WHERE box_id IS NOT NULL GROUP BY box_id";
+                    try (ResultSet rs = AppMetrics.query("box_stats.count_" + table, () -> stmt.executeQuery(sql))) {
+                        while (rs.next()) {
+                            String boxId = rs.getString(1);
+                            int count = rs.getInt(2);
+                            Timestamp newest = rs.getTimestamp(3);
+                            Stats current = actual.getOrDefault(boxId, new Stats(boxId, 0, 0, 0, null));
+                            actual.put(boxId, new Stats(boxId,
+                                    item == Item.IMAGE ? count : current.images(),
+                                    item == Item.TEXT ? count : current.texts(),
+                                    item == Item.SONG ? count : current.songs(),
+                                    later(current.lastActivity(), newest)));
+                        }
+                    }
+                }
+            }
+
+            Map<String, Stats> stored = new HashMap<>();
+            Set<String> totalsOff = new HashSet<>();
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT box_id, image_count, text_count, song_count, item_count, last_activity FROM box_stats");
+                 ResultSet rs = AppMetrics.query("box_stats.select_all", stmt::executeQuery)) {
+                while (rs.next()) {
+                    Stats stats = read(rs);
+                    stored.put(stats.boxId(), stats);
+                    if (rs.getInt("item_count") != stats.items()) {
+                        totalsOff.add(stats.boxId());
+                    }
+                }
+            }
+
+            int repaired = 0;
+            String upsert = DBInitializer.dialect().upsert("box_stats", "box_id",
+                    "box_id", "image_count", "text_count", "song_count", "item_count", "last_activity");
+            try (PreparedStatement stmt = connection.prepareStatement(upsert)) {
+                for (Stats stats : actual.values()) {
+                    Stats old = stored.get(stats.boxId());
+                    Timestamp lastActivity = later(stats.lastActivity(), old != null ? old.lastActivity() : null);
+                    Stats fixed = new Stats(stats.boxId(), stats.images(), stats.texts(), stats.songs(), lastActivity);
+                    if (fixed.equals(old) && !totalsOff.contains(fixed.boxId())) {
+                        continue;
+                    }
+                    stmt.setString(1, fixed.boxId());
+                    stmt.setInt(2, fixed.images());
+                    stmt.setInt(3, fixed.texts());
+                    stmt.setInt(4, fixed.songs());
+                    stmt.setInt(5, fixed.items());
+                    stmt.setTimestamp(6, fixed.lastActivity());
+                    stmt.addBatch();
+                    repaired++;
+                }
+                if (repaired > 0) {
+                    AppMetrics.query("box_stats.upsert_batch", stmt::executeBatch);
+                }
+            }
+
+            // rows for boxes that have neither content nor a box_ids entry any more
+            int removed = 0;
+            try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM box_stats WHERE box_id = ?")) {
+                for (String boxId : stored.keySet()) {
+                    if (!actual.containsKey(boxId)) {
+                        stmt.setString(1, boxId);
+                        stmt.addBatch();
+                        removed++;
+                    }
+                }
+                if (removed > 0) {
+                    AppMetrics.query("box_stats.delete_batch", stmt::executeBatch);
+                }
+            }
+            return new RebuildResult(actual.size(), repaired, removed);
+        });
+    }
+
+    private static Stats read(ResultSet rs) throws SQLException {
+        return new Stats(rs.getString("box_id"), rs.getInt("image_count"), rs.getInt("text_count"),
+                rs.getInt("song_count"), rs.getTimestamp("last_activity"));
+    }
+
+    private static Timestamp later(Timestamp a, Timestamp b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.after(b) ? a : b;
+    }
+}
@@ -0,0 +1,326 @@
+package com.digicache.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resumable uploads: initiate, PUT chunks by offset (in any order, in parallel),
+ * ask what's missing, then complete.
+ *
+ * Each upload gets a file pre-allocated to its final size under <image store>/uploads/,
+ * chunks are written straight into it with positional FileChannel writes, and on
+ * completion the file is moved into the store. Sessions live in memory, so a restart
+ * means clients start over (they get a 404 on their next PUT).
+ *
+ * Since every open session holds disk space for its full size, the number of open sessions
+ * and the bytes they reserve are capped overall and per client IP. Sessions untouched for
+ * sessionTtl are expired by UploadExpiryScheduler.
+ */
+public class ChunkedUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedUploadService.class);
+
+    public static final long MAX_UPLOAD_SIZE = 50L * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private final ImageService imageService;
+    private final Path uploadDir;
+    private final Limits limits;
+    private final long sessionTtlMillis;
+
+    // Caps on open sessions and the bytes they reserve, overall and per client IP
+    public record Limits(int maxSessions, int maxSessionsPerIp, long maxBytes, long maxBytesPerIp) {
+    }
+
+    // An initiate that would go over a Limits cap; the client should finish or abort an upload first
+    public static class TooManyUploadsException extends RuntimeException {
+        TooManyUploadsException(String message) {
+            super(message);
+        }
+    }
+
+    public ChunkedUploadService(ImageService imageService, Limits limits, long sessionTtlMillis) {
+        this.imageService = imageService;
+        this.limits = limits;
+        this.sessionTtlMillis = sessionTtlMillis;
+        this.uploadDir = Paths.get(imageService.getStoragePath(), "uploads");
+        try {
+            Files.createDirectories(uploadDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create upload directory", e);
+        }
+    }
+
+    public static class UploadSession {
+        public final String uploadId;
+        public final String boxId;
+        final String clientIp;
+        public final boolean background;
+        public final long size;
+        public final int chunkSize;
+        final Path partFile;
+        final FileChannel channel;
+        private final BitSet received;
+        private volatile long lastTouched = System.currentTimeMillis();
+        // completed: complete() has taken it over; closed: aborted or expired
+        private boolean completed;
+        private boolean closed;
+
+        UploadSession(String uploadId, String boxId, String clientIp, boolean background, long size, int chunkSize,
+                Path partFile, FileChannel channel) {
+            this.uploadId = uploadId;
+            this.boxId = boxId;
+            this.clientIp = clientIp;
+            this.background = background;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.partFile = partFile;
+            this.channel = channel;
+            this.received = new BitSet(totalChunks());
+        }
+
+        public int totalChunks() {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        long chunkLength(int index) {
+            return Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        synchronized void markReceived(int index) {
+            received.set(index);
+        }
+
+        synchronized void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("upload was aborted");
+            }
+            if (completed) {
+                throw new IllegalStateException("upload already completed");
+            }
+        }
+
+        public synchronized long receivedBytes() {
+            long total = 0;
+            for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+                total += chunkLength(i);
+            }
+            return total;
+        }
+
+        // Offsets of chunks not received yet (capped so the status response stays small)
+        public synchronized List<Long> missingOffsets(int limit) {
+            List<Long> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < totalChunks() && missing.size() < limit; i = received.nextClearBit(i + 1)) {
+                missing.add((long) i * chunkSize);
+            }
+            return missing;
+        }
+
+        public synchronized boolean isComplete() {
+            return received.cardinality() == totalChunks();
+        }
+    }
+
+    public UploadSession initiate(String boxId, String clientIp, boolean background, long size, Integer requestedChunkSize) throws IOException {
+        if (size <= 0 || size > MAX_UPLOAD_SIZE) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_UPLOAD_SIZE + " bytes");
+        }
+        int chunkSize = requestedChunkSize != null ? requestedChunkSize : DEFAULT_CHUNK_SIZE;
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        String uploadId = UUID.randomUUID().toString();
+        Path partFile = uploadDir.resolve(uploadId + ".part");
+        UploadSession session;
+        // checking the caps and adding the session happen together, or parallel initiates could all pass
+        synchronized (sessions) {
+            admit(clientIp, size);
+            // Pre-allocate the final size so chunks can land anywhere
+            try (RandomAccessFile file = new RandomAccessFile(partFile.toFile(), "rw")) {
+                file.setLength(size);
+            }
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(partFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            } catch (IOException e) {
+                Files.deleteIfExists(partFile);
+                throw e;
+            }
+            session = new UploadSession(uploadId, boxId, clientIp, background, size, chunkSize, partFile, channel);
+            sessions.put(uploadId, session);
+        }
+        return session;
+    }
+
+    private void admit(String clientIp, long size) {
+        int open = 0;
+        int openForIp = 0;
+        long reserved = size;
+        long reservedForIp = size;
+        for (UploadSession session : sessions.values()) {
+            open++;
+            reserved += session.size;
+            if (session.clientIp.equals(clientIp)) {
+                openForIp++;
+                reservedForIp += session.size;
+            }
+        }
+        if (openForIp >= limits.maxSessionsPerIp() || reservedForIp > limits.maxBytesPerIp()) {
+            throw new TooManyUploadsException("Too many unfinished uploads from this client, complete or abort one first");
+        }
+        if (open >= limits.maxSessions() || reserved > limits.maxBytes()) {
+            throw new TooManyUploadsException("Too many unfinished uploads, try again later");
+        }
+    }
+
+    public UploadSession get(String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session != null) {
+            session.lastTouched = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    /**
+     * Write one chunk at its offset. Offsets must be chunk aligned and the body must be
+     * exactly the chunk's length (the last chunk may be shorter). Re-sending a chunk is fine.
+     */
+    public void writeChunk(UploadSession session, long offset, InputStream body) throws IOException {
+        if (offset < 0 || offset >= session.size || offset % session.chunkSize != 0) {
+            throw new IllegalArgumentException("offset must be a multiple of " + session.chunkSize + " below " + session.size);
+        }
+        session.checkOpen();
+        int index = (int) (offset / session.chunkSize);
+        long expected = session.chunkLength(index);
+
+        long written;
+        try {
+            written = writeAt(session, offset, expected, body);
+        } catch (ClosedChannelException e) {
+            // complete() or abort() closed the file while this chunk was on its way
+            session.checkOpen();
+            throw e;
+        }
+        if (written != expected || body.read() != -1) {
+            throw new IllegalArgumentException("chunk at offset " + offset + " must be exactly " + expected + " bytes");
+        }
+        session.markReceived(index);
+        AppMetrics.uploadBytes(session.background ? "background_chunk" : "image_chunk", written);
+    }
+
+    private long writeAt(UploadSession session, long offset, long expected, InputStream body) throws IOException {
+        return AppMetrics.fileIo("upload.chunk_write", () -> {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(expected, 64 * 1024));
+            byte[] array = buffer.array();
+            long position = offset;
+            long remaining = expected;
+            while (remaining > 0) {
+                int read = body.read(array, 0, (int) Math.min(array.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    position += session.channel.write(buffer, position);
+                }
+                remaining -= read;
+            }
+            return expected - remaining;
+        });
+    }
+
+    /**
+     * Finish the upload: check every chunk arrived, sniff the type, and hand the file
+     * to ImageService. Returns the new image id (or the box id for backgrounds).
+     */
+    public String complete(UploadSession session) throws IOException, SQLException {
+        synchronized (session) {
+            session.checkOpen();
+            if (!session.isComplete()) {
+                throw new IllegalStateException("upload is missing " + (session.size - session.receivedBytes()) + " bytes");
+            }
+            session.completed = true;
+        }
+
+        try {
+            byte[] header = new byte[16];
+            int headerLength = session.channel.read(ByteBuffer.wrap(header), 0);
+            session.channel.force(false);
+            session.channel.close();
+
+            String contentType = MimeTypes.sniff(header, Math.max(headerLength, 0));
+            if (contentType == null) {
+                throw new IllegalArgumentException("Unsupported file type. Expected an image (png/jpg/gif/webp).");
+            }
+
+            if (session.background) {
+                // storeBackgroundImage picks the file extension from the path
+                Path named = session.partFile.resolveSibling(session.uploadId + ImageService.getFileExtensionForContentType(contentType));
+                Files.move(session.partFile, named);
+                try {
+                    imageService.storeBackgroundImage(named.toString(), session.boxId);
+                } finally {
+                    Files.deleteIfExists(named);
+                }
+                return session.boxId;
+            }
+            return imageService.adoptImageFile(session.partFile, session.boxId, contentType);
+        } finally {
+            sessions.remove(session.uploadId);
+            Files.deleteIfExists(session.partFile);
+        }
+    }
+
+    // Throws IllegalStateException if complete() already took the session over
+    public void abort(UploadSession session) throws IOException {
+        synchronized (session) {
+            session.checkOpen();
+            session.closed = true;
+        }
+        sessions.remove(session.uploadId);
+        session.channel.close();
+        Files.deleteIfExists(session.partFile);
+    }
+
+    // Abort sessions nobody has touched for sessionTtl; returns how many
+    public int expireStaleSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTtlMillis;
+        int expired = 0;
+        for (UploadSession session : sessions.values()) {
+            if (session.lastTouched < cutoff) {
+                try {
+                    abort(session);
+                    expired++;
+                } catch (IllegalStateException e) {
+                    // being completed or already aborted
+                } catch (IOException e) {
+                    log.atWarn().addKeyValue("uploadId", session.uploadId).log("Could not clean up stale upload: {}", e.getMessage());
+                }
+            }
+        }
+        return expired;
+    }
+}
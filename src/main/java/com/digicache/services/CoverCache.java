@@ -0,0 +1,324 @@
+package com.digicache.services;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Album covers fetched from Spotify once and served from the local image store
+ * (<store>/covers/), so song cards don't depend on Spotify's CDN.
+ *
+ * A cover is kept as downloaded, plus resized JPEGs at the configured sizes as they are asked
+ * for. Files are evicted least recently used first once they take more than maxBytes. The
+ * index lives in memory and is rebuilt from the directory at startup (oldest files first).
+ * Concurrent requests for a cover that isn't cached yet share one download. Ids without a
+ * cover (unknown tracks) are remembered for a while, so asking again doesn't go to Spotify.
+ */
+public class CoverCache {
+
+    private static final Logger log = LoggerFactory.getLogger(CoverCache.class);
+
+    // etag is a hash of the bytes (same cover, same etag, also after a re-download)
+    public record Cover(byte[] bytes, String contentType, String etag) {
+    }
+
+    // Where a missing cover comes from: its bytes as served by Spotify, null if the id has none
+    @FunctionalInterface
+    public interface Fetcher {
+        byte[] fetch(String spotifyId) throws IOException;
+    }
+
+    // The id has no cover (no such track, or a track without album images)
+    public static class NoCoverException extends IOException {
+        NoCoverException(String spotifyId) {
+            super("no cover for " + spotifyId);
+        }
+    }
+
+    // Spotify ids are base62; anything else never reaches the file system
+    private static final Pattern SPOTIFY_ID = Pattern.compile("[A-Za-z0-9]{1,64}");
+    private static final long NO_COVER_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_NO_COVER_IDS = 10_000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int[] sizes;
+    private final float quality;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Cover>> loading = new ConcurrentHashMap<>();
+    // id -> when it was found to have no cover
+    private final LinkedHashMap<String, Long> noCover = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_NO_COVER_IDS;
+        }
+    };
+    private long totalBytes;
+
+    // etag is null for files found at startup until they are first read
+    private record Entry(Path file, String contentType, long bytes, String etag) {
+    }
+
+    public CoverCache(Path dir, long maxBytes, int[] sizes, float quality) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.sizes = sizes.clone();
+        Arrays.sort(this.sizes);
+        this.quality = quality;
+        Files.createDirectories(dir);
+        index();
+    }
+
+    public static boolean isValidId(String spotifyId) {
+        return spotifyId != null && SPOTIFY_ID.matcher(spotifyId).matches();
+    }
+
+    /**
+     * The size actually served for a requested one: the smallest configured size at least as
+     * big, or 0 (the cover as downloaded) if none is or nothing was asked for.
+     */
+    public int sizeFor(int requested) {
+        if (requested <= 0) {
+            return 0;
+        }
+        for (int size : sizes) {
+            if (size >= requested) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    // size is one of sizeFor()'s results. Null if the downloaded cover isn't an image we can read
+    public Cover get(String spotifyId, int size, Fetcher fetcher) throws IOException {
+        if (!isValidId(spotifyId)) {
+            throw new IllegalArgumentException("not a Spotify id: " + spotifyId);
+        }
+        synchronized (noCover) {
+            Long since = noCover.get(spotifyId);
+            if (since != null) {
+                if (System.currentTimeMillis() - since < NO_COVER_TTL_MILLIS) {
+                    throw new NoCoverException(spotifyId);
+                }
+                noCover.remove(spotifyId);
+            }
+        }
+        String key = size > 0 ? spotifyId + "-" + size : spotifyId;
+        Cover cached = read(key);
+        AppMetrics.cacheAccess("covers", cached != null);
+        if (cached != null) {
+            return cached;
+        }
+        return load(key, () -> size > 0 ? resize(spotifyId, size, fetcher) : download(spotifyId, fetcher));
+    }
+
+    private interface Loader {
+        Cover load() throws IOException;
+    }
+
+    // One download/resize per file at a time; others asking meanwhile get the same result
+    private Cover load(String key, Loader loader) throws IOException {
+        CompletableFuture<Cover> mine = new CompletableFuture<>();
+        CompletableFuture<Cover> running = loading.putIfAbsent(key, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw e;
+            }
+        }
+        try {
+            Cover cover = loader.load();
+            mine.complete(cover);
+            return cover;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    private Cover download(String spotifyId, Fetcher fetcher) throws IOException {
+        byte[] bytes = fetcher.fetch(spotifyId);
+        if (bytes == null) {
+            synchronized (noCover) {
+                noCover.put(spotifyId, System.currentTimeMillis());
+            }
+            throw new NoCoverException(spotifyId);
+        }
+        String contentType = MimeTypes.sniff(bytes, bytes.length);
+        if (contentType == null) {
+            return null;
+        }
+        Cover cover = new Cover(bytes, contentType, etag(bytes));
+        store(spotifyId, extension(contentType), cover);
+        return cover;
+    }
+
+    private Cover resize(String spotifyId, int size, Fetcher fetcher) throws IOException {
+        Cover original = get(spotifyId, 0, fetcher);
+        if (original == null) {
+            return null;
+        }
+        BufferedImage decoded = AppMetrics.fileIo("cover.decode", () -> ImageIO.read(new ByteArrayInputStream(original.bytes())));
+        if (decoded == null || Math.max(decoded.getWidth(), decoded.getHeight()) <= size) {
+            // never scale up (and ImageIO can't resize WebP): keep a copy under this size so the
+            // next request for it is a hit instead of another decode
+            store(spotifyId + "-" + size, extension(original.contentType()), original);
+            return original;
+        }
+        BufferedImage rgb = ImageOptimizer.orient(decoded, 1, false);
+        BufferedImage scaled = ImageOptimizer.scaleDown(rgb, size, false);
+        byte[] bytes = AppMetrics.fileIo("cover.encode", () -> ImageOptimizer.encodeJpeg(scaled, quality));
+        Cover cover = new Cover(bytes, "image/jpeg", etag(bytes));
+        store(spotifyId + "-" + size, ".jpg", cover);
+        return cover;
+    }
+
+    private Cover read(String key) throws IOException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] bytes = AppMetrics.fileIo("cover.read", () -> Files.readAllBytes(entry.file()));
+            String etag = entry.etag();
+            if (etag == null) {
+                etag = etag(bytes);
+                synchronized (entries) {
+                    entries.replace(key, entry, new Entry(entry.file(), entry.contentType(), entry.bytes(), etag));
+                }
+            }
+            return new Cover(bytes, entry.contentType(), etag);
+        } catch (NoSuchFileException e) {
+            // deleted behind our back, fetch it again
+            forget(key, entry);
+            return null;
+        }
+    }
+
+    // Write via a temp file so a reader never sees half a cover, then evict down to maxBytes
+    private void store(String key, String extension, Cover cover) throws IOException {
+        byte[] bytes = cover.bytes();
+        if (maxBytes <= 0) {
+            return;
+        }
+        Path file = dir.resolve(key + extension);
+        Path temp = dir.resolve(".tmp-" + UUID.randomUUID());
+        try {
+            AppMetrics.fileIo("cover.write", () -> Files.write(temp, bytes));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        List<Path> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Entry previous = entries.put(key, new Entry(file, cover.contentType(), bytes.length, cover.etag()));
+            totalBytes += bytes.length - (previous != null ? previous.bytes() : 0);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> candidate = eldest.next();
+                if (candidate.getKey().equals(key)) {
+                    continue;
+                }
+                eldest.remove();
+                totalBytes -= candidate.getValue().bytes();
+                evicted.add(candidate.getValue().file());
+            }
+        }
+        for (Path path : evicted) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void forget(String key, Entry entry) {
+        synchronized (entries) {
+            if (entries.remove(key, entry)) {
+                totalBytes -= entry.bytes();
+            }
+        }
+    }
+
+    // Rebuild the index from what an earlier run left behind, least recently written first
+    private void index() throws IOException {
+        List<Map.Entry<Path, BasicFileAttributes>> files = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(dir)) {
+            for (Path file : listing) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".tmp-")) {
+                    Files.deleteIfExists(file); // left over from a crash mid-write
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    files.add(Map.entry(file, attributes));
+                }
+            }
+        }
+        files.sort(Comparator.comparing(file -> file.getValue().lastModifiedTime()));
+        synchronized (entries) {
+            for (Map.Entry<Path, BasicFileAttributes> file : files) {
+                String name = file.getKey().getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                String contentType = MimeTypes.fromFileName(name);
+                if (dot <= 0 || contentType == null || !contentType.startsWith("image/")) {
+                    Files.deleteIfExists(file.getKey()); // e.g. a WebP cover, it's fetched again when asked for
+                    continue;
+                }
+                entries.put(name.substring(0, dot), new Entry(file.getKey(), contentType, file.getValue().size(), null));
+                totalBytes += file.getValue().size();
+            }
+        }
+        log.atInfo().addKeyValue("files", files.size()).addKeyValue("bytes", totalBytes).addKeyValue("dir", dir).log("Cover cache indexed");
+    }
+
+    private static String extension(String contentType) {
+        return switch (contentType) {
+            case "image/png" -> ".png";
+            case "image/gif" -> ".gif";
+            case "image/webp" -> ".webp";
+            default -> ".jpg";
+        };
+    }
+
+    private static String etag(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
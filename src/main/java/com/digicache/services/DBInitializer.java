@@ -2,28 +2,89 @@ package com.digicache.services;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.io.IOException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class DBInitializer {
 
+    private static final Logger log = LoggerFactory.getLogger(DBInitializer.class);
+
     private final Connection connection;
+    private final SqlDialect dialect;
     private static Connection sharedConnection;
+    // -Ddigicache.db.url lets tools (load tests, benchmarks) run against a temp database
+    private static String dbUrl = System.getProperty("digicache.db.url", "jdbc:sqlite:digicache.db");
+    private static String dbUser;
+    private static String dbPassword;
 
-    public DBInitializer(Connection connection) {
+    public DBInitializer(Connection connection) throws SQLException {
         this.connection = connection;
+        this.dialect = SqlDialect.fromUrl(connection.getMetaData().getURL());
         sharedConnection = connection;
     }
     
+    /**
+     * Point the app at a database (spring.datasource.* at startup). Must run before the first
+     * getConnection(). A -Ddigicache.db.url system property still wins, for tools.
+     */
+    public static void configure(String url, String user, String password) {
+        if (System.getProperty("digicache.db.url") == null && url != null && !url.isBlank()) {
+            dbUrl = url;
+        }
+        dbUser = user == null || user.isBlank() ? null : user;
+        dbPassword = password == null || password.isBlank() ? null : password;
+    }
+    
+    public static SqlDialect dialect() {
+        return SqlDialect.fromUrl(dbUrl);
+    }
+    
+    // True when other app instances may be using the same database (a database server,
+    // not a file), so in-process caches can't assume they see every write
+    public static boolean isShared() {
+        return dbUrl.startsWith("jdbc:postgresql:") || dbUrl.startsWith("jdbc:h2:tcp:") || dbUrl.startsWith("jdbc:h2:ssl:");
+    }
+    
     // Static method to get connection for controllers
     public static Connection getConnection() throws SQLException {
         if (sharedConnection == null || sharedConnection.isClosed()) {
             // Create a new connection if none exists
-            sharedConnection = DriverManager.getConnection("jdbc:sqlite:digicache.db");
+            sharedConnection = openConnection();
         }
         return sharedConnection;
     }
+    
+    // A connection of its own, for long-running work (backups) that mustn't hold up the shared one
+    public static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+    }
+
+    // Run several statements as one transaction (one commit/fsync instead of one per statement).
+    // The connection is shared between controllers, so callers are serialized on it.
+    public static <T> T inTransaction(Connection connection, String name, AppMetrics.SqlCall<T> work) throws SQLException {
+        synchronized (connection) {
+            return AppMetrics.transaction(name, () -> {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    T result = work.call();
+                    connection.commit();
+                    return result;
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            });
+        }
+    }
 
     private void runMigrationScript() throws SQLException {
         // Read and execute the migration script
@@ -40,43 +101,216 @@ public class DBInitializer {
                 }
             }
         } catch (IOException e) {
-            System.out.println("Warning: Migration script not found or could not be read");
+            log.warn("Migration script not found or could not be read");
         }
     }
 
     public void initializeDB() throws SQLException {
         Statement statement = connection.createStatement();
         
+        // WAL lets readers (backups, exports) run alongside writers instead of blocking them.
+        // It's persistent, so this only does anything the first time.
+        if (dialect == SqlDialect.SQLITE) {
+            statement.execute("PRAGMA journal_mode=WAL");
+        }
+        
+        // TEXT is a CLOB on H2, which can't be a key or indexed
+        String text = dialect.textType();
+        
         // Create box_ids table
-        String createBoxIdsTable = "CREATE TABLE IF NOT EXISTS box_ids (id TEXT PRIMARY KEY)";
+        String createBoxIdsTable = "CREATE TABLE IF NOT EXISTS box_ids (id " + text + " PRIMARY KEY)";
         statement.execute(createBoxIdsTable);
         
         // Create images table with ALL required columns
+        // (files live in the image store, see V2_update_image_storage.sql)
         String createImagesTable = "CREATE TABLE IF NOT EXISTS images ("
-                + "id TEXT PRIMARY KEY, "
-                + "box_id TEXT NOT NULL, "
-                + "image_data BLOB NOT NULL, "
-                + "content_type TEXT DEFAULT 'image/jpeg', "
+                + "id " + text + " PRIMARY KEY, "
+                + "box_id " + text + " NOT NULL, "
+                + "image_path " + text + ", "
+                + "content_type " + text + " DEFAULT 'image/jpeg', "
                 + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
                 + ")";
         statement.execute(createImagesTable);
-        System.out.println("Images table created with box_id, content_type, and created_at columns");
+        log.debug("Images table created");
+        
+        // Columns added after the first deploy (CREATE TABLE IF NOT EXISTS won't add them to old databases)
+        addColumnIfMissing(statement, "images", "sha256", text);
+        // pixel size and BlurHash placeholder (ImagePlaceholders), filled in after upload
+        addColumnIfMissing(statement, "images", "width", "INTEGER");
+        addColumnIfMissing(statement, "images", "height", "INTEGER");
+        addColumnIfMissing(statement, "images", "blurhash", text);
+        // exports (and the box_stats recount) read a box's images by box_id, in upload order
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_images_box_created ON images (box_id, created_at)");
         
         // Create box_contents table
         String createBoxContentsTable = "CREATE TABLE IF NOT EXISTS box_contents ("
-                + "box_id TEXT, "
-                + "item_id TEXT, "
-                + "FOREIGN KEY (box_id) REFERENCES box_ids(id))";
+                + "box_id " + text + ", "
+                + "item_id " + text
+                + dialect.foreignKey("box_id", "box_ids(id)") + ")";
         statement.execute(createBoxContentsTable);
         
+        // Box listings look up contents by box, without this every listing is a full scan
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_box_contents_box_id ON box_contents (box_id)");
+        
         // Create background_images table
         String createBackgroundImagesTable = "CREATE TABLE IF NOT EXISTS background_images ("
-                + "box_id TEXT PRIMARY KEY, "
-                + "image_data BLOB NOT NULL, "
-                + "FOREIGN KEY (box_id) REFERENCES box_ids(id))";
+                + "box_id " + text + " PRIMARY KEY, "
+                + "image_path " + text
+                + dialect.foreignKey("box_id", "box_ids(id)") + ")";
         statement.execute(createBackgroundImagesTable);
-        System.out.println("Background images table created");
+        log.debug("Background images table created");
+        
+        // Create texts table
+        String createTextsTable = "CREATE TABLE IF NOT EXISTS texts ("
+                + "id " + dialect.autoIncrementPrimaryKey() + ", "
+                + "box_id " + text + " NOT NULL, "
+                + "content " + text + " NOT NULL, "
+                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                + ")";
+        statement.execute(createTextsTable);
+        // text listings filter by box and sort by time
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_texts_box_created ON texts (box_id, created_at)");
         
+        // Create spotify_songs table (databases created before songs had a generated id
+        // keep their TEXT id column, which is always NULL)
+        String createSongsTable = "CREATE TABLE IF NOT EXISTS spotify_songs ("
+                + "id " + dialect.autoIncrementPrimaryKey() + ", "
+                + "box_id " + text + ", "
+                + "spotify_id " + text + ", "
+                + "name " + text + ", "
+                + "artist " + text + ", "
+                + "album " + text + ", "
+                + "album_cover_url " + text + ", "
+                + "preview_url " + text + ", "
+                + "spotify_url " + text + ", "
+                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                + ")";
+        statement.execute(createSongsTable);
+        // song listings filter by box and sort by time
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_spotify_songs_box_created ON spotify_songs (box_id, created_at)");
+        log.debug("Texts and songs tables created");
+
+        // Per-box counts (BoxStats), the overview pages read these instead of the listings
+        String createBoxStatsTable = "CREATE TABLE IF NOT EXISTS box_stats ("
+                + "box_id " + text + " PRIMARY KEY, "
+                + "image_count INTEGER NOT NULL DEFAULT 0, "
+                + "text_count INTEGER NOT NULL DEFAULT 0, "
+                + "song_count INTEGER NOT NULL DEFAULT 0, "
+                + "item_count INTEGER NOT NULL DEFAULT 0, "
+                + "last_activity TIMESTAMP"
+                + ")";
+        statement.execute(createBoxStatsTable);
+        // the two orders /api/boxes/stats sorts by, so a page is an index scan
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_box_stats_items ON box_stats (item_count DESC, box_id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_box_stats_activity ON box_stats (last_activity DESC, box_id)");
+        // Databases from before box_stats get it filled from their content once
+        try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM box_stats")) {
+            rs.next();
+            if (rs.getInt(1) == 0) {
+                BoxStats.RebuildResult result = new BoxStats(connection).rebuild();
+                log.atInfo().addKeyValue("boxes", result.boxes()).log("Box stats built");
+            }
+        }
+
+        // View counts (ViewCounters): all time per box/image, and per hour for trending.
+        // bucket is hours since the epoch; the key leads with it so a time range is one index scan
+        statement.execute("CREATE TABLE IF NOT EXISTS view_counts ("
+                + "kind " + text + " NOT NULL, "
+                + "item_id " + text + " NOT NULL, "
+                + "views BIGINT NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (kind, item_id)"
+                + ")");
+        statement.execute("CREATE TABLE IF NOT EXISTS view_buckets ("
+                + "kind " + text + " NOT NULL, "
+                + "bucket BIGINT NOT NULL, "
+                + "item_id " + text + " NOT NULL, "
+                + "views BIGINT NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (kind, bucket, item_id)"
+                + ")");
+
+        // Responses kept for Idempotency-Key retries (IdempotencyStore), expires_at in epoch millis
+        statement.execute("CREATE TABLE IF NOT EXISTS idempotency_keys ("
+                + "idempotency_key " + text + " PRIMARY KEY, "
+                + "fingerprint " + text + " NOT NULL, "
+                + "status INTEGER NOT NULL, "
+                + "content_type " + text + ", "
+                + "body " + text + ", "
+                + "expires_at BIGINT NOT NULL"
+                + ")");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_idempotency_keys_expires ON idempotency_keys (expires_at)");
+
+        if (dialect == SqlDialect.SQLITE) {
+            createSearchIndexes(statement);
+        }
+
         statement.close();
     }
+
+    /**
+     * FTS5 indexes over texts and songs for SearchService. They're external content tables:
+     * the index only holds tokens and reads the text itself from texts/spotify_songs, and the
+     * triggers keep it in step with every insert, delete and update in the same transaction.
+     * Only SQLite has FTS5, the other databases search with LIKE instead.
+     */
+    private void createSearchIndexes(Statement statement) throws SQLException {
+        // prefix='2 3 4' turns a prefix query of up to four letters into one index lookup instead
+        // of merging every term that starts with it (for a common word that's most of the table).
+        // box_id is indexed too, so a search within a box is an intersection in the index rather
+        // than a filter over every match in every box.
+        String options = "tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3 4'";
+
+        boolean textsIndexed = tableExists(statement, "texts_fts");
+        statement.execute("CREATE VIRTUAL TABLE IF NOT EXISTS texts_fts USING fts5("
+                + "content, box_id, content = 'texts', content_rowid = 'id', " + options + ")");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS texts_fts_insert AFTER INSERT ON texts BEGIN "
+                + "INSERT INTO texts_fts (rowid, content, box_id) VALUES (new.id, new.content, new.box_id); END");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS texts_fts_delete AFTER DELETE ON texts BEGIN "
+                + "INSERT INTO texts_fts (texts_fts, rowid, content, box_id) VALUES ('delete', old.id, old.content, old.box_id); END");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS texts_fts_update AFTER UPDATE ON texts BEGIN "
+                + "INSERT INTO texts_fts (texts_fts, rowid, content, box_id) VALUES ('delete', old.id, old.content, old.box_id); "
+                + "INSERT INTO texts_fts (rowid, content, box_id) VALUES (new.id, new.content, new.box_id); END");
+
+        // Songs are keyed by rowid: on databases from before songs had a generated id that's
+        // the only key they have (on newer ones id is the rowid anyway)
+        boolean songsIndexed = tableExists(statement, "songs_fts");
+        statement.execute("CREATE VIRTUAL TABLE IF NOT EXISTS songs_fts USING fts5("
+                + "name, artist, album, box_id, content = 'spotify_songs', content_rowid = 'rowid', " + options + ")");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_insert AFTER INSERT ON spotify_songs BEGIN "
+                + "INSERT INTO songs_fts (rowid, name, artist, album, box_id) VALUES (new.rowid, new.name, new.artist, new.album, new.box_id); END");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_delete AFTER DELETE ON spotify_songs BEGIN "
+                + "INSERT INTO songs_fts (songs_fts, rowid, name, artist, album, box_id) VALUES ('delete', old.rowid, old.name, old.artist, old.album, old.box_id); END");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS songs_fts_update AFTER UPDATE ON spotify_songs BEGIN "
+                + "INSERT INTO songs_fts (songs_fts, rowid, name, artist, album, box_id) VALUES ('delete', old.rowid, old.name, old.artist, old.album, old.box_id); "
+                + "INSERT INTO songs_fts (rowid, name, artist, album, box_id) VALUES (new.rowid, new.name, new.artist, new.album, new.box_id); END");
+
+        // Rows written before the index existed are indexed once, when it's first created
+        if (!textsIndexed) {
+            statement.execute("INSERT INTO texts_fts (texts_fts) VALUES ('rebuild')");
+            log.info("Built full-text index for texts");
+        }
+        if (!songsIndexed) {
+            statement.execute("INSERT INTO songs_fts (songs_fts) VALUES ('rebuild')");
+            log.info("Built full-text index for songs");
+        }
+    }
+
+    private boolean tableExists(Statement statement, String table) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+            return rs.next();
+        }
+    }
+    
+    private void addColumnIfMissing(Statement statement, String table, String column, String type) throws SQLException {
+        // the result set's column names work on every database (PRAGMA table_info is SQLite only)
+        try (ResultSet columns = statement.executeQuery("SELECT * FROM " + table + " WHERE 1 = 0")) {
+            ResultSetMetaData metaData = columns.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (column.equalsIgnoreCase(metaData.getColumnName(i))) {
+                    return;
+                }
+            }
+        }
+        statement.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        log.atInfo().addKeyValue("table", table).addKeyValue("column", column).log("Added column");
+    }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package com.digicache.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Responses of requests sent with an Idempotency-Key, so a client retrying after a timeout
+ * gets the first response back instead of a second upload or a duplicate row.
+ *
+ * Finished responses are kept for ttl, the most recent maxEntries in memory and all of them
+ * in idempotency_keys (survives restarts, and is seen by other instances on a shared
+ * database). A request arriving while the first one with its key is still running waits for
+ * that one and gets its response. That in-flight wait is per instance: two instances
+ * receiving the same key at the same moment both run it.
+ */
+public class IdempotencyStore {
+
+    // fingerprint is what the request must match to be a replay (method, path, body hash)
+    public record Response(String fingerprint, int status, String contentType, String body) {
+    }
+
+    // What to do with a request: replay is set when there's an earlier response for the key
+    public record Claim(Response replay, boolean owner) {
+    }
+
+    private final Connection connection;
+    private final long ttlMillis;
+    private final Map<String, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Expiring> recent;
+    private long lastPurge;
+
+    private record Expiring(Response response, long expiresAt) {
+    }
+
+    public IdempotencyStore(Connection connection, int maxEntries, long ttlMillis) {
+        this.connection = connection;
+        this.ttlMillis = ttlMillis;
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expiring> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Claim a key before running its request. Returns the stored response if the key was
+     * used before, or waits (up to waitMillis) for a request with the same key that is
+     * running right now. Otherwise the caller owns the key and must call complete() or
+     * abandon() when done. A claim that timed out waiting is neither: no replay, not owner.
+     */
+    public Claim claim(String key, long waitMillis) throws SQLException, InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            Response stored = find(key);
+            if (stored != null) {
+                return new Claim(stored, false);
+            }
+            CompletableFuture<Response> mine = new CompletableFuture<>();
+            CompletableFuture<Response> running = inFlight.putIfAbsent(key, mine);
+            if (running == null) {
+                return new Claim(null, true);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return new Claim(null, false);
+            }
+            try {
+                Response response = running.get(remaining, TimeUnit.MILLISECONDS);
+                if (response != null) {
+                    return new Claim(response, false);
+                }
+                // the first one failed without a response to keep, try to run it here
+            } catch (ExecutionException e) {
+                // same as above
+            } catch (TimeoutException e) {
+                return new Claim(null, false);
+            }
+        }
+    }
+
+    // Keep the owner's response and hand it to the requests waiting for it
+    public void complete(String key, Response response) throws SQLException {
+        try {
+            long expiresAt = System.currentTimeMillis() + ttlMillis;
+            synchronized (recent) {
+                recent.put(key, new Expiring(response, expiresAt));
+            }
+            String insert = DBInitializer.dialect().upsert("idempotency_keys", "idempotency_key",
+                    "idempotency_key", "fingerprint", "status", "content_type", "body", "expires_at");
+            DBInitializer.inTransaction(connection, "idempotency_keys.store", () -> {
+                try (PreparedStatement stmt = connection.prepareStatement(insert)) {
+                    stmt.setString(1, key);
+                    stmt.setString(2, response.fingerprint());
+                    stmt.setInt(3, response.status());
+                    stmt.setString(4, response.contentType());
+                    stmt.setString(5, response.body());
+                    stmt.setLong(6, expiresAt);
+                    return AppMetrics.query("idempotency_keys.upsert", stmt::executeUpdate);
+                }
+            });
+            purgeExpired();
+        } finally {
+            release(key, response);
+        }
+    }
+
+    // The owner finished without a response worth keeping (server error): waiters run it themselves
+    public void abandon(String key) {
+        release(key, null);
+    }
+
+    private void release(String key, Response response) {
+        CompletableFuture<Response> running = inFlight.remove(key);
+        if (running != null) {
+            running.complete(response);
+        }
+    }
+
+    private Response find(String key) throws SQLException {
+        long now = System.currentTimeMillis();
+        synchronized (recent) {
+            Expiring entry = recent.get(key);
+            if (entry != null) {
+                if (entry.expiresAt() > now) {
+                    AppMetrics.cacheAccess("idempotency", true);
+                    return entry.response();
+                }
+                recent.remove(key);
+            }
+        }
+        AppMetrics.cacheAccess("idempotency", false);
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT fingerprint, status, content_type, body, expires_at FROM idempotency_keys WHERE idempotency_key = ? AND expires_at > ?")) {
+            stmt.setString(1, key);
+            stmt.setLong(2, now);
+            try (ResultSet rs = AppMetrics.query("idempotency_keys.select", stmt::executeQuery)) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Response response = new Response(rs.getString(1), rs.getInt(2), rs.getString(3), rs.getString(4));
+                synchronized (recent) {
+                    recent.put(key, new Expiring(response, rs.getLong(5)));
+                }
+                return response;
+            }
+        }
+    }
+
+    // Expired keys are deleted every few minutes, by whichever request stores a key then
+    private void purgeExpired() throws SQLException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastPurge < TimeUnit.MINUTES.toMillis(10)) {
+                return;
+            }
+            lastPurge = now;
+        }
+        DBInitializer.inTransaction(connection, "idempotency_keys.purge", () -> {
+            try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM idempotency_keys WHERE expires_at <= ?")) {
+                stmt.setLong(1, now);
+                return AppMetrics.query("idempotency_keys.delete_expired", stmt::executeUpdate);
+            }
+        });
+    }
+}
@@ -0,0 +1,279 @@
+package com.digicache.services;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ingest-time image normalization: decode, apply EXIF orientation, cap the longest side,
+ * and re-encode (JPEG at the target quality, PNG if the image has transparency).
+ * Writing a fresh image drops all metadata (EXIF, GPS, thumbnails).
+ *
+ * This class only transforms files; ImageService decides when to run it and swaps
+ * the result into the store.
+ */
+public class ImageOptimizer {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageOptimizer.class);
+    // a burst of uploads can hit this for every image
+    private static final LogSampler QUEUE_FULL_LOG = new LogSampler(100);
+
+    private final boolean enabled;
+    private final int maxDimension;
+    private final float quality;
+    private final ExecutorService pool;
+
+    // An optimized copy sitting in a temp file next to the original
+    public record Result(Path file, String contentType, long originalBytes, long optimizedBytes) {
+    }
+
+    public ImageOptimizer(boolean enabled, int maxDimension, float quality, int threads) {
+        this.enabled = enabled;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        // Small bounded queue: if we're this far behind, skipping optimization is better than piling up
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(64),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-optimizer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Run a task on the optimizer pool; returns false if the pool is saturated and the task was dropped
+    public boolean submit(Runnable task) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (QUEUE_FULL_LOG.sample()) {
+                log.atWarn().addKeyValue("sampled", QUEUE_FULL_LOG.every()).log("Image optimizer queue full, keeping original");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Produce an optimized copy of the image at source. Returns null when the file can't
+     * be decoded (GIF/WebP are left alone) or re-encoding wouldn't make it smaller and
+     * there's no rotation to apply. The type is sniffed, stored content types aren't trusted.
+     */
+    public Result optimize(Path source) throws IOException {
+        String contentType;
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] header = in.readNBytes(16);
+            contentType = MimeTypes.sniff(header, header.length);
+        }
+        if (contentType == null || !(contentType.equals("image/jpeg") || contentType.equals("image/png"))) {
+            return null; // GIFs may be animated, WebP isn't decodable by ImageIO
+        }
+        long originalBytes = Files.size(source);
+        int orientation = contentType.equals("image/jpeg") ? readExifOrientation(source) : 1;
+
+        BufferedImage decoded = AppMetrics.fileIo("optimize.decode", () -> ImageIO.read(source.toFile()));
+        if (decoded == null) {
+            return null;
+        }
+
+        boolean hasAlpha = decoded.getColorModel().hasAlpha();
+        boolean needsResize = Math.max(decoded.getWidth(), decoded.getHeight()) > maxDimension;
+        BufferedImage normalized = orient(scaleDown(decoded, maxDimension, hasAlpha), orientation, hasAlpha);
+
+        String outputType = hasAlpha ? "image/png" : "image/jpeg";
+        // Not Files.createTempFile: its 0600 permissions would carry over into the store
+        Path output = source.resolveSibling(".optimize-" + UUID.randomUUID() + ".tmp");
+        try {
+            AppMetrics.fileIo("optimize.encode", () -> {
+                write(normalized, outputType, output);
+                return null;
+            });
+            long optimizedBytes = Files.size(output);
+            // Re-encoding a small photo can make it bigger; keep it only if it shrank or had to change
+            if (optimizedBytes >= originalBytes && !needsResize && orientation == 1) {
+                Files.deleteIfExists(output);
+                return null;
+            }
+            return new Result(output, outputType, originalBytes, optimizedBytes);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(output);
+            throw e;
+        }
+    }
+
+    // Halve repeatedly, then a final bilinear step; a single big bilinear step aliases badly
+    static BufferedImage scaleDown(BufferedImage image, int maxDimension, boolean hasAlpha) {
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        if (longest <= maxDimension) {
+            return image;
+        }
+        double scale = (double) maxDimension / longest;
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    // Bake the EXIF orientation into the pixels (we're about to drop the EXIF block)
+    static BufferedImage orient(BufferedImage image, int orientation, boolean hasAlpha) {
+        int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (orientation <= 1 || orientation > 8) {
+            if (image.getType() == type) {
+                return image;
+            }
+            // ImageIO hands back all sorts of types (e.g. CMYK, indexed); the JPEG writer wants plain RGB
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+            Graphics2D g = converted.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            return converted;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean swap = orientation >= 5;
+        AffineTransform t = new AffineTransform();
+        switch (orientation) {
+            case 2 -> { t.translate(w, 0); t.scale(-1, 1); }
+            case 3 -> { t.translate(w, h); t.rotate(Math.PI); }
+            case 4 -> { t.translate(0, h); t.scale(1, -1); }
+            case 5 -> { t.rotate(Math.PI / 2); t.scale(1, -1); }
+            case 6 -> { t.translate(h, 0); t.rotate(Math.PI / 2); }
+            case 7 -> { t.scale(-1, 1); t.translate(-h, 0); t.translate(0, w); t.rotate(3 * Math.PI / 2); }
+            case 8 -> { t.translate(0, w); t.rotate(3 * Math.PI / 2); }
+            default -> { }
+        }
+        BufferedImage rotated = new BufferedImage(swap ? h : w, swap ? w : h, type);
+        Graphics2D g = rotated.createGraphics();
+        g.drawImage(image, t, null);
+        g.dispose();
+        return rotated;
+    }
+
+    private void write(BufferedImage image, String contentType, Path output) throws IOException {
+        if (contentType.equals("image/png")) {
+            ImageIO.write(image, "png", output.toFile());
+            return;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(output.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // JPEG bytes of an RGB image (mosaic sprites, resized covers)
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the EXIF orientation tag (0x0112) from a JPEG's APP1 segment.
+     * Returns 1 (normal) if there is none or the file doesn't parse.
+     */
+    static int readExifOrientation(Path jpeg) {
+        try (InputStream in = Files.newInputStream(jpeg)) {
+            byte[] head = in.readNBytes(128 * 1024); // EXIF lives near the start
+            int pos = 2; // skip SOI
+            while (pos + 4 <= head.length && (head[pos] & 0xff) == 0xFF) {
+                int marker = head[pos + 1] & 0xff;
+                int length = ((head[pos + 2] & 0xff) << 8) | (head[pos + 3] & 0xff);
+                if (marker == 0xDA) {
+                    break; // start of scan, no more metadata
+                }
+                if (marker == 0xE1 && pos + 10 <= head.length
+                        && head[pos + 4] == 'E' && head[pos + 5] == 'x' && head[pos + 6] == 'i' && head[pos + 7] == 'f') {
+                    return orientationFromTiff(head, pos + 10, Math.min(head.length, pos + 2 + length));
+                }
+                pos += 2 + length;
+            }
+        } catch (IOException | RuntimeException ignored) { }
+        return 1;
+    }
+
+    private static int orientationFromTiff(byte[] b, int tiff, int end) {
+        boolean little = b[tiff] == 'I';
+        int ifd = tiff + readInt(b, tiff + 4, little);
+        int entries = readShort(b, ifd, little);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (readShort(b, entry, little) == 0x0112) {
+                return readShort(b, entry + 8, little);
+            }
+        }
+        return 1;
+    }
+
+    private static int readShort(byte[] b, int pos, boolean little) {
+        return little
+                ? (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8)
+                : ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] b, int pos, boolean little) {
+        return little
+                ? (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8) | ((b[pos + 2] & 0xff) << 16) | ((b[pos + 3] & 0xff) << 24)
+                : ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+}
@@ -0,0 +1,235 @@
+package com.digicache.services;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pixel size and a BlurHash (https://blurha.sh, ~30 characters) of a stored image, so clients
+ * can lay out the grid and paint a blurred preview before the image itself arrives.
+ *
+ * Like ImageOptimizer this only looks at files; ImageService runs it after an image is stored
+ * (after optimizing, when that's on) and writes the result to the images row.
+ */
+public class ImagePlaceholders {
+
+    private static final Logger log = LoggerFactory.getLogger(ImagePlaceholders.class);
+    // a burst of uploads can hit this for every image
+    private static final LogSampler QUEUE_FULL_LOG = new LogSampler(100);
+
+    // width and height as displayed, i.e. after the EXIF orientation
+    public record Placeholder(int width, int height, String blurHash) {
+    }
+
+    // An image decoded at reduced resolution, with the full size it was decoded from
+    record Decoded(BufferedImage image, int width, int height) {
+    }
+
+    // The hash is computed on a thumbnail this big; more pixels don't change it visibly
+    private static final int HASH_SIZE = 32;
+    private static final String BASE83 =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    private final ExecutorService pool;
+
+    public ImagePlaceholders(int threads) {
+        // dropped when this far behind; the backfill job picks those images up later
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(256),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-placeholders");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    // Run a task on the placeholder pool; returns false if the pool is saturated and the task was dropped
+    public boolean submit(Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (QUEUE_FULL_LOG.sample()) {
+                log.atWarn().addKeyValue("sampled", QUEUE_FULL_LOG.every()).log("Image placeholder queue full, leaving it to the backfill");
+            }
+            return false;
+        }
+    }
+
+    // Null when ImageIO can't decode the file (WebP, corrupt files)
+    public Placeholder describe(Path file) throws IOException {
+        Decoded decoded = readSubsampled(file, HASH_SIZE * 2);
+        if (decoded == null) {
+            return null;
+        }
+        int orientation = 1;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] header = in.readNBytes(16);
+            if ("image/jpeg".equals(MimeTypes.sniff(header, header.length))) {
+                orientation = ImageOptimizer.readExifOrientation(file);
+            }
+        }
+        BufferedImage image = ImageOptimizer.orient(decoded.image(), orientation, decoded.image().getColorModel().hasAlpha());
+        boolean swapped = orientation >= 5 && orientation <= 8;
+        int width = swapped ? decoded.height() : decoded.width();
+        int height = swapped ? decoded.width() : decoded.height();
+
+        // 4x3 components for landscape, 3x4 for portrait
+        boolean landscape = width >= height;
+        String blurHash = AppMetrics.fileIo("placeholder.hash", () -> blurHash(thumbnail(image), landscape ? 4 : 3, landscape ? 3 : 4));
+        return new Placeholder(width, height, blurHash);
+    }
+
+    /**
+     * Decode an image at a fraction of its size (every n-th pixel, n chosen so the shorter
+     * side stays at least minSide), which saves most of the decoding work for a photo.
+     * Null if ImageIO can't read it.
+     */
+    static Decoded readSubsampled(Path file, int minSide) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return AppMetrics.fileIo("image.decode_subsampled", () -> {
+            try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+                Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+                if (readers == null || !readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    int step = Math.max(1, Math.min(width, height) / minSide);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    return new Decoded(reader.read(0, param), width, height);
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException | RuntimeException e) {
+                return null; // corrupt or unsupported
+            }
+        });
+    }
+
+    // At most HASH_SIZE on the longer side, RGB, transparency flattened onto white
+    private static BufferedImage thumbnail(BufferedImage image) {
+        double scale = Math.min(1.0, (double) HASH_SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    /**
+     * BlurHash of an image: the DC colour plus componentsX * componentsY - 1 cosine
+     * components, base83 encoded (reference algorithm from github.com/woltapp/blurhash).
+     */
+    static String blurHash(BufferedImage image, int componentsX, int componentsY) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        double[][] linear = new double[pixels.length][3];
+        for (int i = 0; i < pixels.length; i++) {
+            linear[i][0] = toLinear((pixels[i] >> 16) & 0xff);
+            linear[i][1] = toLinear((pixels[i] >> 8) & 0xff);
+            linear[i][2] = toLinear(pixels[i] & 0xff);
+        }
+
+        double[][] factors = new double[componentsX * componentsY][3];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                double normalisation = i == 0 && j == 0 ? 1 : 2;
+                double[] factor = factors[j * componentsX + i];
+                for (int y = 0; y < height; y++) {
+                    double basisY = Math.cos(Math.PI * j * y / height);
+                    for (int x = 0; x < width; x++) {
+                        double basis = normalisation * Math.cos(Math.PI * i * x / width) * basisY;
+                        double[] pixel = linear[y * width + x];
+                        factor[0] += basis * pixel[0];
+                        factor[1] += basis * pixel[1];
+                        factor[2] += basis * pixel[2];
+                    }
+                }
+                double scale = 1.0 / (width * height);
+                factor[0] *= scale;
+                factor[1] *= scale;
+                factor[2] *= scale;
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+        double maximum = 1;
+        if (factors.length > 1) {
+            double actualMaximum = 0;
+            for (int i = 1; i < factors.length; i++) {
+                for (double value : factors[i]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximum = (quantisedMaximum + 1) / 166.0;
+            encode83(hash, quantisedMaximum, 1);
+        } else {
+            encode83(hash, 0, 1);
+        }
+        double[] dc = factors[0];
+        encode83(hash, (toSrgb(dc[0]) << 16) + (toSrgb(dc[1]) << 8) + toSrgb(dc[2]), 4);
+        for (int i = 1; i < factors.length; i++) {
+            double[] ac = factors[i];
+            encode83(hash, quantise(ac[0], maximum) * 19 * 19 + quantise(ac[1], maximum) * 19 + quantise(ac[2], maximum), 2);
+        }
+        return hash.toString();
+    }
+
+    private static int quantise(double value, double maximum) {
+        double scaled = Math.copySign(Math.sqrt(Math.abs(value / maximum)), value);
+        return (int) Math.max(0, Math.min(18, Math.floor(scaled * 9 + 9.5)));
+    }
+
+    private static double toLinear(int value) {
+        double v = value / 255.0;
+        return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+    }
+
+    private static int toSrgb(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        return v <= 0.0031308
+                ? (int) (v * 12.92 * 255 + 0.5)
+                : (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+
+    private static void encode83(StringBuilder hash, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (value / (int) Math.pow(83, length - i)) % 83;
+            hash.append(BASE83.charAt(digit));
+        }
+    }
+}
@@ -1,30 +1,112 @@
 package com.digicache.services;
 
 import com.digicache.models.Image;
+import com.google.gson.JsonObject;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID; // used to generate ids
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ImageService {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageService.class);
     
     private final Connection connection;
-    private static final String IMAGE_STORAGE_PATH = "data/images/"; // This should be a path to a persistent volume
+    private final String storagePath;
+    private final ImageOptimizer optimizer; // null = store files exactly as uploaded
+    private final BoxEventBroker events; // null = nobody listens for changes
+    private final ImagePlaceholders placeholders; // null = no dimensions/BlurHash
+    // This should be a path to a persistent volume (override with -Ddigicache.image.dir)
+    private static final String IMAGE_STORAGE_PATH = System.getProperty("digicache.image.dir", "data/images/");
+    
+    // Bounded pool for parallel ingest work; when it's full the request thread does the work itself
+    private static final int INGEST_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService INGEST_POOL = new ThreadPoolExecutor(
+            INGEST_THREADS, INGEST_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(256),
+            runnable -> {
+                Thread thread = new Thread(runnable, "image-ingest");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    
+    // One file of a multi-file upload
+    public record UploadSource(String fileName, AppMetrics.IoCall<InputStream> opener) {
+    }
+    
+    // Per-file outcome; imageId is null when the file was rejected or failed
+    public record UploadResult(String fileName, String imageId, String contentType, String sha256, long size, String error) {
+    }
     
     public ImageService(Connection connection) {
+        this(connection, IMAGE_STORAGE_PATH);
+    }
+    
+    public ImageService(Connection connection, ImageOptimizer optimizer) {
+        this(connection, IMAGE_STORAGE_PATH, optimizer, null);
+    }
+    
+    public ImageService(Connection connection, ImageOptimizer optimizer, BoxEventBroker events) {
+        this(connection, IMAGE_STORAGE_PATH, optimizer, events);
+    }
+    
+    public ImageService(Connection connection, ImageOptimizer optimizer, BoxEventBroker events, ImagePlaceholders placeholders) {
+        this(connection, IMAGE_STORAGE_PATH, optimizer, events, placeholders);
+    }
+    
+    // storagePath lets benchmarks/tools point the service at a temp store
+    public ImageService(Connection connection, String storagePath) {
+        this(connection, storagePath, null, null);
+    }
+    
+    public ImageService(Connection connection, String storagePath, ImageOptimizer optimizer, BoxEventBroker events) {
+        this(connection, storagePath, optimizer, events, null);
+    }
+    
+    public ImageService(Connection connection, String storagePath, ImageOptimizer optimizer, BoxEventBroker events,
+            ImagePlaceholders placeholders) {
         this.connection = connection;
+        this.storagePath = storagePath;
+        this.optimizer = optimizer;
+        this.events = events;
+        this.placeholders = placeholders;
         // Ensure the storage directory exists
         try {
-            Files.createDirectories(Paths.get(IMAGE_STORAGE_PATH));
+            Files.createDirectories(Paths.get(storagePath));
         } catch (IOException e) {
             throw new RuntimeException("Could not create image storage directory", e);
         }
@@ -41,29 +123,350 @@ public class ImageService {
         String imageId = UUID.randomUUID().toString();
         String fileExtension = getFileExtension(imagePath);
         String newFileName = imageId + fileExtension;
-        Path destinationPath = Paths.get(IMAGE_STORAGE_PATH, newFileName);
+        Path destinationPath = Paths.get(storagePath, newFileName);
 
         // Copy the file to the storage directory
-        Files.copy(imageFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING);
+        AppMetrics.fileIo("image.copy", () -> Files.copy(imageFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING));
         
-        // adding to the db
-        String insertContent = "INSERT INTO box_contents (box_id, item_id) VALUES (?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertContent)) {
-            stmt.setString(1, boxId);
-            stmt.setString(2, imageId);
-            stmt.executeUpdate();
+        insertImageRowsOrDiscard(imageId, boxId, destinationPath, "image/jpeg");
+        publishImage(boxId, "created", imageId, "image/jpeg");
+        processLater(imageId, boxId, destinationPath, "image/jpeg");
+        return imageId;
+    }
+    
+    // Take ownership of a finished file (e.g. a completed chunked upload) by moving it
+    // into the store instead of copying it, then record it like storeImage does
+    public String adoptImageFile(Path file, String boxId, String contentType) throws SQLException, IOException {
+        String imageId = UUID.randomUUID().toString();
+        Path destinationPath = Paths.get(storagePath, imageId + getFileExtensionForContentType(contentType));
+        AppMetrics.fileIo("image.move", () -> Files.move(file, destinationPath, StandardCopyOption.REPLACE_EXISTING));
+        // a move keeps the old mtime; incremental backups look for files newer than their last run
+        Files.setLastModifiedTime(destinationPath, FileTime.fromMillis(System.currentTimeMillis()));
+        
+        insertImageRowsOrDiscard(imageId, boxId, destinationPath, contentType);
+        publishImage(boxId, "created", imageId, contentType);
+        processLater(imageId, boxId, destinationPath, contentType);
+        return imageId;
+    }
+    
+    // adding to the db (both rows in one transaction); if that fails the file would be an orphan
+    private void insertImageRowsOrDiscard(String imageId, String boxId, Path destinationPath, String contentType) throws SQLException, IOException {
+        try {
+            insertImageRows(imageId, boxId, destinationPath, contentType);
+        } catch (SQLException e) {
+            Files.deleteIfExists(destinationPath);
+            throw e;
+        }
+    }
+    
+    private void insertImageRows(String imageId, String boxId, Path destinationPath, String contentType) throws SQLException {
+        DBInitializer.inTransaction(connection, "images.store", () -> {
+            String insertContent = "INSERT INTO box_contents (box_id, item_id) VALUES (?, ?)";
+            try (PreparedStatement stmt = connection.prepareStatement(insertContent)) {
+                stmt.setString(1, boxId);
+                stmt.setString(2, imageId);
+                AppMetrics.query("box_contents.insert", stmt::executeUpdate);
+            }
+            
+            String insertImage = "INSERT INTO images (id, box_id, image_path, content_type, created_at) VALUES (?, ?, ?, ?, ?)";
+            try (PreparedStatement stmt = connection.prepareStatement(insertImage)) {
+                stmt.setString(1, imageId);
+                stmt.setString(2, boxId); // Make sure boxId is set
+                stmt.setString(3, destinationPath.toString());
+                stmt.setString(4, contentType);
+                stmt.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
+                AppMetrics.query("images.insert", stmt::executeUpdate);
+            }
+            BoxStats.record(connection, boxId, BoxStats.Item.IMAGE, 1);
+            return null;
+        });
+    }
+    
+    /**
+     * Store several uploaded images for one box.
+     * Files are sniffed, hashed and written to the store in parallel, then all rows
+     * are inserted in a single transaction. Results are in the same order as sources.
+     */
+    public List<UploadResult> storeImages(String boxId, List<UploadSource> sources) throws SQLException {
+        List<CompletableFuture<UploadResult>> futures = new ArrayList<>();
+        for (UploadSource source : sources) {
+            futures.add(CompletableFuture.supplyAsync(() -> writeToStore(source), INGEST_POOL));
+        }
+        List<UploadResult> results = new ArrayList<>();
+        for (CompletableFuture<UploadResult> future : futures) {
+            results.add(future.join());
         }
         
-        String insertImage = "INSERT INTO images (id, box_id, image_path, content_type, created_at) VALUES (?, ?, ?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertImage)) {
-            stmt.setString(1, imageId);
-            stmt.setString(2, boxId); // Make sure boxId is set
-            stmt.setString(3, destinationPath.toString());
-            stmt.setString(4, "image/jpeg");
-            stmt.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
-            stmt.executeUpdate();
+        List<UploadResult> stored = results.stream().filter(result -> result.imageId() != null).toList();
+        if (stored.isEmpty()) {
+            return results;
+        }
+        try {
+            DBInitializer.inTransaction(connection, "images.store_batch", () -> {
+                String insertContent = "INSERT INTO box_contents (box_id, item_id) VALUES (?, ?)";
+                String insertImage = "INSERT INTO images (id, box_id, image_path, content_type, created_at, sha256) VALUES (?, ?, ?, ?, ?, ?)";
+                try (PreparedStatement contentStmt = connection.prepareStatement(insertContent);
+                     PreparedStatement imageStmt = connection.prepareStatement(insertImage)) {
+                    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+                    for (UploadResult result : stored) {
+                        contentStmt.setString(1, boxId);
+                        contentStmt.setString(2, result.imageId());
+                        contentStmt.addBatch();
+                        
+                        imageStmt.setString(1, result.imageId());
+                        imageStmt.setString(2, boxId);
+                        imageStmt.setString(3, storedPath(result).toString());
+                        imageStmt.setString(4, result.contentType());
+                        imageStmt.setTimestamp(5, now);
+                        imageStmt.setString(6, result.sha256());
+                        imageStmt.addBatch();
+                    }
+                    AppMetrics.query("box_contents.batch_insert", contentStmt::executeBatch);
+                    AppMetrics.query("images.batch_insert", imageStmt::executeBatch);
+                }
+                BoxStats.record(connection, boxId, BoxStats.Item.IMAGE, stored.size());
+                return null;
+            });
+        } catch (SQLException e) {
+            // rows never made it, don't leave their files behind
+            for (UploadResult result : stored) {
+                try {
+                    Files.deleteIfExists(storedPath(result));
+                } catch (IOException ignored) { }
+            }
+            throw e;
+        }
+        for (UploadResult result : stored) {
+            publishImage(boxId, "created", result.imageId(), result.contentType());
+            processLater(result.imageId(), boxId, storedPath(result), result.contentType());
+        }
+        return results;
+    }
+    
+    // Sniff + hash + copy one upload into the store (runs on the ingest pool)
+    private UploadResult writeToStore(UploadSource source) {
+        try (InputStream raw = source.opener().call();
+             BufferedInputStream in = new BufferedInputStream(raw)) {
+            byte[] header = new byte[16];
+            in.mark(header.length);
+            int headerLength = in.readNBytes(header, 0, header.length);
+            in.reset();
+            
+            String contentType = MimeTypes.sniff(header, headerLength);
+            if (contentType == null) {
+                return new UploadResult(source.fileName(), null, null, null, 0, "Unsupported file type. Expected an image (png/jpg/gif/webp).");
+            }
+            
+            String imageId = UUID.randomUUID().toString();
+            Path destinationPath = Paths.get(storagePath, imageId + getFileExtensionForContentType(contentType));
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            long size = AppMetrics.fileIo("image.write", () -> {
+                try (DigestInputStream digestIn = new DigestInputStream(in, sha256)) {
+                    return Files.copy(digestIn, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            });
+            AppMetrics.uploadBytes("image", size);
+            return new UploadResult(source.fileName(), imageId, contentType, HexFormat.of().formatHex(sha256.digest()), size, null);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return new UploadResult(source.fileName(), null, null, null, 0, "Failed to store file: " + e.getMessage());
+        }
+    }
+    
+    private Path storedPath(UploadResult result) {
+        return Paths.get(storagePath, result.imageId() + getFileExtensionForContentType(result.contentType()));
+    }
+    
+    /**
+     * Queue the work that follows storing an image: normalization (on the optimizer pool),
+     * then the dimensions and BlurHash of whichever file ended up in the store. With the
+     * optimizer off or saturated, only the placeholder is computed (on its own pool).
+     */
+    private void processLater(String imageId, String boxId, Path file, String contentType) {
+        if (optimizer != null && optimizer.submit(() -> process(imageId, boxId, file, contentType, true))) {
+            return;
+        }
+        if (placeholders != null) {
+            placeholders.submit(() -> process(imageId, boxId, file, contentType, false));
+        }
+    }
+    
+    // The file an image is stored in after optimizing, and whether that changed anything
+    private record Stored(Path file, String contentType, boolean changed) {
+    }
+    
+    // Both steps end in one "updated" event, so listings are refetched once
+    private void process(String imageId, String boxId, Path file, String contentType, boolean optimize) {
+        Stored stored = new Stored(file, contentType, false);
+        if (optimize) {
+            stored = optimize(imageId, file, contentType);
+            if (stored == null) {
+                return; // the image was deleted meanwhile
+            }
+        }
+        boolean changed = stored.changed();
+        if (placeholders != null) {
+            try {
+                changed |= describe(imageId, stored.file());
+            } catch (IOException | SQLException | RuntimeException e) {
+                log.atWarn().addKeyValue("imageId", imageId).log("Could not compute placeholder: {}", e.getMessage());
+            }
+        }
+        if (changed) {
+            publishImage(boxId, "updated", imageId, stored.contentType());
+        }
+    }
+    
+    /**
+     * Normalize a stored image. The original is served until the optimized copy is ready,
+     * then the file (and its path/content type, if the format changed) is swapped in.
+     * sha256 stays the hash of what the client uploaded. Returns null if the row is gone.
+     */
+    private Stored optimize(String imageId, Path file, String contentType) {
+        try {
+            ImageOptimizer.Result result = optimizer.optimize(file);
+            if (result == null) {
+                return new Stored(file, contentType, false);
+            }
+            Path target = Paths.get(storagePath, imageId + getFileExtensionForContentType(result.contentType()));
+            AppMetrics.fileIo("optimize.swap", () -> Files.move(result.file(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+            if (!target.equals(file)) {
+                int updated = DBInitializer.inTransaction(connection, "images.optimize", () -> {
+                    String update = "UPDATE images SET image_path = ?, content_type = ? WHERE id = ? AND image_path = ?";
+                    try (PreparedStatement stmt = connection.prepareStatement(update)) {
+                        stmt.setString(1, target.toString());
+                        stmt.setString(2, result.contentType());
+                        stmt.setString(3, imageId);
+                        stmt.setString(4, file.toString());
+                        return AppMetrics.query("images.update_path", stmt::executeUpdate);
+                    }
+                });
+                // if the row is gone the new file is the orphan, otherwise the old one is
+                Files.deleteIfExists(updated > 0 ? file : target);
+                if (updated == 0) {
+                    return null;
+                }
+            }
+            log.atDebug().addKeyValue("imageId", imageId).addKeyValue("originalBytes", result.originalBytes())
+                .addKeyValue("optimizedBytes", result.optimizedBytes()).log("Optimized image");
+            return new Stored(target, result.contentType(), true);
+        } catch (IOException | SQLException | RuntimeException e) {
+            log.atWarn().addKeyValue("imageId", imageId).log("Could not optimize image, keeping original: {}", e.getMessage());
+            return new Stored(file, contentType, false);
+        }
+    }
+    
+    /**
+     * Compute and store an image's dimensions and BlurHash. Images ImageIO can't decode get
+     * 0 x 0 (so the backfill doesn't retry them) and no hash. Returns whether the row now has
+     * a placeholder.
+     */
+    private boolean describe(String imageId, Path file) throws IOException, SQLException {
+        ImagePlaceholders.Placeholder placeholder = placeholders.describe(file);
+        int updated = DBInitializer.inTransaction(connection, "images.update_placeholder", () -> {
+            String update = "UPDATE images SET width = ?, height = ?, blurhash = ? WHERE id = ? AND image_path = ?";
+            try (PreparedStatement stmt = connection.prepareStatement(update)) {
+                stmt.setInt(1, placeholder != null ? placeholder.width() : 0);
+                stmt.setInt(2, placeholder != null ? placeholder.height() : 0);
+                stmt.setString(3, placeholder != null ? placeholder.blurHash() : null);
+                stmt.setString(4, imageId);
+                stmt.setString(5, file.toString());
+                return AppMetrics.query("images.update_placeholder", stmt::executeUpdate);
+            }
+        });
+        return updated > 0 && placeholder != null;
+    }
+    
+    /**
+     * Compute placeholders for up to limit images that don't have one yet (stored before
+     * placeholders existed, or dropped because the pool was full). Returns how many were done.
+     */
+    public int describeMissing(int limit) throws SQLException {
+        if (placeholders == null) {
+            return 0;
+        }
+        List<String[]> missing = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT id, box_id, image_path, content_type FROM images WHERE width IS NULL AND image_path IS NOT NULL LIMIT ?")) {
+            stmt.setInt(1, limit);
+            try (ResultSet rs = AppMetrics.query("images.select_without_placeholder", stmt::executeQuery)) {
+                while (rs.next()) {
+                    missing.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)});
+                }
+            }
+        }
+        for (String[] image : missing) {
+            boolean described;
+            try {
+                described = describe(image[0], Paths.get(image[2]));
+            } catch (IOException | RuntimeException e) {
+                // unreadable file: mark it like an undecodable one so it isn't picked again
+                log.atWarn().addKeyValue("imageId", image[0]).log("Could not compute placeholder: {}", e.getMessage());
+                DBInitializer.inTransaction(connection, "images.update_placeholder", () -> {
+                    try (PreparedStatement stmt = connection.prepareStatement("UPDATE images SET width = 0, height = 0 WHERE id = ?")) {
+                        stmt.setString(1, image[0]);
+                        return AppMetrics.query("images.update_placeholder", stmt::executeUpdate);
+                    }
+                });
+                continue;
+            }
+            if (described) {
+                publishImage(image[1], "updated", image[0], image[3]);
+            }
+        }
+        return missing.size();
+    }
+    
+    // Same as optimize() for a box background. The optimized copy gets its own name and
+    // only replaces the row if the file it was made from is still the current background.
+    private void optimizeBackgroundLater(String boxId, Path file) {
+        if (optimizer == null) {
+            return;
+        }
+        optimizer.submit(() -> {
+            try {
+                ImageOptimizer.Result result = optimizer.optimize(file);
+                if (result == null) {
+                    return;
+                }
+                String suffix = UUID.randomUUID().toString().substring(0, 8);
+                Path target = Paths.get(storagePath, "bg_" + boxId + "_" + suffix + getFileExtensionForContentType(result.contentType()));
+                AppMetrics.fileIo("optimize.swap", () -> Files.move(result.file(), target, StandardCopyOption.ATOMIC_MOVE));
+                int updated = DBInitializer.inTransaction(connection, "background_images.optimize", () -> {
+                    String update = "UPDATE background_images SET image_path = ? WHERE box_id = ? AND image_path = ?";
+                    try (PreparedStatement stmt = connection.prepareStatement(update)) {
+                        stmt.setString(1, target.toString());
+                        stmt.setString(2, boxId);
+                        stmt.setString(3, file.toString());
+                        return AppMetrics.query("background_images.update_path", stmt::executeUpdate);
+                    }
+                });
+                Files.deleteIfExists(updated > 0 ? file : target);
+                if (updated > 0) {
+                    publishBackground(boxId);
+                }
+                log.atDebug().addKeyValue("boxId", boxId).addKeyValue("originalBytes", result.originalBytes())
+                    .addKeyValue("optimizedBytes", result.optimizedBytes()).log("Optimized background");
+            } catch (IOException | SQLException | RuntimeException e) {
+                log.atWarn().addKeyValue("boxId", boxId).log("Could not optimize background, keeping original: {}", e.getMessage());
+            }
+        });
+    }
+    
+    // Change notifications go out after the transaction has committed
+    private void publishImage(String boxId, String action, String imageId, String contentType) {
+        if (events == null) {
+            return;
+        }
+        JsonObject data = new JsonObject();
+        data.addProperty("imageId", imageId);
+        data.addProperty("contentType", contentType);
+        events.publish(boxId, "image", action, data);
+    }
+    
+    private void publishBackground(String boxId) {
+        if (events != null) {
+            events.publish(boxId, "background", "updated", null);
         }
-        return imageId;
     }
     
     // getting image from db
@@ -73,20 +476,20 @@ public class ImageService {
         try (PreparedStatement stmt = connection.prepareStatement(query)) {
             stmt.setString(1, imageId);
             
-            try (ResultSet rs = stmt.executeQuery()) {
+            try (ResultSet rs = AppMetrics.query("images.select_path", stmt::executeQuery)) {
                 if (rs.next()) {
                     String imagePath = rs.getString("image_path");
                     Path sourcePath = Paths.get(imagePath);
 
                     if (Files.exists(sourcePath)) {
                         Files.copy(sourcePath, Paths.get(outputPath), StandardCopyOption.REPLACE_EXISTING);
-                        System.out.println("saved image to: " + outputPath);
+                        log.atInfo().addKeyValue("imageId", imageId).addKeyValue("path", outputPath).log("Saved image");
                     } else {
                         throw new IOException("Image file not found at: " + imagePath);
                     }
                 } 
                 else {
-                    System.out.println("image could not be found: " + imageId);
+                    log.atWarn().addKeyValue("imageId", imageId).log("Image not found");
                 }
             }
         }
@@ -95,11 +498,41 @@ public class ImageService {
     // highkey this can be moved into its own class
     public void createBox(String boxId) throws SQLException {
         String insert = "INSERT INTO box_ids (id) VALUES (?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insert)) {
-            stmt.setString(1, boxId);
-            stmt.executeUpdate();
-            System.out.println("Box created: " + boxId);
-        }
+        DBInitializer.inTransaction(connection, "box_ids.insert", () -> {
+            try (PreparedStatement stmt = connection.prepareStatement(insert)) {
+                stmt.setString(1, boxId);
+                AppMetrics.query("box_ids.insert", stmt::executeUpdate);
+            }
+            BoxStats.ensure(connection, List.of(boxId));
+            return null;
+        });
+        log.atDebug().addKeyValue("boxId", boxId).log("Box created");
+    }
+    
+    // Create many boxes in one transaction, ids that already exist are skipped.
+    // Returns boxId -> true if it was created, false if it already existed (in request order)
+    public Map<String, Boolean> createBoxes(Collection<String> boxIds) throws SQLException {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(boxIds));
+        
+        DBInitializer.inTransaction(connection, "box_ids.batch_insert", () -> {
+            String insert = DBInitializer.dialect().insertIgnore("box_ids", "id", "id");
+            try (PreparedStatement stmt = connection.prepareStatement(insert)) {
+                for (String boxId : ids) {
+                    stmt.setString(1, boxId);
+                    stmt.addBatch();
+                }
+                int[] counts = AppMetrics.query("box_ids.batch_insert", stmt::executeBatch);
+                for (int i = 0; i < ids.size(); i++) {
+                    results.put(ids.get(i), counts[i] > 0);
+                }
+            }
+            BoxStats.ensure(connection, ids);
+            return null;
+        });
+        log.atInfo().addKeyValue("created", results.values().stream().filter(created -> created).count())
+                .addKeyValue("requested", ids.size()).log("Boxes created");
+        return results;
     }
     
     // Store background image for a box (replaces existing if any)
@@ -110,22 +543,47 @@ public class ImageService {
             throw new IOException("image not found: " + imagePath);
         }
         
+        // Every upload gets a new file name: files are never overwritten in place, and the old
+        // one can be removed once the row points at the new one
         String fileExtension = getFileExtension(imagePath);
-        String newFileName = "bg_" + boxId + fileExtension;
-        Path destinationPath = Paths.get(IMAGE_STORAGE_PATH, newFileName);
+        String newFileName = "bg_" + boxId + "_" + UUID.randomUUID().toString().substring(0, 8) + fileExtension;
+        Path destinationPath = Paths.get(storagePath, newFileName);
 
         // Copy the file to the storage directory
-        Files.copy(imageFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING);
+        AppMetrics.fileIo("background.copy", () -> Files.copy(imageFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING));
         
-        // Insert or replace background image for this box
-        String insertBackground = "INSERT OR REPLACE INTO background_images (box_id, image_path) VALUES (?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertBackground)) {
-            stmt.setString(1, boxId);
-            stmt.setString(2, destinationPath.toString());
-            stmt.executeUpdate();
+        String previousPath;
+        try {
+            previousPath = DBInitializer.inTransaction(connection, "background_images.store", () -> {
+                String previous = null;
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT image_path FROM background_images WHERE box_id = ?")) {
+                    stmt.setString(1, boxId);
+                    try (ResultSet rs = AppMetrics.query("background_images.select", stmt::executeQuery)) {
+                        if (rs.next()) {
+                            previous = rs.getString("image_path");
+                        }
+                    }
+                }
+                // Insert or replace background image for this box
+                String insertBackground = DBInitializer.dialect().upsert("background_images", "box_id", "box_id", "image_path");
+                try (PreparedStatement stmt = connection.prepareStatement(insertBackground)) {
+                    stmt.setString(1, boxId);
+                    stmt.setString(2, destinationPath.toString());
+                    AppMetrics.query("background_images.upsert", stmt::executeUpdate);
+                }
+                return previous;
+            });
+        } catch (SQLException e) {
+            Files.deleteIfExists(destinationPath);
+            throw e;
+        }
+        if (previousPath != null && !previousPath.equals(destinationPath.toString())) {
+            Files.deleteIfExists(Paths.get(previousPath));
         }
         
-        System.out.println("Background image stored for box: " + boxId);
+        log.atDebug().addKeyValue("boxId", boxId).log("Background image stored");
+        publishBackground(boxId);
+        optimizeBackgroundLater(boxId, destinationPath);
     }
     
     // Get background image for a box
@@ -135,11 +593,11 @@ public class ImageService {
         try (PreparedStatement stmt = connection.prepareStatement(query)) {
             stmt.setString(1, boxId);
             
-            try (ResultSet rs = stmt.executeQuery()) {
+            try (ResultSet rs = AppMetrics.query("background_images.select", stmt::executeQuery)) {
                 if (rs.next()) {
                     String imagePath = rs.getString("image_path");
                     if (imagePath != null && !imagePath.isEmpty()) {
-                        return Files.readAllBytes(Paths.get(imagePath));
+                        return AppMetrics.fileIo("background.read", () -> Files.readAllBytes(Paths.get(imagePath)));
                     }
                 }
             }
@@ -151,68 +609,132 @@ public class ImageService {
         String imageId = UUID.randomUUID().toString();
         String fileExtension = getFileExtensionForContentType(contentType);
         String newFileName = imageId + fileExtension;
-        Path destinationPath = Paths.get(IMAGE_STORAGE_PATH, newFileName);
+        Path destinationPath = Paths.get(storagePath, newFileName);
 
         // Write byte data to a file
-        Files.write(destinationPath, data);
+        AppMetrics.fileIo("image.write", () -> Files.write(destinationPath, data));
 
-        String sql = "INSERT INTO images (id, box_id, image_path, content_type, created_at) VALUES (?, ?, ?, ?, ?)";
-        
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setString(1, imageId);
-            statement.setString(2, boxId);
-            statement.setString(3, destinationPath.toString());
-            statement.setString(4, contentType);
-            statement.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
-            statement.executeUpdate();
-        }
-        
-        // Add image ID to box's image list
-        String updateBox = "UPDATE box_ids SET image_ids = COALESCE(image_ids, '') || ? WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(updateBox)) {
-            stmt.setString(1, imageId + ",");
-            stmt.setString(2, boxId);
-            stmt.executeUpdate();
+        try {
+            DBInitializer.inTransaction(connection, "images.save", () -> {
+                String sql = "INSERT INTO images (id, box_id, image_path, content_type, created_at) VALUES (?, ?, ?, ?, ?)";
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setString(1, imageId);
+                    statement.setString(2, boxId);
+                    statement.setString(3, destinationPath.toString());
+                    statement.setString(4, contentType);
+                    statement.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
+                    AppMetrics.query("images.insert", statement::executeUpdate);
+                }
+            
+                // Add image ID to the box (box_contents is what the listings read)
+                String insertContent = "INSERT INTO box_contents (box_id, item_id) VALUES (?, ?)";
+                try (PreparedStatement stmt = connection.prepareStatement(insertContent)) {
+                    stmt.setString(1, boxId);
+                    stmt.setString(2, imageId);
+                    AppMetrics.query("box_contents.insert", stmt::executeUpdate);
+                }
+                BoxStats.record(connection, boxId, BoxStats.Item.IMAGE, 1);
+                return null;
+            });
+        } catch (SQLException e) {
+            Files.deleteIfExists(destinationPath);
+            throw e;
         }
         
+        publishImage(boxId, "created", imageId, contentType);
+        processLater(imageId, boxId, destinationPath, contentType);
         return imageId;
     }
     
-    public Image getImageById(String id) throws SQLException, IOException {
-        String sql = "SELECT id, box_id, image_path, content_type, created_at FROM images WHERE id = ?";
+    private static final String IMAGE_COLUMNS = "id, box_id, image_path, content_type, created_at, width, height, blurhash";
+    
+    // The row only; the bytes are read from the image store when getData() is first called
+    public Image getImageById(String id) throws SQLException {
+        String sql = "SELECT " + IMAGE_COLUMNS + " FROM images WHERE id = ?";
         
         try (PreparedStatement stmt = connection.prepareStatement(sql)) {
             stmt.setString(1, id);
-            ResultSet rs = stmt.executeQuery();
+            ResultSet rs = AppMetrics.query("images.select_by_id", stmt::executeQuery);
             
             if (rs.next()) {
-                Image image = new Image();
-                image.setId(rs.getString("id"));
-                image.setBoxId(rs.getString("box_id"));
-                
-                String imagePath = rs.getString("image_path");
-                if (imagePath != null && !imagePath.isEmpty() && Files.exists(Paths.get(imagePath))) {
-                    image.setData(Files.readAllBytes(Paths.get(imagePath)));
-                }
-                
-                // Get content type if stored, otherwise default to jpeg
-                String contentType = rs.getString("content_type");
-                image.setContentType(contentType != null ? contentType : "image/jpeg");
-                
-                // Get timestamp
-                Timestamp timestamp = rs.getTimestamp("created_at");
-                if (timestamp != null) {
-                    image.setCreatedAt(timestamp.toLocalDateTime());
-                } else {
-                    image.setCreatedAt(LocalDateTime.now());
-                }
-                
-                return image;
+                return readImage(rs);
             }
         }
         
         return null;
     }
+    
+    // Metadata for many images in one query (no file is read). Ids that don't exist are left out,
+    // the rest keep the order they were asked in
+    public List<Image> getImagesByIds(Collection<String> ids) throws SQLException {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (distinct.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String sql = "SELECT " + IMAGE_COLUMNS + " FROM images WHERE id IN ("
+                + String.join(", ", Collections.nCopies(distinct.size(), "?")) + ")";
+        
+        Map<String, Image> found = new HashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (int i = 0; i < distinct.size(); i++) {
+                stmt.setString(i + 1, distinct.get(i));
+            }
+            ResultSet rs = AppMetrics.query("images.select_by_ids", stmt::executeQuery);
+            while (rs.next()) {
+                Image image = readImage(rs);
+                found.put(image.getId(), image);
+            }
+        }
+        
+        List<Image> images = new ArrayList<>(found.size());
+        for (String id : distinct) {
+            Image image = found.get(id);
+            if (image != null) {
+                images.add(image);
+            }
+        }
+        return images;
+    }
+    
+    private Image readImage(ResultSet rs) throws SQLException {
+        Image image = new Image();
+        image.setId(rs.getString("id"));
+        image.setBoxId(rs.getString("box_id"));
+        
+        // A missing file reads as no data, as it did when this checked Files.exists up front
+        String imagePath = rs.getString("image_path");
+        if (imagePath != null && !imagePath.isEmpty()) {
+            Path file = Paths.get(imagePath);
+            image.setDataLoader(() -> {
+                try {
+                    return AppMetrics.fileIo("image.read", () -> Files.readAllBytes(file));
+                } catch (NoSuchFileException e) {
+                    return null;
+                }
+            });
+        }
+        
+        // Get content type if stored, otherwise default to jpeg
+        String contentType = rs.getString("content_type");
+        image.setContentType(contentType != null ? contentType : "image/jpeg");
+        
+        // Get timestamp
+        Timestamp timestamp = rs.getTimestamp("created_at");
+        if (timestamp != null) {
+            image.setCreatedAt(timestamp.toLocalDateTime());
+        } else {
+            image.setCreatedAt(LocalDateTime.now());
+        }
+        
+        // 0 x 0 marks an image that couldn't be decoded
+        int width = rs.getInt("width");
+        if (width > 0) {
+            image.setWidth(width);
+            image.setHeight(rs.getInt("height"));
+            image.setBlurHash(rs.getString("blurhash"));
+        }
+        return image;
+    }
 
     private String getFileExtension(String fileName) {
         int lastIndexOf = fileName.lastIndexOf(".");
@@ -222,7 +744,11 @@ public class ImageService {
         return fileName.substring(lastIndexOf);
     }
 
-    private String getFileExtensionForContentType(String contentType) {
+    public String getStoragePath() {
+        return storagePath;
+    }
+
+    static String getFileExtensionForContentType(String contentType) {
         if (contentType != null) {
             switch (contentType.toLowerCase()) {
                 case "image/jpeg":
@@ -231,6 +757,8 @@ public class ImageService {
                     return ".png";
                 case "image/gif":
                     return ".gif";
+                case "image/webp":
+                    return ".webp";
                 // Add other content types as needed
             }
         }
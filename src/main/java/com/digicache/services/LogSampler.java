@@ -0,0 +1,26 @@
+package com.digicache.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets one in every n calls through, for log lines that would otherwise be written for every
+ * request (e.g. one per upload). Lines that pass should carry every() as a key-value
+ * ("sampled") so whoever reads them knows each one stands for that many events.
+ */
+public final class LogSampler {
+
+    private final int every;
+    private final AtomicLong calls = new AtomicLong();
+
+    public LogSampler(int every) {
+        this.every = Math.max(1, every);
+    }
+
+    public boolean sample() {
+        return calls.getAndIncrement() % every == 0;
+    }
+
+    public int every() {
+        return every;
+    }
+}
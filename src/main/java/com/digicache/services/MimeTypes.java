@@ -0,0 +1,63 @@
+package com.digicache.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+public final class MimeTypes {
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Detect the MIME type of an uploaded file.
+     * Tries the multipart content-type first, then probing the file, then the file name.
+     * Returns null if nothing matched.
+     */
+    public static String detect(String declaredType, Path file, String originalFilename) {
+        String detectedMime = declaredType;
+        if ((detectedMime == null || detectedMime.isBlank()) && file != null) {
+            // fallback to probing the temp file
+            try {
+                detectedMime = Files.probeContentType(file);
+            } catch (IOException ignored) { }
+        }
+
+        // final fallback: infer from filename extension
+        if ((detectedMime == null || detectedMime.isBlank()) && originalFilename != null) {
+            detectedMime = fromFileName(originalFilename);
+        }
+        return detectedMime;
+    }
+
+    /**
+     * Sniff an image type from the first bytes of the file (magic numbers).
+     * Doesn't trust the client at all, returns null if it's not an image we know.
+     */
+    public static String sniff(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xff) == 0xFF && (header[1] & 0xff) == 0xD8 && (header[2] & 0xff) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+            return "image/png";
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8') {
+            return "image/gif";
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        }
+        return null;
+    }
+
+    public static String fromFileName(String fileName) {
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+        if (lower.endsWith(".gif")) return "image/gif";
+        if (lower.endsWith(".txt")) return "text/plain";
+        return null;
+    }
+}
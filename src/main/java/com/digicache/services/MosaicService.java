@@ -0,0 +1,319 @@
+package com.digicache.services;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One sprite image per box with a downscaled, square-cropped tile of each of its images (in
+ * listing order, newest first), plus where each tile sits, so a box grid is two requests
+ * instead of one full-size download per image.
+ *
+ * The first request for a box builds its mosaic (concurrent requests wait for that one
+ * build) and keeps it, bounded by the total sprite bytes. Image changes in a box with a kept
+ * mosaic schedule a rebuild after a quiet period (an upload of 20 files is one rebuild, not
+ * 20); until it has run, requests get the previous mosaic, marked stale.
+ */
+public class MosaicService {
+
+    private static final Logger log = LoggerFactory.getLogger(MosaicService.class);
+
+    public record Tile(String imageId, int x, int y) {
+    }
+
+    /**
+     * A built mosaic. sprite is a JPEG (null when the box has no decodable image), etag
+     * identifies its content. skipped are images that couldn't be decoded (e.g. WebP),
+     * truncated means the box has more images than fit.
+     */
+    public record Mosaic(String boxId, int tileSize, int columns, int width, int height, List<Tile> tiles,
+                         List<String> skipped, boolean truncated, byte[] sprite, String etag, long generation) {
+    }
+
+    // stale: images changed since it was built, a rebuild is on its way
+    public record Result(Mosaic mosaic, boolean stale) {
+    }
+
+    private final Connection connection;
+    private final int tileSize;
+    private final int maxTiles;
+    private final float quality;
+    private final long debounceMillis;
+    private final long maxBytes;
+
+    // access order: the least recently requested mosaic goes first when over maxBytes
+    private final LinkedHashMap<String, Mosaic> mosaics = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // bumped on every image change in a box; a mosaic built at an older generation is stale
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Mosaic>> building = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> rebuilds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mosaic-rebuild");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // maxBytes <= 0: nothing is kept, every request builds
+    public MosaicService(Connection connection, int tileSize, int maxTiles, float quality, long debounceMillis, long maxBytes) {
+        this.connection = connection;
+        this.tileSize = tileSize;
+        this.maxTiles = maxTiles;
+        this.quality = quality;
+        this.debounceMillis = debounceMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    // Rebuild (later) whenever the broker reports an image change in a box
+    public void attachTo(BoxEventBroker events) {
+        events.addListener((boxId, type, action) -> {
+            if (type.equals("image")) {
+                changed(boxId);
+            }
+        });
+    }
+
+    public Result get(String boxId) throws SQLException, IOException {
+        Mosaic kept;
+        synchronized (mosaics) {
+            kept = mosaics.get(boxId);
+        }
+        if (kept != null) {
+            boolean stale = kept.generation() != generation(boxId);
+            // a stale one is only served while its rebuild is scheduled, otherwise build now
+            if (!stale || rebuilds.containsKey(boxId)) {
+                AppMetrics.cacheAccess("mosaic", !stale);
+                return new Result(kept, stale);
+            }
+        }
+        AppMetrics.cacheAccess("mosaic", false);
+        return new Result(build(boxId), false);
+    }
+
+    private void changed(String boxId) {
+        generations.computeIfAbsent(boxId, id -> new AtomicLong()).incrementAndGet();
+        boolean kept;
+        synchronized (mosaics) {
+            kept = mosaics.containsKey(boxId);
+        }
+        if (!kept) {
+            return; // nobody has asked for it yet, the next request builds it
+        }
+        // debounce: every change pushes the rebuild back
+        ScheduledFuture<?> previous = rebuilds.put(boxId, scheduleRebuild(boxId));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    // The scheduled run gets its own future, so it only ever replaces or removes itself in rebuilds
+    private ScheduledFuture<?> scheduleRebuild(String boxId) {
+        CompletableFuture<ScheduledFuture<?>> self = new CompletableFuture<>();
+        ScheduledFuture<?> future = scheduler.schedule(() -> rebuild(boxId, self.join()), debounceMillis, TimeUnit.MILLISECONDS);
+        self.complete(future);
+        return future;
+    }
+
+    private void rebuild(String boxId, ScheduledFuture<?> self) {
+        try {
+            Mosaic mosaic = build(boxId);
+            // joined a build that started before the last change: go again, unless a change
+            // since has already scheduled the next rebuild
+            if (mosaic.generation() != generation(boxId)) {
+                ScheduledFuture<?> next = scheduleRebuild(boxId);
+                if (!rebuilds.replace(boxId, self, next)) {
+                    next.cancel(false);
+                }
+                return;
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            log.atWarn().addKeyValue("boxId", boxId).log("Could not rebuild mosaic: {}", e.getMessage());
+            // drop it, the next request builds it or fails with the error
+            synchronized (mosaics) {
+                Mosaic removed = mosaics.remove(boxId);
+                if (removed != null) {
+                    totalBytes -= size(removed);
+                }
+            }
+        }
+        rebuilds.remove(boxId, self);
+    }
+
+    // One build per box at a time; others asking meanwhile get the same result
+    private Mosaic build(String boxId) throws SQLException, IOException {
+        CompletableFuture<Mosaic> mine = new CompletableFuture<>();
+        CompletableFuture<Mosaic> running = building.putIfAbsent(boxId, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException sql) {
+                    throw sql;
+                }
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw e;
+            }
+        }
+        try {
+            long generation = generation(boxId);
+            Mosaic mosaic = render(boxId, generation);
+            keep(mosaic);
+            mine.complete(mosaic);
+            return mosaic;
+        } catch (SQLException | IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            building.remove(boxId, mine);
+        }
+    }
+
+    private Mosaic render(String boxId, long generation) throws SQLException, IOException {
+        // same order as the box's image listing
+        List<String[]> images = new ArrayList<>();
+        String sql = "SELECT i.id, i.image_path FROM box_contents c JOIN images i ON i.id = c.item_id "
+                + "WHERE c.box_id = ? ORDER BY i.created_at DESC LIMIT ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, boxId);
+            stmt.setInt(2, maxTiles + 1);
+            try (ResultSet rs = AppMetrics.query("images.select_paths_by_box", stmt::executeQuery)) {
+                while (rs.next()) {
+                    images.add(new String[] {rs.getString(1), rs.getString(2)});
+                }
+            }
+        }
+        boolean truncated = images.size() > maxTiles;
+        if (truncated) {
+            images = images.subList(0, maxTiles);
+        }
+
+        List<String> skipped = new ArrayList<>();
+        List<BufferedImage> decoded = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (String[] image : images) {
+            BufferedImage tile = image[1] != null ? readTile(Paths.get(image[1])) : null;
+            if (tile == null) {
+                skipped.add(image[0]);
+            } else {
+                decoded.add(tile);
+                ids.add(image[0]);
+            }
+        }
+        if (decoded.isEmpty()) {
+            return new Mosaic(boxId, tileSize, 0, 0, 0, List.of(), skipped, truncated, null, null, generation);
+        }
+
+        // about square, so neither side gets huge
+        int columns = (int) Math.ceil(Math.sqrt(decoded.size()));
+        int rows = (decoded.size() + columns - 1) / columns;
+        BufferedImage sprite = new BufferedImage(columns * tileSize, rows * tileSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = sprite.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, sprite.getWidth(), sprite.getHeight());
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < decoded.size(); i++) {
+            BufferedImage image = decoded.get(i);
+            int x = (i % columns) * tileSize;
+            int y = (i / columns) * tileSize;
+            // centre square of the image, scaled to the tile
+            int side = Math.min(image.getWidth(), image.getHeight());
+            int sx = (image.getWidth() - side) / 2;
+            int sy = (image.getHeight() - side) / 2;
+            g.drawImage(image, x, y, x + tileSize, y + tileSize, sx, sy, sx + side, sy + side, null);
+            tiles.add(new Tile(ids.get(i), x, y));
+        }
+        g.dispose();
+
+        byte[] bytes = AppMetrics.fileIo("mosaic.encode", () -> ImageOptimizer.encodeJpeg(sprite, quality));
+        return new Mosaic(boxId, tileSize, columns, sprite.getWidth(), sprite.getHeight(), List.copyOf(tiles),
+                List.copyOf(skipped), truncated, bytes, etag(bytes), generation);
+    }
+
+    // Decoded at about twice the tile size (see ImagePlaceholders.readSubsampled), null if ImageIO can't read it
+    private BufferedImage readTile(Path file) throws IOException {
+        ImagePlaceholders.Decoded decoded = ImagePlaceholders.readSubsampled(file, tileSize * 2);
+        return decoded != null ? decoded.image() : null;
+    }
+
+    // Only mosaics with a sprite are kept, an empty box is one quick query to rebuild
+    private void keep(Mosaic mosaic) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        synchronized (mosaics) {
+            Mosaic previous = mosaics.get(mosaic.boxId());
+            // a slow build mustn't replace a newer one
+            if (previous != null && previous.generation() > mosaic.generation()) {
+                return;
+            }
+            if (mosaic.sprite() == null) {
+                if (previous != null) {
+                    mosaics.remove(mosaic.boxId());
+                    totalBytes -= size(previous);
+                }
+                return;
+            }
+            mosaics.put(mosaic.boxId(), mosaic);
+            totalBytes += size(mosaic) - (previous != null ? size(previous) : 0);
+            Iterator<Mosaic> eldest = mosaics.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Mosaic evicted = eldest.next();
+                if (evicted == mosaic) {
+                    continue;
+                }
+                eldest.remove();
+                totalBytes -= size(evicted);
+            }
+        }
+    }
+
+    // Only boxes with image changes get an entry (not every box id somebody requests)
+    private long generation(String boxId) {
+        AtomicLong generation = generations.get(boxId);
+        return generation != null ? generation.get() : 0;
+    }
+
+    private static long size(Mosaic mosaic) {
+        return mosaic.sprite() != null ? mosaic.sprite().length : 0;
+    }
+
+    private static String etag(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.digicache.services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds and deletes files in the image store that no images / background_images row points at
+ * (failed inserts, replaced backgrounds, optimizer leftovers).
+ *
+ * It works incrementally: each step() looks at the next maxFilesPerStep names after a cursor
+ * (in name order), checks them against the database in batches of batchSize with IN queries,
+ * and sleeps pauseMillis between batches so it never hogs the shared connection or the disk.
+ * The cursor wraps around once the end of the directory is reached. Files younger than
+ * minAgeMillis are skipped, since an upload writes its file before its row.
+ */
+public class OrphanSweeper {
+
+    private static final Logger log = LoggerFactory.getLogger(OrphanSweeper.class);
+
+    private final Connection connection;
+    private final Path store;
+    private final int batchSize;
+    private final int maxFilesPerStep;
+    private final long pauseMillis;
+    private final long minAgeMillis;
+    private String cursor = "";
+    private final AtomicBoolean dryRunning = new AtomicBoolean();
+
+    public record Orphan(String file, long bytes) {
+    }
+
+    public record Report(int scanned, int orphans, long orphanBytes, int deleted, boolean dryRun, List<Orphan> sample) {
+    }
+
+    // One page of a dry run; next is the name to continue after, null at the end of the store
+    public record DryRun(Report report, String next) {
+    }
+
+    public OrphanSweeper(Connection connection, String storagePath, int batchSize, int maxFilesPerStep, long pauseMillis, long minAgeMillis) {
+        this.connection = connection;
+        this.store = Paths.get(storagePath);
+        this.batchSize = batchSize;
+        this.maxFilesPerStep = maxFilesPerStep;
+        this.pauseMillis = pauseMillis;
+        this.minAgeMillis = minAgeMillis;
+    }
+
+    /**
+     * Sweep the next slice of the store (deleting orphans) and advance the cursor.
+     */
+    public synchronized Report step() throws IOException, SQLException, InterruptedException {
+        List<String> names = nextNames(cursor, maxFilesPerStep);
+        cursor = names.size() < maxFilesPerStep ? "" : names.get(names.size() - 1);
+        return sweep(names, false, 0);
+    }
+
+    /**
+     * Look at up to maxFiles names after `after` (in name order) without deleting anything and
+     * report what a sweep would remove there. Same batching and pauses as step(); at most
+     * sampleSize orphans are listed. next is where the following page starts, or null once the
+     * end of the store is reached. One dry run at a time: null while another is running.
+     */
+    public DryRun dryRun(String after, int maxFiles, int sampleSize) throws IOException, SQLException, InterruptedException {
+        if (!dryRunning.compareAndSet(false, true)) {
+            return null;
+        }
+        try {
+            int scanned = 0;
+            int orphans = 0;
+            long orphanBytes = 0;
+            List<Orphan> sample = new ArrayList<>();
+            String from = after != null ? after : "";
+            int remaining = maxFiles;
+            List<String> names;
+            do {
+                names = nextNames(from, Math.min(remaining, maxFilesPerStep));
+                if (names.isEmpty()) {
+                    break;
+                }
+                Report part = sweep(names, true, sampleSize - sample.size());
+                scanned += part.scanned();
+                orphans += part.orphans();
+                orphanBytes += part.orphanBytes();
+                sample.addAll(part.sample());
+                from = names.get(names.size() - 1);
+                remaining -= names.size();
+            } while (remaining > 0 && names.size() == maxFilesPerStep);
+            boolean more = remaining == 0 && !nextNames(from, 1).isEmpty();
+            return new DryRun(new Report(scanned, orphans, orphanBytes, 0, true, sample), more ? from : null);
+        } finally {
+            dryRunning.set(false);
+        }
+    }
+
+    // The `limit` smallest file names greater than `after`, in order (bounded heap, one directory pass)
+    private List<String> nextNames(String after, int limit) throws IOException {
+        PriorityQueue<String> smallest = new PriorityQueue<>(Collections.reverseOrder());
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(store)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(".") || name.compareTo(after) <= 0) {
+                    continue; // dot files are in-flight temp files
+                }
+                if (smallest.size() < limit) {
+                    smallest.add(name);
+                } else if (name.compareTo(smallest.peek()) < 0) {
+                    smallest.poll();
+                    smallest.add(name);
+                }
+            }
+        }
+        List<String> names = new ArrayList<>(smallest);
+        Collections.sort(names);
+        return names;
+    }
+
+    private Report sweep(List<String> names, boolean dryRun, int sampleSize) throws IOException, SQLException, InterruptedException {
+        int scanned = 0;
+        int orphans = 0;
+        int deleted = 0;
+        long orphanBytes = 0;
+        List<Orphan> sample = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+
+        for (int from = 0; from < names.size(); from += batchSize) {
+            if (from > 0 && pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+            // regular files old enough to judge (subdirectories are uploads/caches)
+            Map<String, Long> candidates = new HashMap<>();
+            for (String name : names.subList(from, Math.min(names.size(), from + batchSize))) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(store.resolve(name), BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() < cutoff) {
+                        candidates.put(name, attributes.size());
+                    }
+                } catch (NoSuchFileException ignored) { }
+            }
+            scanned += candidates.size();
+            if (candidates.isEmpty()) {
+                continue;
+            }
+
+            Set<String> live = liveNames(candidates.keySet());
+            for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                String name = candidate.getKey();
+                if (live.contains(name) || referencedByName(name)) {
+                    continue;
+                }
+                orphans++;
+                orphanBytes += candidate.getValue();
+                if (sample.size() < sampleSize) {
+                    sample.add(new Orphan(name, candidate.getValue()));
+                }
+                if (!dryRun && AppMetrics.fileIo("gc.delete", () -> Files.deleteIfExists(store.resolve(name)))) {
+                    deleted++;
+                    AppMetrics.orphanDeleted(candidate.getValue());
+                }
+            }
+        }
+        if (deleted > 0) {
+            log.atInfo().addKeyValue("files", deleted).addKeyValue("bytes", orphanBytes).log("Orphan sweep deleted files");
+        }
+        return new Report(scanned, orphans, orphanBytes, deleted, dryRun, sample);
+    }
+
+    /**
+     * Names (out of the batch) that a row points at. Image files are named <id><ext>, so they're
+     * looked up by id on the primary key; anything else (backgrounds) by its stored path.
+     */
+    private Set<String> liveNames(Set<String> names) throws SQLException {
+        Set<String> live = new HashSet<>();
+        Map<String, String> byId = new HashMap<>();
+        Map<String, String> byPath = new HashMap<>();
+        for (String name : names) {
+            int dot = name.lastIndexOf('.');
+            byId.put(dot > 0 ? name.substring(0, dot) : name, name);
+            byPath.put(store.resolve(name).toString(), name);
+            byPath.put(store.resolve(name).toAbsolutePath().toString(), name);
+        }
+
+        String imageSql = "SELECT image_path FROM images WHERE id IN (" + placeholders(byId.size()) + ")";
+        try (PreparedStatement stmt = connection.prepareStatement(imageSql)) {
+            int i = 1;
+            for (String id : byId.keySet()) {
+                stmt.setString(i++, id);
+            }
+            try (ResultSet rs = AppMetrics.query("images.gc_lookup", stmt::executeQuery)) {
+                while (rs.next()) {
+                    String path = rs.getString("image_path");
+                    if (path != null) {
+                        live.add(Paths.get(path).getFileName().toString());
+                    }
+                }
+            }
+        }
+
+        String backgroundSql = "SELECT image_path FROM background_images WHERE image_path IN (" + placeholders(byPath.size()) + ")";
+        try (PreparedStatement stmt = connection.prepareStatement(backgroundSql)) {
+            int i = 1;
+            for (String path : byPath.keySet()) {
+                stmt.setString(i++, path);
+            }
+            try (ResultSet rs = AppMetrics.query("background_images.gc_lookup", stmt::executeQuery)) {
+                while (rs.next()) {
+                    live.add(byPath.get(rs.getString("image_path")));
+                }
+            }
+        }
+        return live;
+    }
+
+    // Last check before deleting a non-image file: a background row whose path was written with a
+    // different store prefix (older deploys, a moved volume) still ends in the file name.
+    // Image files don't need this, they're matched by id. Only runs for orphan candidates.
+    private boolean referencedByName(String name) throws SQLException {
+        String pattern = "%" + name.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        String sql = "SELECT 1 FROM background_images WHERE image_path LIKE ? ESCAPE '\\' LIMIT 1";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, pattern);
+            try (ResultSet rs = AppMetrics.query("background_images.gc_reference_check", stmt::executeQuery)) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.digicache.services;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of the current request went: SQL statements, transactions, file IO and
+ * Spotify calls (AppMetrics adds those as it times them), multipart parsing, and anything a
+ * controller times itself. RequestTraceFilter starts one per API request on the request
+ * thread. Work on other threads (background optimizing, streamed exports) isn't counted.
+ *
+ * Only the request thread touches a trace, so nothing here is synchronized.
+ */
+public final class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+    // a batch upload runs the same few statements per file; this only guards against a runaway loop
+    private static final int MAX_PHASES = 64;
+
+    // category is what Server-Timing groups by (db, tx, file, spotify, multipart, app), name the operation
+    public record Phase(String category, String name, int count, double millis) {
+    }
+
+    private static final class Timing {
+        private int count;
+        private long nanos;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Timing> phases = new LinkedHashMap<>();
+
+    private RequestTrace() {
+    }
+
+    public static RequestTrace begin() {
+        RequestTrace trace = new RequestTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    // Null outside a traced request
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    // Add the time since startNanos to a phase of the current request; does nothing outside one
+    public static void record(String category, String name, long startNanos) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.add(category, name, System.nanoTime() - startNanos);
+        }
+    }
+
+    private void add(String category, String name, long nanos) {
+        String key = category + ":" + name;
+        Timing timing = phases.get(key);
+        if (timing == null) {
+            if (phases.size() >= MAX_PHASES) {
+                key = category + ":other";
+                timing = phases.computeIfAbsent(key, k -> new Timing());
+            } else {
+                timing = new Timing();
+                phases.put(key, timing);
+            }
+        }
+        timing.count++;
+        timing.nanos += nanos;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    // Every phase in the order it first ran
+    public List<Phase> phases() {
+        List<Phase> list = new ArrayList<>(phases.size());
+        for (Map.Entry<String, Timing> entry : phases.entrySet()) {
+            int colon = entry.getKey().indexOf(':');
+            list.add(new Phase(entry.getKey().substring(0, colon), entry.getKey().substring(colon + 1),
+                    entry.getValue().count, entry.getValue().nanos / 1e6));
+        }
+        return list;
+    }
+
+    /**
+     * Server-Timing header value: one entry per category (with how many operations it
+     * covers) and the total so far, e.g. total;dur=41.2, db;dur=3.1;desc="4", file;dur=30.5;desc="2".
+     * Categories overlap (a transaction's statements are in db and tx).
+     */
+    public String serverTiming() {
+        Map<String, Timing> categories = new LinkedHashMap<>();
+        for (Map.Entry<String, Timing> entry : phases.entrySet()) {
+            Timing category = categories.computeIfAbsent(entry.getKey().substring(0, entry.getKey().indexOf(':')), k -> new Timing());
+            category.count += entry.getValue().count;
+            category.nanos += entry.getValue().nanos;
+        }
+        StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "total;dur=%.1f", elapsedNanos() / 1e6));
+        for (Map.Entry<String, Timing> category : categories.entrySet()) {
+            header.append(String.format(Locale.ROOT, ", %s;dur=%.1f;desc=\"%d\"",
+                    category.getKey(), category.getValue().nanos / 1e6, category.getValue().count));
+        }
+        return header.toString();
+    }
+}
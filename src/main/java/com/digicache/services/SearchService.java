@@ -0,0 +1,242 @@
+package com.digicache.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text search over texts and saved songs, optionally within one box.
+ *
+ * On SQLite it queries the FTS5 indexes (texts_fts, songs_fts, see DBInitializer): all terms
+ * must match, the last one as a prefix (it's the word still being typed), and results from
+ * both are ranked together by BM25 (song names count more than artists, artists more than
+ * albums). Terms in more than CANDIDATES rows (very common words, short prefixes while the user
+ * is still typing) must match but aren't ranked on; a query made only of those is listed
+ * newest first.
+ *
+ * On H2/PostgreSQL there are no FTS5 tables, so it falls back to a case-insensitive LIKE per
+ * term, newest first.
+ */
+public class SearchService {
+
+    // Longer queries don't find anything better, they only make the match slower
+    public static final int MAX_TERMS = 8;
+    // A term matching more rows than this in either table isn't ranked on (see searchIndexed).
+    // More than every page the controller allows (offset + limit).
+    public static final int CANDIDATES = 2000;
+
+    private final Connection connection;
+    private final SqlDialect dialect;
+
+    /**
+     * One result. For texts, text is the content; for songs it's the song name and the song
+     * fields are set. score is the BM25 rank (lower is better), null when results are listed
+     * newest first.
+     */
+    public record Hit(String type, int id, String boxId, String text, String artist, String album,
+                      String spotifyId, String albumCoverUrl, String createdAt, Double score) {
+    }
+
+    // ranked: best match first (BM25), otherwise newest first
+    public record Page(List<Hit> hits, boolean hasMore, boolean ranked) {
+    }
+
+    public SearchService(Connection connection, SqlDialect dialect) {
+        this.connection = connection;
+        this.dialect = dialect;
+    }
+
+    /**
+     * The words of a user query, lowercased. Anything that isn't a letter or digit separates
+     * words (which is also how the FTS5 tokenizer splits), so no FTS5 syntax gets through.
+     */
+    public static List<String> terms(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null) {
+            return terms;
+        }
+        for (String term : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty() && terms.size() < MAX_TERMS) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Matches for the query, best first. boxId may be null to search every box.
+     */
+    public Page search(String query, String boxId, int limit, int offset) throws SQLException {
+        List<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            return new Page(List.of(), false, false);
+        }
+        return dialect == SqlDialect.SQLITE
+                ? searchIndexed(terms, boxId, limit, offset)
+                : page(searchLike(terms, boxId, limit + 1, offset), limit, false);
+    }
+
+    private static Page page(List<Hit> hits, int limit, boolean ranked) {
+        boolean hasMore = hits.size() > limit;
+        return new Page(hasMore ? hits.subList(0, limit) : hits, hasMore, ranked);
+    }
+
+    private Page searchIndexed(List<String> terms, String boxId, int limit, int offset) throws SQLException {
+        // Terms must all match. The last one is a prefix ("term"*), it's the one still being
+        // typed; one letter is matched as a whole word, as a prefix it matches nearly everything.
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            boolean prefix = i == terms.size() - 1 && term.length() > 1;
+            phrases.add("\"" + term + (prefix ? "\"*" : "\""));
+        }
+
+        // BM25 needs each term's document count, which FTS5 gets by walking the term's whole
+        // doclist: tens of milliseconds for a word or short prefix that's in most rows. Those
+        // terms still have to match, but only the selective ones are ranked on (a term that's
+        // everywhere adds next to nothing to BM25 anyway). With no selective term at all the
+        // results are listed newest first.
+        List<String> selective = new ArrayList<>();
+        for (String phrase : phrases) {
+            if (countMatches("texts_fts", "{content} : " + phrase) <= CANDIDATES
+                    && countMatches("songs_fts", "{name artist album} : " + phrase) <= CANDIDATES) {
+                selective.add(phrase);
+            }
+        }
+        boolean ranked = !selective.isEmpty();
+        boolean filtered = ranked && selective.size() < phrases.size();
+
+        // The box is a phrase on the indexed box_id column. The tokenizer folds case and
+        // punctuation, so box_id = ? below keeps out boxes that only differ in those.
+        String box = boxId != null ? "box_id : \"" + boxId.replace("\"", "\"\"") + "\" AND " : "";
+        String all = "(" + String.join(" ", phrases) + ")";
+        String rankedOn = "(" + String.join(" ", ranked ? selective : phrases) + ")";
+        // Ranked, every match is read (there are at most CANDIDATES, selective terms match fewer
+        // rows than that); newest first, FTS5 walks the index backwards and stops after the page
+        int window = ranked ? CANDIDATES : offset + limit + 1;
+
+        String sql = "SELECT 'text' AS type, t.id, t.box_id, t.content AS text, NULL AS artist, NULL AS album, "
+                + "NULL AS spotify_id, NULL AS album_cover_url, t.created_at, m.score "
+                + "FROM (" + matches("texts_fts", ranked ? "bm25(texts_fts, 1.0, 0.0)" : "NULL", filtered, window) + ") m "
+                + "JOIN texts t ON t.id = m.rowid"
+                + (boxId != null ? " WHERE t.box_id = ?" : "")
+                + " UNION ALL "
+                + "SELECT 'song', s.id, s.box_id, s.name, s.artist, s.album, s.spotify_id, s.album_cover_url, s.created_at, m.score "
+                + "FROM (" + matches("songs_fts", ranked ? "bm25(songs_fts, 10.0, 5.0, 2.0, 0.0)" : "NULL", filtered, window) + ") m "
+                + "JOIN spotify_songs s ON s.rowid = m.rowid"
+                + (boxId != null ? " WHERE s.box_id = ?" : "")
+                + " ORDER BY " + (ranked ? "score" : "created_at DESC") + " LIMIT ? OFFSET ?";
+
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int i = 1;
+            stmt.setString(i++, box + "{content} : " + rankedOn);
+            if (filtered) {
+                stmt.setString(i++, box + "{content} : " + all);
+            }
+            if (boxId != null) {
+                stmt.setString(i++, boxId);
+            }
+            stmt.setString(i++, box + "{name artist album} : " + rankedOn);
+            if (filtered) {
+                stmt.setString(i++, box + "{name artist album} : " + all);
+            }
+            if (boxId != null) {
+                stmt.setString(i++, boxId);
+            }
+            // one row more than the page, to know whether there's a next one
+            stmt.setInt(i++, limit + 1);
+            stmt.setInt(i, offset);
+            try (ResultSet rs = AppMetrics.query(boxId != null ? "search.fts_box" : "search.fts", stmt::executeQuery)) {
+                return page(readHits(rs, ranked), limit, ranked);
+            }
+        }
+    }
+
+    // Rows of an index matching the first parameter, newest first. If filtered they must also
+    // match the second one, which is left out of the score. The filter goes around the ranked
+    // query, not into it: there SQLite would hand the rowid list to FTS5, which then re-runs the
+    // MATCH once per row.
+    private static String matches(String index, String score, boolean filtered, int window) {
+        String matching = "SELECT rowid, " + score + " AS score FROM " + index + " WHERE " + index + " MATCH ? "
+                + "ORDER BY rowid DESC LIMIT " + window;
+        return filtered
+                ? "SELECT rowid, score FROM (" + matching + ") WHERE rowid IN (SELECT rowid FROM " + index + " WHERE " + index + " MATCH ?)"
+                : matching;
+    }
+
+    // Matching rows, counted only up to CANDIDATES + 1 (that far is cheap)
+    private int countMatches(String index, String match) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM (SELECT rowid FROM " + index + " WHERE " + index + " MATCH ? LIMIT " + (CANDIDATES + 1) + ")";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, match);
+            try (ResultSet rs = AppMetrics.query("search.count." + index, stmt::executeQuery)) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    private List<Hit> searchLike(List<String> terms, String boxId, int limit, int offset) throws SQLException {
+        StringBuilder textWhere = new StringBuilder(boxId != null ? "box_id = ?" : "1 = 1");
+        StringBuilder songWhere = new StringBuilder(boxId != null ? "box_id = ?" : "1 = 1");
+        for (int t = 0; t < terms.size(); t++) {
+            textWhere.append(" AND LOWER(content) LIKE ? ESCAPE '\\'");
+            songWhere.append(" AND (LOWER(name) LIKE ? ESCAPE '\\' OR LOWER(artist) LIKE ? ESCAPE '\\' OR LOWER(album) LIKE ? ESCAPE '\\')");
+        }
+        String sql = "SELECT 'text' AS type, id, box_id, content AS text, NULL AS artist, NULL AS album, "
+                + "NULL AS spotify_id, NULL AS album_cover_url, created_at FROM texts WHERE " + textWhere
+                + " UNION ALL "
+                + "SELECT 'song', id, box_id, name, artist, album, spotify_id, album_cover_url, created_at "
+                + "FROM spotify_songs WHERE " + songWhere
+                + " ORDER BY created_at DESC LIMIT ? OFFSET ?";
+
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int i = 1;
+            if (boxId != null) {
+                stmt.setString(i++, boxId);
+            }
+            for (String term : terms) {
+                stmt.setString(i++, likePattern(term));
+            }
+            if (boxId != null) {
+                stmt.setString(i++, boxId);
+            }
+            for (String term : terms) {
+                for (int column = 0; column < 3; column++) {
+                    stmt.setString(i++, likePattern(term));
+                }
+            }
+            stmt.setInt(i++, limit);
+            stmt.setInt(i, offset);
+            try (ResultSet rs = AppMetrics.query(boxId != null ? "search.like_box" : "search.like", stmt::executeQuery)) {
+                return readHits(rs, false);
+            }
+        }
+    }
+
+    // terms are letters and digits only, but escape anyway so a term can never be a wildcard
+    private static String likePattern(String term) {
+        return "%" + term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    private static List<Hit> readHits(ResultSet rs, boolean ranked) throws SQLException {
+        List<Hit> hits = new ArrayList<>();
+        while (rs.next()) {
+            hits.add(new Hit(
+                    rs.getString("type"),
+                    rs.getInt("id"),
+                    rs.getString("box_id"),
+                    rs.getString("text"),
+                    rs.getString("artist"),
+                    rs.getString("album"),
+                    rs.getString("spotify_id"),
+                    rs.getString("album_cover_url"),
+                    rs.getString("created_at"),
+                    ranked ? rs.getDouble("score") : null));
+        }
+        return hits;
+    }
+}
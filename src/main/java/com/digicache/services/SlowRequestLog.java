@@ -0,0 +1,58 @@
+package com.digicache.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last few requests that took longer than a threshold, with their phase breakdown
+ * (RequestTrace), for GET /api/admin/slow-requests. A fixed ring: the oldest entry is
+ * overwritten, nothing grows with traffic.
+ */
+public class SlowRequestLog {
+
+    public record Entry(long timestamp, String method, String path, int status, double millis,
+            List<RequestTrace.Phase> phases) {
+    }
+
+    private final long thresholdNanos;
+    private final Entry[] ring;
+    private int next;
+    private long recorded;
+
+    public SlowRequestLog(long thresholdMillis, int capacity) {
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+        this.ring = new Entry[Math.max(1, capacity)];
+    }
+
+    public boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    public long thresholdMillis() {
+        return thresholdNanos / 1_000_000;
+    }
+
+    public synchronized void add(Entry entry) {
+        ring[next] = entry;
+        next = (next + 1) % ring.length;
+        recorded++;
+    }
+
+    // Slow requests seen since startup, including the ones no longer in the ring
+    public synchronized long recorded() {
+        return recorded;
+    }
+
+    // Newest first
+    public synchronized List<Entry> recent(int limit) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 1; i <= ring.length && entries.size() < limit; i++) {
+            Entry entry = ring[(next - i + ring.length) % ring.length];
+            if (entry == null) {
+                break;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
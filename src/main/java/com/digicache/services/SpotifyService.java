@@ -14,19 +14,33 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class SpotifyService {
     
-    private static final String TOKEN_URL = "https://accounts.spotify.com/api/token";
-    private static final String SEARCH_URL = "https://api.spotify.com/v1/search";
+    private static final Logger log = LoggerFactory.getLogger(SpotifyService.class);
+    
+    public static final String ACCOUNTS_BASE_URL = "https://accounts.spotify.com";
+    public static final String API_BASE_URL = "https://api.spotify.com";
     
     private final String clientId;
     private final String clientSecret;
+    private final String tokenUrl;
+    private final String apiBaseUrl;
     private final OkHttpClient client;
     private String accessToken;
     
     public SpotifyService(String clientId, String clientSecret) {
+        this(clientId, clientSecret, ACCOUNTS_BASE_URL, API_BASE_URL);
+    }
+    
+    // base URLs can point at a local stub server (load tests)
+    public SpotifyService(String clientId, String clientSecret, String accountsBaseUrl, String apiBaseUrl) {
         this.clientId = clientId;
         this.clientSecret = clientSecret;
+        this.tokenUrl = accountsBaseUrl + "/api/token";
+        this.apiBaseUrl = apiBaseUrl;
         this.client = new OkHttpClient();
     }
     
@@ -40,13 +54,13 @@ public class SpotifyService {
             .build();
         
         Request request = new Request.Builder()
-            .url(TOKEN_URL)
+            .url(tokenUrl)
             .addHeader("Authorization", "Basic " + encodedCredentials)
             .post(body)
             .build();
         
         // receive response
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = execute("token", request)) {
             if (!response.isSuccessful()) {
                 throw new IOException("could not generate access token: " + response);
             }
@@ -54,7 +68,7 @@ public class SpotifyService {
             String responseBody = response.body().string();
             JsonObject json = JsonParser.parseString(responseBody).getAsJsonObject();
             this.accessToken = json.get("access_token").getAsString();
-            System.out.println("successfully generated access token");
+            log.info("Generated Spotify access token");
         }
     }
     
@@ -64,7 +78,7 @@ public class SpotifyService {
             authenticate();
         }
         
-        HttpUrl url = HttpUrl.parse(SEARCH_URL).newBuilder()
+        HttpUrl url = HttpUrl.parse(apiBaseUrl + "/v1/search").newBuilder()
             .addQueryParameter("q", query)
             .addQueryParameter("type", "track")
             .addQueryParameter("limit", String.valueOf(limit))
@@ -76,10 +90,10 @@ public class SpotifyService {
             .get()
             .build();
         
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = execute("search", request)) {
             // If token expired (401), re-authenticate and retry
             if (response.code() == 401) {
-                System.out.println("Access token expired, re-authenticating...");
+                log.info("Spotify access token expired, re-authenticating");
                 authenticate();
                 
                 // Retry the request with new token
@@ -89,7 +103,7 @@ public class SpotifyService {
                     .get()
                     .build();
                 
-                try (Response retryResponse = client.newCall(retryRequest).execute()) {
+                try (Response retryResponse = execute("search", retryRequest)) {
                     if (!retryResponse.isSuccessful()) {
                         throw new IOException("search failed after re-authentication: " + retryResponse);
                     }
@@ -116,7 +130,7 @@ public class SpotifyService {
             authenticate();
         }
         
-        String url = "https://api.spotify.com/v1/tracks/" + spotifyId;
+        String url = apiBaseUrl + "/v1/tracks/" + spotifyId;
         
         Request request = new Request.Builder()
             .url(url)
@@ -124,10 +138,10 @@ public class SpotifyService {
             .get()
             .build();
         
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = execute("track", request)) {
             // If token expired (401), re-authenticate and retry
             if (response.code() == 401) {
-                System.out.println("Access token expired, re-authenticating...");
+                log.info("Spotify access token expired, re-authenticating");
                 authenticate();
                 
                 // Retry the request with new token
@@ -137,7 +151,10 @@ public class SpotifyService {
                     .get()
                     .build();
                 
-                try (Response retryResponse = client.newCall(retryRequest).execute()) {
+                try (Response retryResponse = execute("track", retryRequest)) {
+                    if (isNotFound(retryResponse)) {
+                        throw new TrackNotFoundException(spotifyId);
+                    }
                     if (!retryResponse.isSuccessful()) {
                         throw new IOException("getting song by id failed after re-authentication: " + retryResponse);
                     }
@@ -147,6 +164,9 @@ public class SpotifyService {
                 }
             }
             
+            if (isNotFound(response)) {
+                throw new TrackNotFoundException(spotifyId);
+            }
             if (!response.isSuccessful()) {
                 throw new IOException("getting song by id failed: " + response);
             }
@@ -156,6 +176,55 @@ public class SpotifyService {
         }
     }
     
+    // Spotify answers 400 for an id that can't be a track and 404 for one that doesn't exist
+    private static boolean isNotFound(Response response) {
+        return response.code() == 400 || response.code() == 404;
+    }
+    
+    public static class TrackNotFoundException extends IOException {
+        public TrackNotFoundException(String spotifyId) {
+            super("no Spotify track " + spotifyId);
+        }
+    }
+    
+    // download an image from Spotify's CDN (album covers); no token needed, the URL is public
+    public byte[] fetchImage(String url, int maxBytes) throws IOException {
+        Request request = new Request.Builder()
+            .url(url)
+            .get()
+            .build();
+        
+        try (Response response = execute("cover", request)) {
+            if (!response.isSuccessful()) {
+                throw new IOException("fetching image failed: " + response);
+            }
+            // read one byte past the limit to tell a too large image from one exactly at it
+            byte[] bytes = response.body().byteStream().readNBytes(maxBytes + 1);
+            if (bytes.length > maxBytes) {
+                throw new IOException("image larger than " + maxBytes + " bytes: " + url);
+            }
+            return bytes;
+        }
+    }
+    
+    // run a call and record its latency + status for /actuator/prometheus
+    private Response execute(String operation, Request request) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Response response = client.newCall(request).execute();
+            String status = String.valueOf(response.code());
+            AppMetrics.spotifyCall(operation, start, status);
+            if (!response.isSuccessful()) {
+                AppMetrics.spotifyError(operation, status);
+            }
+            return response;
+        } catch (IOException e) {
+            AppMetrics.spotifyCall(operation, start, "io_error");
+            AppMetrics.spotifyError(operation, "io_error");
+            throw e;
+        }
+    }
+    
     // for song info (lowkey just for testing)
     public void displaySong(JsonObject track) {
         String name = track.get("name").getAsString();
@@ -172,10 +241,11 @@ public class SpotifyService {
         // can potentially add a url for an audio preview but this is kind of weird rn
         // YES ADD THE HYPERLINK FOR SPOTIFY SONG
         
-        System.out.println("Song: " + name);
-        System.out.println("Artist: " + artist);
-        System.out.println("Album: " + album);
-        System.out.println("Album Cover URL: " + albumCover);
-        System.out.println("---");
+        log.atInfo()
+            .addKeyValue("song", name)
+            .addKeyValue("artist", artist)
+            .addKeyValue("album", album)
+            .addKeyValue("albumCover", albumCover)
+            .log("Song");
     }
 }
\ No newline at end of file
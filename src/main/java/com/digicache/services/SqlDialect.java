@@ -0,0 +1,105 @@
+package com.digicache.services;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+/**
+ * The few statements whose syntax differs between the databases we run on.
+ * Everything else is written in SQL all three accept.
+ *
+ * SQLITE   single node, one database file next to the app (the default)
+ * H2       file mode for local use, server mode (jdbc:h2:tcp://) as a local stand-in for a shared database
+ * POSTGRES shared by several app instances
+ */
+public enum SqlDialect {
+    SQLITE, H2, POSTGRES;
+
+    public static SqlDialect fromUrl(String url) {
+        if (url.startsWith("jdbc:sqlite:")) {
+            return SQLITE;
+        }
+        if (url.startsWith("jdbc:h2:")) {
+            return H2;
+        }
+        if (url.startsWith("jdbc:postgresql:")) {
+            return POSTGRES;
+        }
+        throw new IllegalArgumentException("Unsupported database URL: " + url + " (expected jdbc:sqlite:, jdbc:h2: or jdbc:postgresql:)");
+    }
+
+    // Type for string columns, including keys and indexed columns
+    public String textType() {
+        return this == H2 ? "VARCHAR" : "TEXT";
+    }
+
+    // Column definition for a generated integer key
+    public String autoIncrementPrimaryKey() {
+        return this == SQLITE ? "INTEGER PRIMARY KEY AUTOINCREMENT" : "INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY";
+    }
+
+    // Foreign keys as declared on SQLite, where they're documentation only (foreign_keys is off).
+    // The other databases would enforce them, so they're left out to keep the same behaviour.
+    public String foreignKey(String column, String references) {
+        return this == SQLITE ? ", FOREIGN KEY (" + column + ") REFERENCES " + references : "";
+    }
+
+    // A column that increases with insertion order, for keyset paging over a table
+    public String insertionOrderKey(String idColumn) {
+        // songs on older SQLite databases have a NULL text id, rowid always works there
+        return this == SQLITE ? "rowid" : idColumn;
+    }
+
+    /**
+     * Insert a row unless one with the same key exists. The update count is 1 if the row was
+     * inserted, 0 if it already existed. Parameters are the columns in order.
+     */
+    public String insertIgnore(String table, String key, String... columns) {
+        String columnList = String.join(", ", columns);
+        String placeholders = placeholders(columns.length);
+        return switch (this) {
+            case SQLITE -> "INSERT OR IGNORE INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")";
+            case POSTGRES -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ") ON CONFLICT (" + key + ") DO NOTHING";
+            case H2 -> "MERGE INTO " + table + " t USING (VALUES (" + placeholders + ")) AS s (" + columnList + ") ON t." + key + " = s." + key
+                    + " WHEN NOT MATCHED THEN INSERT (" + columnList + ") VALUES ("
+                    + Arrays.stream(columns).map(column -> "s." + column).collect(Collectors.joining(", ")) + ")";
+        };
+    }
+
+    /**
+     * Insert a row, or replace the one with the same key. Parameters are the columns in order.
+     */
+    public String upsert(String table, String key, String... columns) {
+        String columnList = String.join(", ", columns);
+        String placeholders = placeholders(columns.length);
+        return switch (this) {
+            case SQLITE -> "INSERT OR REPLACE INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")";
+            case POSTGRES -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ") ON CONFLICT (" + key + ") DO UPDATE SET "
+                    + Arrays.stream(columns).filter(column -> !column.equals(key))
+                            .map(column -> column + " = EXCLUDED." + column).collect(Collectors.joining(", "));
+            case H2 -> "MERGE INTO " + table + " (" + columnList + ") KEY (" + key + ") VALUES (" + placeholders + ")";
+        };
+    }
+
+    /**
+     * Add to a counter column, inserting the row if there's none for the key yet. Parameters
+     * are the key columns in order, then the amount to add.
+     */
+    public String addTo(String table, String counter, String... keys) {
+        String columnList = String.join(", ", keys) + ", " + counter;
+        String placeholders = placeholders(keys.length + 1);
+        return switch (this) {
+            case SQLITE, POSTGRES -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ") ON CONFLICT ("
+                    + String.join(", ", keys) + ") DO UPDATE SET " + counter + " = " + table + "." + counter + " + EXCLUDED." + counter;
+            case H2 -> "MERGE INTO " + table + " t USING (VALUES (" + placeholders + ")) AS s (" + columnList + ") ON "
+                    + Arrays.stream(keys).map(key -> "t." + key + " = s." + key).collect(Collectors.joining(" AND "))
+                    + " WHEN MATCHED THEN UPDATE SET " + counter + " = t." + counter + " + s." + counter
+                    + " WHEN NOT MATCHED THEN INSERT (" + columnList + ") VALUES ("
+                    + Arrays.stream(columnList.split(", ")).map(column -> "s." + column).collect(Collectors.joining(", ")) + ")";
+        };
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
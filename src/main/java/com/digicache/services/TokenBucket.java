@@ -0,0 +1,44 @@
+package com.digicache.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, written as GCRA: the whole state is one "theoretical arrival time"
+ * (when the bucket would be full again), updated with a single CAS. A request is admitted
+ * if that time isn't more than `burst` tokens ahead of now.
+ */
+public final class TokenBucket {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double tokensPerSecond, int burst) {
+        this.nanosPerToken = (long) (1_000_000_000L / tokensPerSecond);
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+        // Already full: the caller's `now` may be read before construction and must not lose a token
+        this.fullAt = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * Take one token. Returns 0 if admitted, otherwise how many nanoseconds until a token is free.
+     */
+    public long tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + nanosPerToken;
+            long ahead = next - now;
+            if (ahead > burstNanos) {
+                return ahead - burstNanos;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // A full bucket holds no state worth keeping, it can be dropped and recreated later
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
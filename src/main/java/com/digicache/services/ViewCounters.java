@@ -0,0 +1,265 @@
+package com.digicache.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How often boxes and images are viewed, counted in memory and written to the database in
+ * batches. A view is one LongAdder increment on the request thread (no lock, no write); flush()
+ * adds what was counted since the last flush to view_counts (all time) and view_buckets (per
+ * hour, for trending) in one transaction, on a schedule and once more at shutdown.
+ *
+ * A failed flush keeps its counts for the next one. What's counted after the last flush of a
+ * crashed process is lost, at most one flush interval of views.
+ *
+ * Box views are recorded for whatever box id a request names; a flush only writes those of
+ * boxes that exist (have a box_stats row), and the hourly prune drops all-time counts of
+ * boxes and images that are gone.
+ */
+public class ViewCounters {
+
+    private static final Logger log = LoggerFactory.getLogger(ViewCounters.class);
+
+    public enum Kind {
+        BOX, IMAGE;
+
+        private final String column = name().toLowerCase(Locale.ROOT);
+    }
+
+    // id is the box or image, boxId the image's box (the box itself for BOX)
+    public record Trending(String id, String boxId, long views) {
+    }
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // A counter without views for this many flushes is dropped from memory
+    private static final int IDLE_FLUSHES = 2;
+    // box ids checked per IN query
+    private static final int EXISTS_BATCH = 500;
+
+    private static final class Counter {
+        final LongAdder views = new LongAdder();
+        // below here only touched by flush()
+        long flushed;
+        int idleFlushes;
+    }
+
+    private final Connection connection;
+    private final int maxKeys;
+    private final long retentionHours;
+    private final Map<Kind, ConcurrentHashMap<String, Counter>> counters = new EnumMap<>(Kind.class);
+    private long prunedBefore;
+
+    public ViewCounters(Connection connection, int maxKeys, int retentionDays) {
+        this.connection = connection;
+        this.maxKeys = maxKeys;
+        this.retentionHours = TimeUnit.DAYS.toHours(retentionDays);
+        for (Kind kind : Kind.values()) {
+            counters.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Count one view. Never blocks or touches the database; once maxKeys different ids of a
+     * kind are waiting for the next flush, views of further ids are dropped (and counted in
+     * digicache.views.dropped).
+     */
+    public void record(Kind kind, String id) {
+        if (id == null) {
+            return;
+        }
+        ConcurrentHashMap<String, Counter> map = counters.get(kind);
+        Counter counter = map.get(id);
+        if (counter == null) {
+            if (map.size() >= maxKeys) {
+                AppMetrics.viewDropped(kind.column);
+                return;
+            }
+            counter = map.computeIfAbsent(id, key -> new Counter());
+        }
+        counter.views.increment();
+    }
+
+    /**
+     * Write the views counted since the last flush. Returns how many views were written.
+     */
+    public synchronized long flush() throws SQLException {
+        long bucket = System.currentTimeMillis() / HOUR_MILLIS;
+        Map<Counter, Long> sums = new HashMap<>();
+        long total = DBInitializer.inTransaction(connection, "views.flush", () -> {
+            SqlDialect dialect = DBInitializer.dialect();
+            Set<String> boxes = existingBoxes();
+            long written = 0;
+            try (PreparedStatement counts = connection.prepareStatement(dialect.addTo("view_counts", "views", "kind", "item_id"));
+                 PreparedStatement buckets = connection.prepareStatement(dialect.addTo("view_buckets", "views", "kind", "bucket", "item_id"))) {
+                for (Kind kind : Kind.values()) {
+                    for (Map.Entry<String, Counter> entry : counters.get(kind).entrySet()) {
+                        Counter counter = entry.getValue();
+                        long sum = counter.views.sum();
+                        long delta = sum - counter.flushed;
+                        if (delta == 0) {
+                            continue;
+                        }
+                        sums.put(counter, sum);
+                        if (kind == Kind.BOX && !boxes.contains(entry.getKey())) {
+                            continue; // no such box: counted as flushed, never written
+                        }
+                        counts.setString(1, kind.column);
+                        counts.setString(2, entry.getKey());
+                        counts.setLong(3, delta);
+                        counts.addBatch();
+                        buckets.setString(1, kind.column);
+                        buckets.setLong(2, bucket);
+                        buckets.setString(3, entry.getKey());
+                        buckets.setLong(4, delta);
+                        buckets.addBatch();
+                        written += delta;
+                    }
+                }
+                if (written > 0) {
+                    AppMetrics.query("view_counts.add_batch", counts::executeBatch);
+                    AppMetrics.query("view_buckets.add_batch", buckets::executeBatch);
+                }
+            }
+            // hours past the retention aren't asked for any more, once an hour is enough
+            if (bucket - retentionHours > prunedBefore) {
+                try (PreparedStatement prune = connection.prepareStatement("DELETE FROM view_buckets WHERE bucket < ?")) {
+                    prune.setLong(1, bucket - retentionHours);
+                    AppMetrics.query("view_buckets.delete_old", prune::executeUpdate);
+                }
+                // all-time counts of deleted images and of box ids written before flushes checked them
+                try (PreparedStatement prune = connection.prepareStatement(
+                        "DELETE FROM view_counts WHERE (kind = 'box' AND item_id NOT IN (SELECT box_id FROM box_stats))"
+                        + " OR (kind = 'image' AND item_id NOT IN (SELECT id FROM images))")) {
+                    AppMetrics.query("view_counts.delete_orphans", prune::executeUpdate);
+                }
+                prunedBefore = bucket - retentionHours;
+            }
+            return written;
+        });
+
+        // committed: move the marks, and forget counters that have been idle for a while
+        for (ConcurrentHashMap<String, Counter> map : counters.values()) {
+            for (Map.Entry<String, Counter> entry : map.entrySet()) {
+                Counter counter = entry.getValue();
+                Long sum = sums.get(counter);
+                if (sum != null) {
+                    counter.flushed = sum;
+                    counter.idleFlushes = 0;
+                } else if (++counter.idleFlushes >= IDLE_FLUSHES && counter.views.sum() == counter.flushed) {
+                    // a view landing between this check and the removal is lost; the counter
+                    // has seen none for IDLE_FLUSHES intervals, so that's a rare stray view
+                    map.remove(entry.getKey(), counter);
+                }
+            }
+        }
+        if (total > 0) {
+            AppMetrics.viewsFlushed(total);
+        }
+        return total;
+    }
+
+    // Which of the box ids with unflushed views exist (runs inside flush's transaction)
+    private Set<String> existingBoxes() throws SQLException {
+        List<String> ids = new ArrayList<>();
+        for (Map.Entry<String, Counter> entry : counters.get(Kind.BOX).entrySet()) {
+            if (entry.getValue().views.sum() != entry.getValue().flushed) {
+                ids.add(entry.getKey());
+            }
+        }
+        Set<String> existing = new HashSet<>();
+        for (int from = 0; from < ids.size(); from += EXISTS_BATCH) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + EXISTS_BATCH));
+            String sql = "SELECT box_id FROM box_stats WHERE box_id IN (" + String.join(", ", Collections.nCopies(batch.size(), "?")) + ")";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    stmt.setString(i + 1, batch.get(i));
+                }
+                try (ResultSet rs = AppMetrics.query("box_stats.select_existing", stmt::executeQuery)) {
+                    while (rs.next()) {
+                        existing.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
+    // Written on shutdown (Spring calls close() on the bean)
+    public void close() {
+        try {
+            long written = flush();
+            if (written > 0) {
+                log.atInfo().addKeyValue("views", written).log("Views flushed on shutdown");
+            }
+        } catch (SQLException e) {
+            log.error("Failed to flush views on shutdown", e);
+        }
+    }
+
+    /**
+     * The most viewed boxes in the last hours (flushed views only). Only boxes that still
+     * exist are listed, views of box ids nobody created don't show up.
+     */
+    public List<Trending> trendingBoxes(int hours, int limit) throws SQLException {
+        String sql = "SELECT v.item_id, SUM(v.views) AS views FROM view_buckets v "
+                + "JOIN box_stats s ON s.box_id = v.item_id "
+                + "WHERE v.kind = 'box' AND v.bucket >= ? "
+                + "GROUP BY v.item_id ORDER BY views DESC, v.item_id LIMIT ?";
+        List<Trending> trending = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setLong(1, firstBucket(hours));
+            stmt.setInt(2, limit);
+            try (ResultSet rs = AppMetrics.query("view_buckets.trending_boxes", stmt::executeQuery)) {
+                while (rs.next()) {
+                    trending.add(new Trending(rs.getString(1), rs.getString(1), rs.getLong(2)));
+                }
+            }
+        }
+        return trending;
+    }
+
+    // The most viewed images in the last hours, with their box (deleted images are left out)
+    public List<Trending> trendingImages(int hours, int limit) throws SQLException {
+        String sql = "SELECT v.item_id, i.box_id, SUM(v.views) AS views FROM view_buckets v "
+                + "JOIN images i ON i.id = v.item_id "
+                + "WHERE v.kind = 'image' AND v.bucket >= ? "
+                + "GROUP BY v.item_id, i.box_id ORDER BY views DESC, v.item_id LIMIT ?";
+        List<Trending> trending = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setLong(1, firstBucket(hours));
+            stmt.setInt(2, limit);
+            try (ResultSet rs = AppMetrics.query("view_buckets.trending_images", stmt::executeQuery)) {
+                while (rs.next()) {
+                    trending.add(new Trending(rs.getString(1), rs.getString(2), rs.getLong(3)));
+                }
+            }
+        }
+        return trending;
+    }
+
+    public long retentionHours() {
+        return retentionHours;
+    }
+
+    // the current hour counts as one of them
+    private static long firstBucket(int hours) {
+        return System.currentTimeMillis() / HOUR_MILLIS - hours + 1;
+    }
+}